@@ -1,36 +1,272 @@
 package bg.sofia.uni.fmi.mjt.splitwise;
 
+import bg.sofia.uni.fmi.mjt.splitwise.ledger.Ledger;
+import bg.sofia.uni.fmi.mjt.splitwise.ledger.TransactionType;
+import bg.sofia.uni.fmi.mjt.splitwise.settlement.DebtSimplifier;
+import bg.sofia.uni.fmi.mjt.splitwise.settlement.Transfer;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.Checkpointer;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.DiskUserStore;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.GroupCommitPolicy;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.GroupCommitStatistics;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.MappedSnapshot;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.MemoryUserStore;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.OperationJournal;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.SlottedSnapshot;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.SnapshotFormat;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.UserStore;
+import bg.sofia.uni.fmi.mjt.splitwise.user.Money;
 import bg.sofia.uni.fmi.mjt.splitwise.user.StandardUser;
 import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.*;
-import com.google.gson.Gson;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * @author Stiliyan Iliev
+ * @apiNote the file at the given path holds a snapshot of all users and a journal next to it
+ * holds every change made after the snapshot was stored. The journal is replayed over the
+ * snapshot on start up.
+ * A checkpoint seals the journal in a numbered segment and continues with an empty one. The new
+ * snapshot is built from the previous snapshot and the sealed segments, away from the users
+ * in memory, so storing it never blocks the operations. The generation written in the snapshot
+ * tells which sealed segments are already part of it if the server stops in the middle of a checkpoint.
+ * The operations are thread-safe. Each of them holds the locks of all users it touches, of the creator
+ * and all members for the operations on a group, so operations on unrelated users run in parallel.
+ * An operation is journaled while it still holds its locks, which keeps the journal in the order the
+ * operations on the same users were applied, but it waits for its record to become durable after
+ * releasing them.
+ * Every bill, payment and join to a group is also appended to the {@link Ledger} next to the snapshot, which
+ * keeps the whole history of the money moved between the users. Its transaction is written into the journal
+ * record of the operation, so the two become durable together, and a transaction missing from the ledger after
+ * a crash is restored from the journal when it is replayed.
+ * The snapshot is stored in the format it was loaded in, see {@link SnapshotFormat}.
+ * The users live in a {@link UserStore} while the server runs: all of them in the memory, see
+ * {@link MemoryUserStore}, where an indexed snapshot can be loaded lazily, see {@link MappedSnapshot},
+ * or only the recently used ones, up to a number of bytes, with the rest on the disk, see {@link DiskUserStore}.
+ * A checkpoint builds the new snapshot in a store of the same kind, so it takes no more memory than the server.
+ * A slotted snapshot, see {@link SlottedSnapshot}, stays open while the server runs and a checkpoint saves to it
+ * only the users changed by the sealed segments: it decodes just the users they touch, replays them over those
+ * users and writes the ones which changed, so its cost grows with the users touched since the previous one.
  */
 public class DefaultSplitWise implements SplitWise {
 
     private static final int MINIMAL_USERNAME_AND_PASSWORD_LENGTH = 8;
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String LEDGER_SUFFIX = ".ledger";
+
+    static final String REGISTER = "R";
+    static final String ADD_FRIEND = "F";
+    static final String CREATE_GROUP = "G";
+    static final String SPLIT = "S";
+    static final String SPLIT_BY_GROUP = "SG";
+    static final String PAYED = "P";
+    static final String PAYED_FROM_GROUP_MEMBER = "PG";
+    ///separates the fields of the operation from the fields of its transaction, no field of an operation is empty
+    private static final String TRANSACTION_SEPARATOR = "";
+
+    private static final int NUMBER_OF_LOCK_STRIPES = 1024;
+    private static final long NOT_JOURNALED = 0;
+    private static final long ALL_RESIDENT = 0;
+
     private final Path datasetFileName;
-    private final Set<User> userSet;
+    private final SnapshotFormat snapshotFormat;
+    private final SlottedSnapshot slottedSnapshot;
+    private final long maxResidentBytes;
+    private final UserStore userStore;
+    private final OperationJournal journal;
+    private final Ledger ledger;
+    private final UserLocks userLocks = new UserLocks(NUMBER_OF_LOCK_STRIPES);
+
+    private final Object checkpointLock = new Object();
+    private long lastSealedGeneration;
+    private Checkpointer checkpointer;
 
     public DefaultSplitWise(Path path) {
+        this(path, (GroupCommitPolicy) null);
+    }
 
-        try (Stream<String> stream = Files.lines(path)) {
+    /**
+     * Creates a SplitWise whose journal forces the journaled operations to the disk
+     * in batches according to {@code groupCommitPolicy}, or not at all if it is null.
+     */
+    public DefaultSplitWise(Path path, GroupCommitPolicy groupCommitPolicy) {
+        this(path, groupCommitPolicy, false);
+    }
 
-            this.userSet = stream.map(User::of).collect(Collectors.toSet());
+    /**
+     * Creates a SplitWise whose journal is forced to the disk according to {@code groupCommitPolicy}.
+     *
+     * @param isLoadedLazily whether the users are decoded only when they are looked up, which requires
+     *                       a binary or a slotted snapshot; any other snapshot is loaded at once
+     */
+    public DefaultSplitWise(Path path, GroupCommitPolicy groupCommitPolicy, boolean isLoadedLazily) {
+        this(path, groupCommitPolicy, isLoadedLazily, ALL_RESIDENT);
+    }
 
-        } catch (IOException e) {
-            throw new IllegalStateException("A problem occurred while reading from a file");
+    /**
+     * Creates a SplitWise whose journal is forced to the disk according to {@code groupCommitPolicy}
+     * and which keeps its users on the disk and only the recently used ones in the memory.
+     *
+     * @param maxResidentBytes the approximate number of bytes the users in the memory may take, see
+     *                         {@link DiskUserStore}, or 0 to keep all of them in the memory
+     */
+    public DefaultSplitWise(Path path, GroupCommitPolicy groupCommitPolicy, long maxResidentBytes) {
+        this(path, groupCommitPolicy, false, maxResidentBytes);
+    }
+
+    private DefaultSplitWise(Path path, GroupCommitPolicy groupCommitPolicy, boolean isLoadedLazily,
+                             long maxResidentBytes) {
+        this.datasetFileName = path;
+        this.snapshotFormat = SnapshotFormat.of(path);
+        this.slottedSnapshot = snapshotFormat == SnapshotFormat.SLOTTED ? new SlottedSnapshot(path) : null;
+        this.maxResidentBytes = maxResidentBytes;
+        this.userStore = isLoadedLazily && slottedSnapshot != null && maxResidentBytes == ALL_RESIDENT
+                ? new MemoryUserStore(slottedSnapshot) : newUserStore(isLoadedLazily);
+
+        long snapshotGeneration = userStore.load(path);
+        this.lastSealedGeneration = snapshotGeneration;
+        this.ledger = new Ledger(ledgerPathOf(path));
+
+        for (long generation : sealedGenerations(path)) {
+            if (generation > snapshotGeneration) {
+                OperationJournal.replay(sealedJournalPathOf(path, generation), this::replay);
+                this.lastSealedGeneration = generation;
+            } else {
+                deleteSealedJournal(generation);
+            }
         }
+
+        Path journalPath = journalPathOf(path);
+        OperationJournal.replay(journalPath, this::replay);
+        this.journal = new OperationJournal(journalPath, groupCommitPolicy, ledger::journaled);
+    }
+
+    /**
+     * Creates a SplitWise which stores a new snapshot in the background every {@code snapshotInterval}
+     * or as soon as the journal grows beyond {@code journalSizeThreshold} bytes.
+     */
+    public DefaultSplitWise(Path path, Duration snapshotInterval, long journalSizeThreshold) {
+        this(path, snapshotInterval, journalSizeThreshold, null);
+    }
+
+    /**
+     * Creates a SplitWise which stores snapshots in the background and whose journal
+     * is forced to the disk according to {@code groupCommitPolicy}.
+     */
+    public DefaultSplitWise(Path path, Duration snapshotInterval, long journalSizeThreshold,
+                            GroupCommitPolicy groupCommitPolicy) {
+        this(path, snapshotInterval, journalSizeThreshold, groupCommitPolicy, false);
+    }
+
+    /**
+     * Creates a SplitWise which stores snapshots in the background, whose journal is forced to the disk
+     * according to {@code groupCommitPolicy} and whose users are decoded only when they are looked up
+     * if {@code isLoadedLazily} and the snapshot is a binary or a slotted one.
+     */
+    public DefaultSplitWise(Path path, Duration snapshotInterval, long journalSizeThreshold,
+                            GroupCommitPolicy groupCommitPolicy, boolean isLoadedLazily) {
+        this(path, groupCommitPolicy, isLoadedLazily);
+        this.checkpointer = new Checkpointer(this::checkpoint, journal, snapshotInterval, journalSizeThreshold);
+    }
+
+    /**
+     * Creates a SplitWise which stores snapshots in the background, whose journal is forced to the disk
+     * according to {@code groupCommitPolicy} and which keeps only the recently used users in the memory,
+     * up to about {@code maxResidentBytes} bytes.
+     */
+    public DefaultSplitWise(Path path, Duration snapshotInterval, long journalSizeThreshold,
+                            GroupCommitPolicy groupCommitPolicy, long maxResidentBytes) {
+        this(path, groupCommitPolicy, maxResidentBytes);
+        this.checkpointer = new Checkpointer(this::checkpoint, journal, snapshotInterval, journalSizeThreshold);
+    }
+
+    /**
+     * Loads the snapshot at {@code path} in {@code userStore}, or in a new store if it is null,
+     * and replays the sealed segments up to {@code generation}, without opening the journal.
+     */
+    private DefaultSplitWise(Path path, long generation, long maxResidentBytes, UserStore userStore) {
         this.datasetFileName = path;
+        this.snapshotFormat = SnapshotFormat.of(path);
+        this.slottedSnapshot = null;
+        this.maxResidentBytes = maxResidentBytes;
+        this.userStore = userStore != null ? userStore : newUserStore(false);
+
+        long snapshotGeneration = this.userStore.load(path);
+        for (long sealedGeneration : sealedGenerations(path)) {
+            if (sealedGeneration > snapshotGeneration && sealedGeneration <= generation) {
+                OperationJournal.replay(sealedJournalPathOf(path, sealedGeneration), this::replay);
+            }
+        }
+        this.journal = null;
+        this.ledger = null;
+    }
+
+    /**
+     * @return an empty store which keeps the users on the disk if their memory is limited, reading them in place
+     * from the slotted snapshot if it is open, or else in the memory
+     */
+    private UserStore newUserStore(boolean isLoadedLazily) {
+        if (maxResidentBytes == ALL_RESIDENT) {
+            return new MemoryUserStore(isLoadedLazily);
+        }
+        return new DiskUserStore(datasetFileName.toAbsolutePath().getParent(), maxResidentBytes, userLocks::lockOf,
+                slottedSnapshot);
+    }
+
+    /**
+     * @return the path of the journal which belongs to the snapshot at {@code datasetPath}
+     */
+    public static Path journalPathOf(Path datasetPath) {
+        return datasetPath.resolveSibling(datasetPath.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return the path of the ledger which belongs to the snapshot at {@code datasetPath}
+     */
+    public static Path ledgerPathOf(Path datasetPath) {
+        return datasetPath.resolveSibling(datasetPath.getFileName() + LEDGER_SUFFIX);
+    }
+
+    private static Path sealedJournalPathOf(Path datasetPath, long generation) {
+        return datasetPath.resolveSibling(datasetPath.getFileName() + JOURNAL_SUFFIX + "." + generation);
+    }
+
+    /**
+     * @return the generations of the sealed journal segments of the snapshot at {@code datasetPath}
+     * in increasing order
+     */
+    private static List<Long> sealedGenerations(Path datasetPath) {
+        String prefix = datasetPath.getFileName() + JOURNAL_SUFFIX + ".";
+        Path directory = datasetPath.toAbsolutePath().getParent();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+"))
+                    .map(name -> Long.parseLong(name.substring(prefix.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while listing the journal segments");
+        }
+    }
+
+    private void deleteSealedJournal(long generation) {
+        try {
+            Files.deleteIfExists(sealedJournalPathOf(datasetFileName, generation));
+        } catch (IOException e) {
+            System.err.println("A problem occurred while deleting a journal segment: " + e.getMessage());
+        }
     }
 
     public User findUserByUsername(String username) {
@@ -38,14 +274,22 @@ public class DefaultSplitWise implements SplitWise {
             throw new IllegalArgumentException("The value of the username cannot be " +
                     "null, empty string or blank space!");
         }
-        User user = null;
-        for (User usr : this.userSet) {
-            if (usr.getUsername().equals(username)) {
-                user = usr;
-                break;
-            }
+        return userStore.find(username);
+    }
+
+    public <T> T readUser(String username, Function<User, T> reader) {
+        if (username == null || username.isEmpty() || username.isBlank() || reader == null) {
+            throw new IllegalArgumentException("Invalid argument value in method readUser in class " +
+                    "DefaultSplitWise!");
+        }
+
+        UserLocks.Held held = userLocks.lock(username);
+        try {
+            User user = findUserByUsername(username);
+            return user == null ? null : reader.apply(user);
+        } finally {
+            held.unlock();
         }
-        return user;
     }
 
     public void split(String usernamePayed, String usernameHasToPay, double amount, String reason)
@@ -56,29 +300,27 @@ public class DefaultSplitWise implements SplitWise {
             throw new IllegalArgumentException("Invalid argument value in method split in class DefaultSplitWise!");
         }
 
-        User userPayed = findUserByUsername(usernamePayed);
-        User userHasToPay = findUserByUsername(usernameHasToPay);
+        long sequence;
+        UserLocks.Held held = userLocks.lock(usernamePayed, usernameHasToPay);
+        try {
+            User userPayed = findUserByUsername(usernamePayed);
+            User userHasToPay = findUserByUsername(usernameHasToPay);
 
-        if (userPayed == null) {
-            throw new UserNotFoundException("There is no user with username: " + usernamePayed);
-        } else if (userHasToPay == null) {
-            throw new UserNotFoundException("There is no user with username: " + usernameHasToPay);
-        } else {
+            if (userPayed == null) {
+                throw new UserNotFoundException("There is no user with username: " + usernamePayed);
+            } else if (userHasToPay == null) {
+                throw new UserNotFoundException("There is no user with username: " + usernameHasToPay);
+            }
 
             userPayed.split(amount, usernameHasToPay, reason);
+            splitOtherSide(userHasToPay, usernamePayed, amount, reason);
 
-            try {
-                userHasToPay.split(-amount, usernamePayed, reason);
-            } catch (UserNotFoundException e) {
-                try {
-                    userHasToPay.addFriendToFriendsList(usernamePayed);
-                    userHasToPay.split(-amount, usernamePayed, reason);
-                } catch (UsernameAlreadyExistsException usernameAlreadyExistsException) {
-                    ///impossible case
-                    usernameAlreadyExistsException.printStackTrace();
-                }
-            }
+            sequence = record(TransactionType.SPLIT, usernamePayed, List.of(usernameHasToPay), amount, null, reason,
+                    SPLIT, usernamePayed, usernameHasToPay, Double.toString(amount), reason);
+        } finally {
+            held.unlock();
         }
+        awaitDurable(sequence);
     }
 
     public void splitByGroup(String usernamePayed, double amount, String groupName, String reason)
@@ -89,48 +331,68 @@ public class DefaultSplitWise implements SplitWise {
             throw new IllegalArgumentException("Invalid argument value in method split in class DefaultSplitWise!");
         }
 
-        User userPayed = findUserByUsername(usernamePayed);
-        if (userPayed == null) {
-            throw new UserNotFoundException("There is no such user with username: " + usernamePayed);
-        }
-
-        userPayed.splitByGroup(groupName, amount, reason);
-
-        Set<String> usersHaveToPay = userPayed.getGroupMembersUsernames(groupName);
+        long sequence;
+        UserLocks.Held held = lockGroup(usernamePayed, groupName);
+        try {
+            User userPayed = findUserByUsername(usernamePayed);
+            if (userPayed == null) {
+                throw new UserNotFoundException("There is no such user with username: " + usernamePayed);
+            }
 
-        for (String username : usersHaveToPay) {
+            userPayed.splitByGroup(groupName, amount, reason);
 
-            User user = findUserByUsername(username);
-
-            try {
-                user.addFriendToFriendsList(usernamePayed);
-            } catch (UsernameAlreadyExistsException ignored) {
-                ///
-            }
-            user.split((2 * (-amount)) / (usersHaveToPay.size() + 1), usernamePayed, reason);
+            sequence = record(TransactionType.GROUP_SPLIT, usernamePayed, List.of(), amount, groupName, reason,
+                    SPLIT_BY_GROUP, usernamePayed, Double.toString(amount), groupName, reason);
+        } finally {
+            held.unlock();
         }
+        awaitDurable(sequence);
     }
 
     public void createGroup(String usernamePayed, String groupName, String... otherUsernames)
             throws UnableToCreateGroupException, UserNotFoundException {
         if (usernamePayed == null || usernamePayed.isEmpty() || usernamePayed.isBlank() ||
                 groupName == null || groupName.isEmpty() || groupName.isBlank() || otherUsernames == null ||
-                otherUsernames.length < 2) {
+                otherUsernames.length < 2 ||
+                Arrays.stream(otherUsernames).anyMatch(usr -> usr == null || usr.isBlank())) {
             throw new IllegalArgumentException("Invalid argument value in method createGroup in class" +
                     "DefaultSplitWise!");
         }
 
-        User user = findUserByUsername(usernamePayed);
-        if (user == null) {
-            throw new UserNotFoundException("There is no such user with this username: " + usernamePayed);
-        }
+        String[] fields = new String[otherUsernames.length + 3];
+        fields[0] = CREATE_GROUP;
+        fields[1] = usernamePayed;
+        fields[2] = groupName;
+        System.arraycopy(otherUsernames, 0, fields, 3, otherUsernames.length);
+
+        long sequence;
+        UserLocks.Held held = userLocks.lock(Arrays.copyOfRange(fields, 1, fields.length));
+        try {
+            User user = findUserByUsername(usernamePayed);
+            if (user == null) {
+                throw new UserNotFoundException("There is no such user with this username: " + usernamePayed);
+            }
 
-        for (String usr : otherUsernames) {
-            if (findUserByUsername(usr) == null) {
-                throw new UserNotFoundException("There is no such user with this username: " + usr);
+            for (String usr : otherUsernames) {
+                if (findUserByUsername(usr) == null) {
+                    throw new UserNotFoundException("There is no such user with this username: " + usr);
+                }
+            }
+            user.createGroup(groupName, otherUsernames);
+            try {
+                user.linkGroupMembers(groupName, this::findUserByUsername);
+            } catch (GroupNotFoundException e) {
+                ///impossible case
+                e.printStackTrace();
             }
+            userStore.groupCreated(user, groupName);
+
+            sequence = record(TransactionType.GROUP_JOIN, usernamePayed, List.of(otherUsernames), 0, groupName, null,
+                    fields);
+        } finally {
+            held.unlock();
         }
-        user.createGroup(groupName, otherUsernames);
+        awaitDurable(sequence);
     }
 
     public void payed(String usernamePayed, String usernameHasToPay, double amount)
@@ -141,16 +403,25 @@ public class DefaultSplitWise implements SplitWise {
                     "DefaultSplitWise!");
         }
 
-        User user = findUserByUsername(usernamePayed);
+        long sequence;
+        UserLocks.Held held = userLocks.lock(usernamePayed, usernameHasToPay);
+        try {
+            User user = findUserByUsername(usernamePayed);
 
-        if (user == null) {
-            throw new UserNotFoundException("There is no user with this username: " + usernamePayed);
-        }
+            if (user == null) {
+                throw new UserNotFoundException("There is no user with this username: " + usernamePayed);
+            }
 
-        user.payed(usernameHasToPay, amount);
+            user.payed(usernameHasToPay, amount);
 
-        User userHasToPay = findUserByUsername(usernameHasToPay);
-        userHasToPay.payed(usernamePayed, -amount);
+            payedOtherSide(findUserByUsername(usernameHasToPay), usernamePayed, amount);
+
+            sequence = record(TransactionType.PAYMENT, usernameHasToPay, List.of(usernamePayed), amount, null, null,
+                    PAYED, usernamePayed, usernameHasToPay, Double.toString(amount));
+        } finally {
+            held.unlock();
+        }
+        awaitDurable(sequence);
     }
 
     public void payedFromGroupMember(String usernamePayed, String groupName, String username, double amount)
@@ -162,15 +433,63 @@ public class DefaultSplitWise implements SplitWise {
                     "DefaultSplitWise!");
         }
 
-        User user = findUserByUsername(usernamePayed);
-        User userHasToPay = findUserByUsername(username);
-
-        if (user == null) {
+        if (findUserByUsername(usernamePayed) == null) {
             throw new UserNotFoundException("There is no user with this username: " + usernamePayed);
         }
-        user.payedFromGroupMember(groupName, username, amount);
-        userHasToPay.payed(usernamePayed, -amount);
+        if (findUserByUsername(username) == null) {
+            throw new UserNotFoundException("There is no user with this username: " + username);
+        }
 
+        long sequence;
+        UserLocks.Held held = lockGroup(usernamePayed, groupName);
+        try {
+            ///the user is looked up again under his lock, a store may have evicted him in the meantime
+            User user = findUserByUsername(usernamePayed);
+            ///the friends list of the member is not changed, his debt is derived from the group
+            user.payedFromGroupMember(groupName, username, amount);
+
+            sequence = record(TransactionType.GROUP_PAYMENT, username, List.of(usernamePayed), amount, groupName,
+                    null, PAYED_FROM_GROUP_MEMBER, usernamePayed, groupName, username, Double.toString(amount));
+        } finally {
+            held.unlock();
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Notes a bill split by the user with username {@code usernamePayed} in the friends list of the user
+     * {@code userHasToPay}, adding the user who payed to it if he is not there yet.
+     */
+    static void splitOtherSide(User userHasToPay, String usernamePayed, double amount, String reason) {
+        try {
+            userHasToPay.split(-amount, usernamePayed, reason);
+        } catch (UserNotFoundException e) {
+            try {
+                userHasToPay.addFriendToFriendsList(usernamePayed);
+                userHasToPay.split(-amount, usernamePayed, reason);
+            } catch (UsernameAlreadyExistsException | UserNotFoundException impossible) {
+                ///impossible case
+                impossible.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Notes that the user {@code userHasToPay} has returned {@code amount} to the user with username
+     * {@code usernamePayed}, adding the user who payed to his friends list if he is not there yet.
+     */
+    static void payedOtherSide(User userHasToPay, String usernamePayed, double amount) {
+        try {
+            userHasToPay.payed(usernamePayed, -amount);
+        } catch (UserNotFoundException e) {
+            try {
+                userHasToPay.addFriendToFriendsList(usernamePayed);
+                userHasToPay.payed(usernamePayed, -amount);
+            } catch (UsernameAlreadyExistsException | UserNotFoundException impossible) {
+                ///impossible case
+                impossible.printStackTrace();
+            }
+        }
     }
 
     public void register(String username, String password)
@@ -185,47 +504,263 @@ public class DefaultSplitWise implements SplitWise {
             throw new InvalidPasswordException("The password should be at least 8 characters!");
         }
 
-        User user = findUserByUsername(username);
+        long sequence;
+        UserLocks.Held held = userLocks.lock(username);
+        try {
+            if (findUserByUsername(username) != null || !userStore.add(new StandardUser(username, password,
+                    userStore.getUserIdsForNewUser()))) {
+                throw new UsernameAlreadyExistsException("There is already a user with this username!");
+            }
 
-        if (user != null) {
-            throw new UsernameAlreadyExistsException("There is already a user with this username!");
+            sequence = journal(REGISTER, username, password);
+        } finally {
+            held.unlock();
         }
+        awaitDurable(sequence);
+    }
 
-        userSet.add(new StandardUser(username, password));
+    /**
+     * @return true if the user with username {@code username} is in the memory, already loaded or decoded
+     */
+    boolean isDecoded(String username) {
+        return userStore.isResident(username);
+    }
 
+    /**
+     * @return all users, which cannot be changed through the returned map. The users who are not in the memory
+     * yet are brought to it first and stay there.
+     */
+    Map<String, User> getUsersByUsername() {
+        return userStore.getAll();
+    }
+
+    /**
+     * @return the dictionary a new user should refer to other users with, see {@link UserStore#getUserIdsForNewUser()}
+     */
+    UserIds getUserIdsForNewUser() {
+        return userStore.getUserIdsForNewUser();
     }
 
     public void addUserToFriendsList(String username1, String username2)
             throws UserNotFoundException, UsernameAlreadyExistsException {
-        if (username1 == null || username1.isEmpty() || username1.isBlank()) {
+        if (username1 == null || username1.isEmpty() || username1.isBlank() ||
+                username2 == null || username2.isEmpty() || username2.isBlank()) {
             throw new IllegalArgumentException("Invalid argument value!");
         }
 
-        User user = findUserByUsername(username1);
+        long sequence;
+        UserLocks.Held held = userLocks.lock(username1, username2);
+        try {
+            User user = findUserByUsername(username1);
 
-        User userFriend = findUserByUsername(username2);
+            User userFriend = findUserByUsername(username2);
 
-        if (user == null) {
-            throw new UserNotFoundException("There is no user with this username: " + username1);
-        } else if (userFriend == null) {
-            throw new UserNotFoundException("There is no user with this username: " + username2);
+            if (user == null) {
+                throw new UserNotFoundException("There is no user with this username: " + username1);
+            } else if (userFriend == null) {
+                throw new UserNotFoundException("There is no user with this username: " + username2);
+            }
+
+            user.addFriendToFriendsList(username2);
+
+            sequence = journal(ADD_FRIEND, username1, username2);
+        } finally {
+            held.unlock();
         }
+        awaitDurable(sequence);
+    }
 
-        user.addFriendToFriendsList(username2);
+    public List<Transfer> settleUp(String username) throws UserNotFoundException {
+        return DebtSimplifier.settleUp(this, username);
     }
 
+    /**
+     * Stores a snapshot of all users, or saves only the changed ones to a slotted snapshot,
+     * and empties the journal, whose records are already part of the snapshot.
+     */
     public void storeUsersData() {
-        Gson gson = new Gson();
+        checkpoint();
+    }
 
-        try (var bufferedWriter = Files.newBufferedWriter(datasetFileName)) {
-            for (User user : userSet) {
-                bufferedWriter.write(gson.toJson(user));
-                bufferedWriter.newLine();
-                bufferedWriter.flush();
+    /**
+     * Seals the journal and stores a new snapshot which includes it. Only sealing the journal
+     * is synchronized with the operations; the snapshot itself is built from the previous one
+     * and the sealed segments.
+     */
+    public void checkpoint() {
+        synchronized (checkpointLock) {
+            long generation = lastSealedGeneration + 1;
+            journal.rotate(sealedJournalPathOf(datasetFileName, generation));
+            lastSealedGeneration = generation;
+            ///the transactions of the sealed records are written to the ledger once the records are durable,
+            ///so forcing it now keeps them after the segments are deleted
+            ledger.force();
+
+            ///the users the sealed segments do not touch are never decoded from a slotted snapshot
+            MemoryUserStore touchedUsers = slottedSnapshot != null ? new MemoryUserStore(slottedSnapshot) : null;
+            DefaultSplitWise snapshot = new DefaultSplitWise(datasetFileName, generation, maxResidentBytes,
+                    touchedUsers);
+            try {
+                if (touchedUsers != null) {
+                    slottedSnapshot.save(generation, touchedUsers.getChangedUsers());
+                } else {
+                    snapshotFormat.write(datasetFileName, generation, snapshot.userStore.getUsers());
+                }
+            } finally {
+                snapshot.userStore.close();
             }
 
-        } catch (IOException e) {
-            throw new IllegalStateException("A problem occurred while writing to a file");
+            for (long sealedGeneration : sealedGenerations(datasetFileName)) {
+                if (sealedGeneration <= generation) {
+                    deleteSealedJournal(sealedGeneration);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the background checkpoints, if there are any, and closes the journal.
+     */
+    public void close() {
+        if (checkpointer != null) {
+            checkpointer.close();
+        }
+        synchronized (checkpointLock) {
+            journal.close();
+            ledger.close();
+            userStore.close();
+            if (slottedSnapshot != null) {
+                slottedSnapshot.close();
+            }
+        }
+    }
+
+    /**
+     * @return the history of the bills and payments, to which new projections can be added
+     */
+    public Ledger getLedger() {
+        return ledger;
+    }
+
+    /**
+     * @return the counters of the batches of journaled operations forced to the disk
+     */
+    public GroupCommitStatistics getJournalStatistics() {
+        return journal.getStatistics();
+    }
+
+    /**
+     * Takes the locks of the creator of the group named {@code groupName} and of all its members.
+     * The members of a group never change, so they can be read before their locks are taken.
+     *
+     * @throws UserNotFoundException  if there is no user with username {@code usernameCreator}
+     * @throws GroupNotFoundException if the user has no group named {@code groupName}
+     */
+    private UserLocks.Held lockGroup(String usernameCreator, String groupName)
+            throws UserNotFoundException, GroupNotFoundException {
+        Set<String> members;
+        UserLocks.Held held = userLocks.lock(usernameCreator);
+        try {
+            User creator = findUserByUsername(usernameCreator);
+            if (creator == null) {
+                throw new UserNotFoundException("There is no such user with username: " + usernameCreator);
+            }
+            members = creator.getGroupMembersUsernames(groupName);
+        } finally {
+            held.unlock();
+        }
+
+        String[] usernames = members.toArray(new String[members.size() + 1]);
+        usernames[members.size()] = usernameCreator;
+        return userLocks.lock(usernames);
+    }
+
+    /**
+     * Writes a record of {@code fields} to the journal, if the journal is open.
+     *
+     * @return the sequence number of the record, to be passed to {@link #awaitDurable(long)}
+     */
+    long journal(String... fields) {
+        return journal != null ? journal.write(fields) : NOT_JOURNALED;
+    }
+
+    /**
+     * Appends a transaction of {@code amount} leva to the ledger and writes a record of the operation
+     * {@code fields} together with the transaction to the journal, if the journal is open.
+     *
+     * @return the sequence number of the record, to be passed to {@link #awaitDurable(long)}
+     */
+    long record(TransactionType type, String payer, List<String> payees, double amount, String group,
+                String reason, String... fields) {
+        if (journal == null) {
+            return NOT_JOURNALED;
+        }
+
+        return ledger.append(type, payer, payees, Money.toMinorUnits(amount), group, reason, transaction -> {
+            String[] record = Arrays.copyOf(fields, fields.length + 1 + transaction.length);
+            record[fields.length] = TRANSACTION_SEPARATOR;
+            System.arraycopy(transaction, 0, record, fields.length + 1, transaction.length);
+            return journal.write(record);
+        });
+    }
+
+    void awaitDurable(long sequence) {
+        if (journal != null && sequence != NOT_JOURNALED) {
+            journal.awaitDurable(sequence);
+        }
+    }
+
+    /**
+     * Applies a single record of the journal and restores its transaction, if it has one, to the ledger.
+     * The journal is not open yet while it is being replayed, so the replayed operations are not journaled
+     * again and their transactions are not appended again.
+     */
+    private void replay(String[] record) {
+        int transactionStart = Arrays.asList(record).indexOf(TRANSACTION_SEPARATOR);
+        if (transactionStart < 0) {
+            replayOperation(record);
+            return;
+        }
+
+        replayOperation(Arrays.copyOf(record, transactionStart));
+        if (ledger != null) {
+            ledger.restore(Arrays.copyOfRange(record, transactionStart + 1, record.length));
+        }
+    }
+
+    private void replayOperation(String[] record) {
+        try {
+            switch (record[0]) {
+                case REGISTER -> register(record[1], record[2]);
+                case ADD_FRIEND -> replayAddUserToFriendsList(record[1], record[2]);
+                case CREATE_GROUP -> createGroup(record[1], record[2],
+                        Arrays.copyOfRange(record, 3, record.length));
+                case SPLIT -> split(record[1], record[2], Double.parseDouble(record[3]), record[4]);
+                case SPLIT_BY_GROUP -> splitByGroup(record[1], Double.parseDouble(record[2]), record[3], record[4]);
+                case PAYED -> payed(record[1], record[2], Double.parseDouble(record[3]));
+                case PAYED_FROM_GROUP_MEMBER -> payedFromGroupMember(record[1], record[2], record[3],
+                        Double.parseDouble(record[4]));
+                default -> throw new IllegalStateException("Unknown journal record: " + record[0]);
+            }
+        } catch (InvalidUsernameException | InvalidPasswordException | UsernameAlreadyExistsException |
+                UserNotFoundException | GroupNotFoundException | UnableToCreateGroupException e) {
+            throw new IllegalStateException("The journal does not match the database: " + e.getMessage());
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalStateException("Malformed journal record: " + String.join(" ", record), e);
+        }
+    }
+
+    /**
+     * Replays adding a friend, who may already be in the friends list: an engine which applies the two
+     * sides of an operation separately, like {@link ShardedSplitWise}, journals a split before its other
+     * side adds the payer to the friends list, so a later journaled adding of the same friend may have
+     * been applied first.
+     */
+    private void replayAddUserToFriendsList(String username1, String username2) throws UserNotFoundException {
+        try {
+            addUserToFriendsList(username1, username2);
+        } catch (UsernameAlreadyExistsException e) {
+            System.err.println("Skipping a journaled friend who is already in the friends list: " + username2);
         }
     }
 }
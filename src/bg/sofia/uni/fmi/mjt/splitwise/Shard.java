@@ -0,0 +1,180 @@
+package bg.sofia.uni.fmi.mjt.splitwise;
+
+import bg.sofia.uni.fmi.mjt.splitwise.collections.BoundedMpscQueue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a single thread which owns a partition of the users of {@link ShardedSplitWise}.
+ * It takes two kinds of work from bounded lock-free queues: commands submitted by the threads
+ * which serve the clients and messages sent by the other shards. A message changes only the users
+ * of the shard and never sends other messages, so while a shard waits for room in the queue of
+ * another shard it handles its own messages, and the shards never wait for each other in a cycle.
+ */
+final class Shard {
+    private static final int MAX_COMMANDS_PER_RUN = 64;
+    private static final int MAX_IDLE_SPINS = 256;
+    private static final long FULL_QUEUE_BACKOFF_NANOS = 10_000;
+
+    private final BoundedMpscQueue<Runnable> commands;
+    private final BoundedMpscQueue<Runnable> messages;
+    private final Thread thread;
+
+    private volatile boolean isSleeping;
+    private volatile boolean isStopped;
+
+    /**
+     * @param queueCapacity the capacity of the queues of commands and of messages, a power of two
+     */
+    Shard(int index, int queueCapacity) {
+        this.commands = new BoundedMpscQueue<>(queueCapacity);
+        this.messages = new BoundedMpscQueue<>(queueCapacity);
+
+        this.thread = new Thread(this::run, "splitwise-shard-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Submits {@code task} from a thread which is not a shard, waiting while the queue of commands is full.
+     *
+     * @return the future result of {@code task}, completed exceptionally with whatever it throws
+     * @throws IllegalStateException if the shard is stopped
+     */
+    <T> CompletableFuture<T> submit(Task<T> task) {
+        if (isStopped) {
+            throw new IllegalStateException("The shard " + thread.getName() + " is stopped");
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable command = () -> {
+            try {
+                result.complete(task.run());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        };
+
+        while (!commands.offer(command)) {
+            LockSupport.parkNanos(FULL_QUEUE_BACKOFF_NANOS);
+        }
+        wakeUp();
+
+        return result;
+    }
+
+    /**
+     * Sends {@code message} from the current shard to {@code target}, which applies it on its own thread.
+     * A message to the current shard itself is applied immediately. Must be called on the thread of the shard.
+     */
+    void send(Shard target, Runnable message) {
+        if (target == this) {
+            message.run();
+            return;
+        }
+
+        while (!target.messages.offer(message)) {
+            if (!runMessages()) {
+                Thread.onSpinWait();
+            }
+        }
+        target.wakeUp();
+    }
+
+    /**
+     * Stops the shard once it has handled all its queued commands and messages and waits for it.
+     * The caller should make sure that no other shard sends it messages anymore.
+     */
+    void stop() {
+        isStopped = true;
+        LockSupport.unpark(thread);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void wakeUp() {
+        if (isSleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        int idleSpins = 0;
+
+        while (true) {
+            boolean hasWorked = runMessages();
+            hasWorked |= runCommands();
+
+            if (hasWorked) {
+                idleSpins = 0;
+            } else if (isStopped) {
+                if (messages.isEmpty() && commands.isEmpty()) {
+                    return;
+                }
+            } else if (++idleSpins < MAX_IDLE_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                ///the queues are checked again after announcing the sleep, so a wake up is never missed
+                isSleeping = true;
+                if (messages.isEmpty() && commands.isEmpty() && !isStopped) {
+                    LockSupport.park(this);
+                }
+                isSleeping = false;
+                idleSpins = 0;
+            }
+        }
+    }
+
+    /**
+     * @return whether there was any message to handle
+     */
+    private boolean runMessages() {
+        boolean hasWorked = false;
+
+        Runnable message;
+        while ((message = messages.poll()) != null) {
+            hasWorked = true;
+            try {
+                message.run();
+            } catch (RuntimeException e) {
+                System.err.println("A problem occurred while applying a message on shard " +
+                        thread.getName() + ": " + e.getMessage());
+            }
+        }
+        return hasWorked;
+    }
+
+    /**
+     * Runs the queued commands, each of them after the messages sent before it was submitted.
+     *
+     * @return whether there was any command to run
+     */
+    private boolean runCommands() {
+        int numberOfCommands = 0;
+
+        Runnable command;
+        while (numberOfCommands < MAX_COMMANDS_PER_RUN && (command = commands.poll()) != null) {
+            numberOfCommands++;
+            runMessages();
+            command.run();
+        }
+        return numberOfCommands > 0;
+    }
+
+    /**
+     * A command executed on the thread of a shard. The exceptions of the users extend Throwable.
+     */
+    @FunctionalInterface
+    interface Task<T> {
+        T run() throws Throwable;
+    }
+}
@@ -0,0 +1,354 @@
+package bg.sofia.uni.fmi.mjt.splitwise;
+
+import bg.sofia.uni.fmi.mjt.splitwise.ledger.TransactionType;
+import bg.sofia.uni.fmi.mjt.splitwise.settlement.DebtSimplifier;
+import bg.sofia.uni.fmi.mjt.splitwise.settlement.Transfer;
+import bg.sofia.uni.fmi.mjt.splitwise.user.StandardUser;
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the alternative of {@link DefaultSplitWise} without locks. The users are partitioned by
+ * username among single-threaded shards and a user is changed only by the thread of his shard.
+ * An operation runs on the shard of the user who issued it, which changes his side of the operation
+ * and sends the other side, e.g. what the other user of a split owes, as a message to the shard of the
+ * other user. The operation is answered once its own side is applied and the other side is sent,
+ * so the other side is applied before any command submitted after the answer.
+ * A group is changed only by the shard of its creator and its members read what they owe in it
+ * on their own shards, from the immutable view of the group which every change publishes. The data
+ * is loaded, journaled and stored by a {@link DefaultSplitWise}, whose users are owned by the shards
+ * from then on.
+ */
+public class ShardedSplitWise implements SplitWise {
+    private static final int MINIMAL_USERNAME_AND_PASSWORD_LENGTH = 8;
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final DefaultSplitWise storage;
+    private final Map<String, User> usersByUsername;
+    private final Shard[] shards;
+
+    /**
+     * Starts {@code numberOfShards} shards, which take over the users of {@code storage}.
+     * The operations of {@code storage} should not be used from then on.
+     */
+    public ShardedSplitWise(DefaultSplitWise storage, int numberOfShards) {
+        if (storage == null || numberOfShards <= 0) {
+            throw new IllegalArgumentException("Invalid argument value in ShardedSplitWise constructor!");
+        }
+        this.storage = storage;
+        this.usersByUsername = new ConcurrentHashMap<>(storage.getUsersByUsername());
+
+        this.shards = new Shard[numberOfShards];
+        for (int i = 0; i < numberOfShards; i++) {
+            shards[i] = new Shard(i, QUEUE_CAPACITY);
+            shards[i].start();
+        }
+    }
+
+    private Shard shardOf(String username) {
+        int hash = username.hashCode();
+        return shards[Math.floorMod(hash ^ hash >>> 16, shards.length)];
+    }
+
+    /**
+     * @return the user with this username. He belongs to his shard, so what he owes should be read
+     * with {@link #readUser(String, Function)}.
+     */
+    public User findUserByUsername(String username) {
+        if (username == null || username.isEmpty() || username.isBlank()) {
+            throw new IllegalArgumentException("The value of the username cannot be " +
+                    "null, empty string or blank space!");
+        }
+        return usersByUsername.get(username);
+    }
+
+    public <T> T readUser(String username, Function<User, T> reader) {
+        if (reader == null) {
+            throw new IllegalArgumentException("Invalid argument value in method readUser in class " +
+                    "ShardedSplitWise!");
+        }
+
+        User user = findUserByUsername(username);
+        if (user == null) {
+            return null;
+        }
+        return call(username, () -> reader.apply(user));
+    }
+
+    public void split(String usernamePayed, String usernameHasToPay, double amount, String reason)
+            throws UserNotFoundException {
+        if (usernamePayed == null || usernamePayed.isEmpty() || usernamePayed.isBlank() ||
+                usernameHasToPay == null || usernameHasToPay.isEmpty() || usernameHasToPay.isBlank() ||
+                reason == null || reason.isEmpty() || reason.isBlank() || amount <= 0.0) {
+            throw new IllegalArgumentException("Invalid argument value in method split in class ShardedSplitWise!");
+        }
+
+        User userPayed = findUserByUsername(usernamePayed);
+        User userHasToPay = findUserByUsername(usernameHasToPay);
+
+        if (userPayed == null) {
+            throw new UserNotFoundException("There is no user with username: " + usernamePayed);
+        } else if (userHasToPay == null) {
+            throw new UserNotFoundException("There is no user with username: " + usernameHasToPay);
+        }
+
+        Shard shard = shardOf(usernamePayed);
+        long sequence = call(usernamePayed, () -> {
+            userPayed.split(amount, usernameHasToPay, reason);
+            shard.send(shardOf(usernameHasToPay),
+                    () -> DefaultSplitWise.splitOtherSide(userHasToPay, usernamePayed, amount, reason));
+
+            return storage.record(TransactionType.SPLIT, usernamePayed, List.of(usernameHasToPay), amount, null,
+                    reason, DefaultSplitWise.SPLIT, usernamePayed, usernameHasToPay, Double.toString(amount), reason);
+        }, UserNotFoundException.class);
+        storage.awaitDurable(sequence);
+    }
+
+    public void splitByGroup(String usernamePayed, double amount, String groupName, String reason)
+            throws GroupNotFoundException, UserNotFoundException {
+        if (usernamePayed == null || usernamePayed.isEmpty() || usernamePayed.isBlank() ||
+                groupName == null || groupName.isEmpty() || groupName.isBlank() ||
+                reason == null || reason.isEmpty() || reason.isBlank() || amount <= 0.0) {
+            throw new IllegalArgumentException("Invalid argument value in method split in class ShardedSplitWise!");
+        }
+
+        User userPayed = findUserByUsername(usernamePayed);
+        if (userPayed == null) {
+            throw new UserNotFoundException("There is no such user with username: " + usernamePayed);
+        }
+
+        ///a group split only changes the shared amount of the group, which its members read on their shards
+        long sequence = call(usernamePayed, () -> {
+            userPayed.splitByGroup(groupName, amount, reason);
+
+            return storage.record(TransactionType.GROUP_SPLIT, usernamePayed, List.of(), amount, groupName, reason,
+                    DefaultSplitWise.SPLIT_BY_GROUP, usernamePayed, Double.toString(amount), groupName, reason);
+        }, GroupNotFoundException.class);
+        storage.awaitDurable(sequence);
+    }
+
+    public void createGroup(String usernamePayed, String groupName, String... otherUsernames)
+            throws UnableToCreateGroupException, UserNotFoundException {
+        if (usernamePayed == null || usernamePayed.isEmpty() || usernamePayed.isBlank() ||
+                groupName == null || groupName.isEmpty() || groupName.isBlank() || otherUsernames == null ||
+                otherUsernames.length < 2 ||
+                Arrays.stream(otherUsernames).anyMatch(usr -> usr == null || usr.isBlank())) {
+            throw new IllegalArgumentException("Invalid argument value in method createGroup in class" +
+                    "ShardedSplitWise!");
+        }
+
+        User user = findUserByUsername(usernamePayed);
+        if (user == null) {
+            throw new UserNotFoundException("There is no such user with this username: " + usernamePayed);
+        }
+        for (String usr : otherUsernames) {
+            if (findUserByUsername(usr) == null) {
+                throw new UserNotFoundException("There is no such user with this username: " + usr);
+            }
+        }
+
+        String[] fields = new String[otherUsernames.length + 3];
+        fields[0] = DefaultSplitWise.CREATE_GROUP;
+        fields[1] = usernamePayed;
+        fields[2] = groupName;
+        System.arraycopy(otherUsernames, 0, fields, 3, otherUsernames.length);
+
+        Shard shard = shardOf(usernamePayed);
+        long sequence = call(usernamePayed, () -> {
+            user.createGroup(groupName, otherUsernames);
+
+            Consumer<User> invitation = user.inviteToGroup(groupName);
+            for (String username : user.getGroupMembersUsernames(groupName)) {
+                User member = findUserByUsername(username);
+                shard.send(shardOf(username), () -> invitation.accept(member));
+            }
+
+            return storage.record(TransactionType.GROUP_JOIN, usernamePayed, List.of(otherUsernames), 0, groupName,
+                    null, fields);
+        }, UnableToCreateGroupException.class);
+        storage.awaitDurable(sequence);
+    }
+
+    public void payed(String usernamePayed, String usernameHasToPay, double amount)
+            throws UserNotFoundException {
+        if (usernamePayed == null || usernamePayed.isEmpty() || usernamePayed.isBlank() ||
+                usernameHasToPay == null || usernameHasToPay.isEmpty() || usernameHasToPay.isBlank()) {
+            throw new IllegalArgumentException("Invalid argument value in method payed in class " +
+                    "ShardedSplitWise!");
+        }
+
+        User user = findUserByUsername(usernamePayed);
+        if (user == null) {
+            throw new UserNotFoundException("There is no user with this username: " + usernamePayed);
+        }
+
+        Shard shard = shardOf(usernamePayed);
+        long sequence = call(usernamePayed, () -> {
+            user.payed(usernameHasToPay, amount);
+
+            User userHasToPay = findUserByUsername(usernameHasToPay);
+            shard.send(shardOf(usernameHasToPay),
+                    () -> DefaultSplitWise.payedOtherSide(userHasToPay, usernamePayed, amount));
+
+            return storage.record(TransactionType.PAYMENT, usernameHasToPay, List.of(usernamePayed), amount, null,
+                    null, DefaultSplitWise.PAYED, usernamePayed, usernameHasToPay, Double.toString(amount));
+        }, UserNotFoundException.class);
+        storage.awaitDurable(sequence);
+    }
+
+    public void payedFromGroupMember(String usernamePayed, String groupName, String username, double amount)
+            throws UserNotFoundException, GroupNotFoundException {
+        if (usernamePayed == null || usernamePayed.isEmpty() || usernamePayed.isBlank() ||
+                username == null || username.isEmpty() || username.isBlank() ||
+                groupName == null || groupName.isEmpty() || groupName.isBlank()) {
+            throw new IllegalArgumentException("Invalid argument value in method payed in class " +
+                    "ShardedSplitWise!");
+        }
+
+        User user = findUserByUsername(usernamePayed);
+
+        if (user == null) {
+            throw new UserNotFoundException("There is no user with this username: " + usernamePayed);
+        }
+        if (findUserByUsername(username) == null) {
+            throw new UserNotFoundException("There is no user with this username: " + username);
+        }
+
+        long sequence = call(usernamePayed, () -> {
+            user.payedFromGroupMember(groupName, username, amount);
+
+            return storage.record(TransactionType.GROUP_PAYMENT, username, List.of(usernamePayed), amount,
+                    groupName, null, DefaultSplitWise.PAYED_FROM_GROUP_MEMBER, usernamePayed, groupName, username,
+                    Double.toString(amount));
+        }, UserNotFoundException.class, GroupNotFoundException.class);
+        storage.awaitDurable(sequence);
+    }
+
+    public void register(String username, String password)
+            throws InvalidUsernameException, InvalidPasswordException, UsernameAlreadyExistsException {
+        if (username == null) {
+            throw new IllegalArgumentException("The value of the username cannot be null");
+        } else if (username.length() < MINIMAL_USERNAME_AND_PASSWORD_LENGTH) {
+            throw new InvalidUsernameException("The username should be at least 8 characters!");
+        } else if (password == null) {
+            throw new IllegalArgumentException("The value of the password cannot be null!");
+        } else if (password.length() < MINIMAL_USERNAME_AND_PASSWORD_LENGTH) {
+            throw new InvalidPasswordException("The password should be at least 8 characters!");
+        }
+
+        ///the user is journaled before the others can find him, so he is never journaled after them
+        long sequence = call(username, () -> {
+            if (usersByUsername.containsKey(username)) {
+                throw new UsernameAlreadyExistsException("There is already a user with this username!");
+            }
+
+            long registered = storage.journal(DefaultSplitWise.REGISTER, username, password);
+            usersByUsername.put(username, new StandardUser(username, password, storage.getUserIdsForNewUser()));
+            return registered;
+        }, UsernameAlreadyExistsException.class);
+        storage.awaitDurable(sequence);
+    }
+
+    public void addUserToFriendsList(String username1, String username2)
+            throws UserNotFoundException, UsernameAlreadyExistsException {
+        if (username1 == null || username1.isEmpty() || username1.isBlank() ||
+                username2 == null || username2.isEmpty() || username2.isBlank()) {
+            throw new IllegalArgumentException("Invalid argument value!");
+        }
+
+        User user = findUserByUsername(username1);
+
+        if (user == null) {
+            throw new UserNotFoundException("There is no user with this username: " + username1);
+        } else if (findUserByUsername(username2) == null) {
+            throw new UserNotFoundException("There is no user with this username: " + username2);
+        }
+
+        long sequence = call(username1, () -> {
+            user.addFriendToFriendsList(username2);
+
+            return storage.journal(DefaultSplitWise.ADD_FRIEND, username1, username2);
+        }, UsernameAlreadyExistsException.class);
+        storage.awaitDurable(sequence);
+    }
+
+    public List<Transfer> settleUp(String username) throws UserNotFoundException {
+        return DebtSimplifier.settleUp(this, username);
+    }
+
+    /**
+     * Stores a full snapshot through the underlying {@link DefaultSplitWise}, which builds it from
+     * the stored data and the journal without stopping the shards.
+     */
+    public void storeUsersData() {
+        storage.storeUsersData();
+    }
+
+    /**
+     * Stops the shards once they have applied everything sent to them and closes the journal.
+     * Should be called after the last operation has returned.
+     */
+    public void close() {
+        ///every message is sent before its operation returns, so no message is sent once these return
+        for (Shard shard : shards) {
+            shard.submit(() -> null).join();
+        }
+        for (Shard shard : shards) {
+            shard.stop();
+        }
+        storage.close();
+    }
+
+    private <T> T call(String username, Shard.Task<T> task) {
+        try {
+            return shardOf(username).submit(task).join();
+        } catch (CompletionException e) {
+            throw unchecked(e.getCause());
+        }
+    }
+
+    private <T, E extends Throwable> T call(String username, Shard.Task<T> task, Class<E> exceptionType)
+            throws E {
+        return call(username, task, exceptionType, exceptionType);
+    }
+
+    /**
+     * Executes {@code task} on the shard of the user with username {@code username} and waits for it.
+     *
+     * @throws E1 if {@code task} throws it
+     * @throws E2 if {@code task} throws it
+     */
+    private <T, E1 extends Throwable, E2 extends Throwable> T call(String username, Shard.Task<T> task,
+                                                                   Class<E1> firstExceptionType,
+                                                                   Class<E2> secondExceptionType) throws E1, E2 {
+        try {
+            return shardOf(username).submit(task).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (firstExceptionType.isInstance(cause)) {
+                throw firstExceptionType.cast(cause);
+            } else if (secondExceptionType.isInstance(cause)) {
+                throw secondExceptionType.cast(cause);
+            }
+            throw unchecked(cause);
+        }
+    }
+
+    private static RuntimeException unchecked(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException("A problem occurred while executing an operation on a shard", cause);
+    }
+}
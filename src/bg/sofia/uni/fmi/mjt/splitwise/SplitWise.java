@@ -1,8 +1,13 @@
 package bg.sofia.uni.fmi.mjt.splitwise;
 
+import bg.sofia.uni.fmi.mjt.splitwise.settlement.DebtSimplifier;
+import bg.sofia.uni.fmi.mjt.splitwise.settlement.Transfer;
 import bg.sofia.uni.fmi.mjt.splitwise.user.User;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.*;
 
+import java.util.List;
+import java.util.function.Function;
+
 /**
  * @author Stiliyan Iliev
  * */
@@ -15,6 +20,17 @@ public interface SplitWise {
      */
     User findUserByUsername(String username);
 
+    /**
+     * Reads the user with username {@code username} while none of the operations which change
+     * what he sees is running, so he can be read while other users are served in parallel.
+     *
+     * @param username the username of the user we want to read
+     * @param reader   what should be read from the user
+     * @return the result of {@code reader}, or null if there is no user with this username
+     * @throws IllegalArgumentException if {@code username} is null, empty or blank space
+     */
+    <T> T readUser(String username, Function<User, T> reader);
+
     /**
      * Splits a particular bill between the user with username usernamePayed
      * and the user with username usernameHasToPay and saves the reason for this payment.
@@ -139,10 +155,28 @@ public interface SplitWise {
     void addUserToFriendsList(String username1, String username2)
             throws UserNotFoundException, UsernameAlreadyExistsException;
 
+    /**
+     * Finds the shortest list of transfers found by matching the largest debtors with the largest
+     * creditors, which settles all debts between the user with username {@code username} and
+     * everyone connected to him through friends lists and groups. Nothing is changed until
+     * the transfers are noted as payed, see {@link DebtSimplifier#settleUp(SplitWise, String)}.
+     *
+     * @param username the username of the user who wants to settle up
+     * @return the transfers, an empty list if everyone is settled up
+     * @throws IllegalArgumentException if {@code username} is null, empty string or blank space
+     * @throws UserNotFoundException    if the user with username {@code username} is not found in our database
+     */
+    List<Transfer> settleUp(String username) throws UserNotFoundException;
+
     /**
      * Stores the current data in our database.
      *
      * @throws IllegalStateException if a problem occurred while writing to our database
      */
     void storeUsersData();
+
+    /**
+     * Releases the files of our database. Should be called once, after the last operation has returned.
+     */
+    void close();
 }
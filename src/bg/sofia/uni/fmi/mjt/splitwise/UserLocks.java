@@ -0,0 +1,89 @@
+package bg.sofia.uni.fmi.mjt.splitwise;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a fixed number of locks shared by all users: every username is hashed to one of them.
+ * The locks of the users of an operation are always taken in the increasing order of their stripes,
+ * so two operations never wait for each other in a cycle, whichever users they touch.
+ */
+final class UserLocks {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * @param numberOfStripes the number of locks, a power of two
+     */
+    UserLocks(int numberOfStripes) {
+        if (numberOfStripes <= 0 || Integer.bitCount(numberOfStripes) != 1) {
+            throw new IllegalArgumentException("The number of stripes should be a positive power of two!");
+        }
+        this.stripes = new ReentrantLock[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.mask = numberOfStripes - 1;
+    }
+
+    /**
+     * Takes the locks of all users with usernames {@code usernames}, each of them once.
+     *
+     * @return the held locks, to be released with {@link Held#unlock()} in a finally block
+     */
+    Held lock(String... usernames) {
+        int[] indices = new int[usernames.length];
+        for (int i = 0; i < usernames.length; i++) {
+            indices[i] = stripeOf(usernames[i]);
+        }
+        Arrays.sort(indices);
+
+        int numberOfLocks = 0;
+        for (int i = 0; i < indices.length; i++) {
+            if (i == 0 || indices[i] != indices[i - 1]) {
+                indices[numberOfLocks++] = indices[i];
+            }
+        }
+
+        for (int i = 0; i < numberOfLocks; i++) {
+            stripes[indices[i]].lock();
+        }
+        return new Held(indices, numberOfLocks);
+    }
+
+    /**
+     * @return the lock of the stripe of the user with username {@code username}, which is shared with
+     * the other users of the stripe
+     */
+    ReentrantLock lockOf(String username) {
+        return stripes[stripeOf(username)];
+    }
+
+    private int stripeOf(String username) {
+        int hash = username.hashCode();
+        return (hash ^ hash >>> 16) & mask;
+    }
+
+    /**
+     * The locks taken by a single call of {@link #lock(String...)}.
+     */
+    final class Held {
+        private final int[] indices;
+        private final int numberOfLocks;
+
+        private Held(int[] indices, int numberOfLocks) {
+            this.indices = indices;
+            this.numberOfLocks = numberOfLocks;
+        }
+
+        /**
+         * Releases the locks, in the reverse order of taking them.
+         */
+        void unlock() {
+            for (int i = numberOfLocks - 1; i >= 0; i--) {
+                stripes[indices[i]].unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package bg.sofia.uni.fmi.mjt.splitwise.collections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a bounded queue for many producers and a single consumer which takes no locks.
+ * The elements are kept in a ring of slots, each with a sequence number which tells whether
+ * the slot is free for the producer of a given position or holds the element of the consumer's
+ * next position. Producers claim positions by advancing the tail with compare-and-set.
+ */
+public class BoundedMpscQueue<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    /**
+     * @param capacity the maximal number of elements in the queue, a power of two
+     */
+    public BoundedMpscQueue(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity of the queue should be a positive power of two!");
+        }
+        this.elements = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds {@code element} to the tail of the queue. May be called by any thread.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new IllegalArgumentException("The queue cannot hold null elements!");
+        }
+
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(slot, element);
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            ///otherwise another producer has claimed the position in the meantime
+        }
+    }
+
+    /**
+     * Removes the element at the head of the queue. May be called only by the consumer thread.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    public E poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+
+        E element = elements.get(slot);
+        elements.lazySet(slot, null);
+        sequences.set(slot, head + mask + 1);
+        head++;
+
+        return element;
+    }
+
+    /**
+     * May be called only by the consumer thread.
+     */
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
@@ -0,0 +1,10 @@
+package bg.sofia.uni.fmi.mjt.splitwise.collections;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote accepts an entry of an {@link IntLongMap} without boxing it.
+ */
+@FunctionalInterface
+public interface IntLongConsumer {
+    void accept(int key, long value);
+}
@@ -0,0 +1,163 @@
+package bg.sofia.uni.fmi.mjt.splitwise.collections;
+
+import java.util.Arrays;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a hash map from non-negative int keys to long values, kept in two primitive arrays
+ * with open addressing and linear probing, so neither the keys nor the values are boxed.
+ * Entries cannot be removed.
+ */
+public class IntLongMap {
+    private static final int EMPTY = -1;
+    private static final int DEFAULT_CAPACITY = 4;
+    private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+
+    public IntLongMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the number of entries the map should hold without growing
+     */
+    public IntLongMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("The expected size of the map cannot be negative!");
+        }
+        int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, expectedSize * 2 - 1)) << 1;
+        this.keys = new int[capacity];
+        this.values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(int key) {
+        return key >= 0 && keys[slotOf(key)] == key;
+    }
+
+    /**
+     * @return the value of {@code key}, or {@code defaultValue} if there is no such key
+     */
+    public long getOrDefault(int key, long defaultValue) {
+        if (key < 0) {
+            return defaultValue;
+        }
+        int slot = slotOf(key);
+        return keys[slot] == key ? values[slot] : defaultValue;
+    }
+
+    public void put(int key, long value) {
+        checkKey(key);
+
+        int slot = slotOf(key);
+        if (keys[slot] == key) {
+            values[slot] = value;
+        } else {
+            insert(slot, key, value);
+        }
+    }
+
+    /**
+     * Adds {@code delta} to the value of {@code key}, which is 0 if there is no such key yet.
+     */
+    public void add(int key, long delta) {
+        checkKey(key);
+
+        int slot = slotOf(key);
+        if (keys[slot] == key) {
+            values[slot] += delta;
+        } else {
+            insert(slot, key, delta);
+        }
+    }
+
+    /**
+     * @return the keys of the map, in no particular order
+     */
+    public int[] keys() {
+        int[] result = new int[size];
+        int i = 0;
+        for (int key : keys) {
+            if (key != EMPTY) {
+                result[i++] = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a map with the same entries, which changes independently of this one
+     */
+    public IntLongMap copy() {
+        IntLongMap copy = new IntLongMap();
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Passes every entry of the map to {@code action}, in no particular order.
+     */
+    public void forEach(IntLongConsumer action) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                action.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    private void insert(int slot, int key, long value) {
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        Arrays.fill(keys, EMPTY);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * @return the slot which holds {@code key} or the empty slot where it should be inserted
+     */
+    private int slotOf(int key) {
+        int mask = keys.length - 1;
+        int hash = key * GOLDEN_RATIO;
+        int slot = (hash ^ hash >>> 16) & mask;
+
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static void checkKey(int key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("The keys of the map cannot be negative!");
+        }
+    }
+}
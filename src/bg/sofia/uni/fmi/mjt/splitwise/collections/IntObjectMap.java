@@ -0,0 +1,105 @@
+package bg.sofia.uni.fmi.mjt.splitwise.collections;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a hash map from non-negative int keys to objects, kept in two arrays with open addressing
+ * and linear probing, so the keys are not boxed. Entries cannot be removed.
+ */
+public class IntObjectMap<V> {
+    private static final int EMPTY = -1;
+    private static final int DEFAULT_CAPACITY = 4;
+    private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public IntObjectMap() {
+        this.keys = new int[DEFAULT_CAPACITY];
+        this.values = new Object[DEFAULT_CAPACITY];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(int key) {
+        return key >= 0 && keys[slotOf(key)] == key;
+    }
+
+    /**
+     * @return the value of {@code key}, or null if there is no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        if (key < 0) {
+            return null;
+        }
+        int slot = slotOf(key);
+        return keys[slot] == key ? (V) values[slot] : null;
+    }
+
+    public void put(int key, V value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("The keys of the map cannot be negative!");
+        }
+
+        int slot = slotOf(key);
+        if (keys[slot] == key) {
+            values[slot] = value;
+            return;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * @return the value of {@code key}, which is created by {@code valueFactory} if there is no such key yet
+     */
+    public V computeIfAbsent(int key, IntFunction<V> valueFactory) {
+        V value = get(key);
+        if (value == null) {
+            value = valueFactory.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        Arrays.fill(keys, EMPTY);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private int slotOf(int key) {
+        int mask = keys.length - 1;
+        int hash = key * GOLDEN_RATIO;
+        int slot = (hash ^ hash >>> 16) & mask;
+
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
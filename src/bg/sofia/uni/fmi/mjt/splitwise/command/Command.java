@@ -1,10 +1,22 @@
 package bg.sofia.uni.fmi.mjt.splitwise.command;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * @author Stiliyan Iliev
  * Note: the username and the password of every user should be one word
  */
 public interface Command {
+    String DISCONNECT = "disconnect";
+
+    /**
+     * @param message a single line of the text protocol sent by a client
+     * @return true if {@code message} asks the server to close the connection
+     */
+    static boolean isDisconnect(String message) {
+        return message != null && DISCONNECT.equals(message.trim().split(" ")[0]);
+    }
+
     /**
      * @return the allowed commands to a certain user before logging in the app.
      */
@@ -30,7 +42,8 @@ public interface Command {
                 create-group groupName username1,username2,username3,...
                 payed-group-member groupName username amount
                 split-group groupName,amount,reason
-                get-groups""";
+                get-groups
+                settle-up""";
     }
 
     /**
@@ -122,4 +135,32 @@ public interface Command {
      * @return an appropriate message for the state of the process
      * */
     String getGroups(String... args);
+
+    /**
+     * @param args an array of argument which contains 1 element: the username of the user who wants
+     *             to know how to settle up all debts between him and the users connected to him
+     * @return the transfers which settle up all these debts or an appropriate message if there are none
+     * */
+    String settleUp(String... args);
+
+    /**
+     * Parses a single line of the text protocol and executes the command it names.
+     *
+     * @param message a line sent by a client, for example "split username1 username2 100 reason"
+     * @return the response which should be sent back to the client or null if the command
+     * has no response ({@code disconnect})
+     */
+    String execute(String message);
+
+    /**
+     * Like {@link #execute(String)}, but returns the response encoded in UTF-8. A response which is kept
+     * encoded, like the status of a user, is returned as it is kept, so the array must not be changed.
+     *
+     * @return the encoded response which should be sent back to the client or null if the command
+     * has no response ({@code disconnect})
+     */
+    default byte[] executeEncoded(String message) {
+        String response = execute(message);
+        return response == null ? null : response.getBytes(StandardCharsets.UTF_8);
+    }
 }
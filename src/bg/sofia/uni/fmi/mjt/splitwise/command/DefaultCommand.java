@@ -2,10 +2,13 @@ package bg.sofia.uni.fmi.mjt.splitwise.command;
 
 import bg.sofia.uni.fmi.mjt.splitwise.SplitWise;
 import bg.sofia.uni.fmi.mjt.splitwise.command.Command;
+import bg.sofia.uni.fmi.mjt.splitwise.settlement.Transfer;
 import bg.sofia.uni.fmi.mjt.splitwise.user.User;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 
 /**
@@ -21,6 +24,7 @@ public class DefaultCommand implements Command {
 
     public static final int NUMBER_OF_ARGUMENTS_3 = 3;
     public static final int NUMBER_OF_ARGUMENTS_4 = 4;
+    public static final String NO_SUCH_USER = "There is no user with this username";
 
     @Override
     public String signup(String... args) {
@@ -53,7 +57,7 @@ public class DefaultCommand implements Command {
             } else if (user.isValidPassword(args1[1])) {
                 return "Login was successful" + System.lineSeparator() +
                         "Notifications: " + System.lineSeparator() +
-                        user.getAllFriendIOweMoneyMessage();
+                        splitWise.readUser(args1[0], User::getAllFriendIOweMoneyMessage);
             } else {
                 return "Invalid password";
             }
@@ -65,11 +69,8 @@ public class DefaultCommand implements Command {
         if (args.length != 1) {
             return "[ Unknown command ]";
         }
-        User user = splitWise.findUserByUsername(args[args.length - 1]);
-
-        String status = "Friends list:\n" + user.getFriendsListToString() +
-                user.getAllUnfinishedGroups();
-        return status;
+        String status = splitWise.readUser(args[args.length - 1], User::getStatus);
+        return status != null ? status : NO_SUCH_USER;
     }
 
     @Override
@@ -199,9 +200,81 @@ public class DefaultCommand implements Command {
         if (args.length != 1) {
             return "Unknown command";
         }
-        User user = splitWise.findUserByUsername(args[args.length - 1]);
+        String groups = splitWise.readUser(args[args.length - 1], User::getAllUnfinishedGroups);
+        return groups != null ? groups : NO_SUCH_USER;
+    }
+
+    @Override
+    public String settleUp(String... args) {
+        if (args.length != 1) {
+            return "[ Invalid number of arguments in command settle-up ]";
+        }
+
+        List<Transfer> transfers;
+        try {
+            transfers = splitWise.settleUp(args[0]);
+        } catch (UserNotFoundException e) {
+            return e.getMessage();
+        }
+
+        if (transfers.isEmpty()) {
+            return "Everyone is settled up";
+        }
+
+        StringBuilder result = new StringBuilder("Settle up with " + transfers.size() + " transfers:");
+        for (Transfer transfer : transfers) {
+            result.append(System.lineSeparator()).append(transfer);
+        }
+        return String.valueOf(result);
+    }
+
+    @Override
+    public String execute(String message) {
+        message = message.trim();
+
+        String command = message.split(" ")[0];
+        String arguments = message.substring(message.indexOf(" ") + 1);
+
+        try {
+            return dispatch(command, arguments);
+        } catch (RuntimeException e) {
+            System.err.println("A problem occurred while executing [" + message + "]: " + e);
+            return "[ Unable to execute command " + command + " ]";
+        }
+    }
+
+    @Override
+    public byte[] executeEncoded(String message) {
+        String[] words = message.trim().split(" ");
+        if (words.length == 2 && words[0].equals("get-status")) {
+            try {
+                byte[] status = splitWise.readUser(words[1], User::getEncodedStatus);
+                return status != null ? status : NO_SUCH_USER.getBytes(StandardCharsets.UTF_8);
+            } catch (RuntimeException e) {
+                System.err.println("A problem occurred while executing [" + message + "]: " + e);
+                return ("[ Unable to execute command " + words[0] + " ]").getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        return Command.super.executeEncoded(message);
+    }
 
-        return user.getAllUnfinishedGroups();
+    private String dispatch(String command, String arguments) {
+        return switch (command) {
+            case "signup" -> signup(arguments.split(" "));
+            case "login" -> login(arguments.split(" "));
+            case "get-status" -> getStatus(arguments.split(" "));
+            case "split" -> split(arguments.split(" "));
+            case "payed" -> payed(arguments.split(" "));
+            case "split-group" -> splitGroup(arguments.split(","));
+            case "create-group" -> createGroup(arguments.split(" "));
+            case "add-friend" -> addFriend(arguments.split(" "));
+            case "get-groups" -> getGroups(arguments.split(" "));
+            case "payed-group-member" -> payedGroupMember(arguments.split(" "));
+            case "settle-up" -> settleUp(arguments.split(" "));
+            case "help" -> Command.help();
+            case DISCONNECT -> null;
+            default -> "[ Unknown command ]";
+        };
     }
 
 
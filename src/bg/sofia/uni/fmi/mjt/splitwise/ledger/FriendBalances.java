@@ -0,0 +1,63 @@
+package bg.sofia.uni.fmi.mjt.splitwise.ledger;
+
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntLongMap;
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntObjectMap;
+import bg.sofia.uni.fmi.mjt.splitwise.user.Money;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the projection of the debts between friends: the bills split between two users and the
+ * payments between them, outside of groups. A bill is split the way the friends lists split it, the
+ * payee owing the bigger half. The users are referred to by their ids in the dictionary of the projection,
+ * see {@link UserIds}, which is dropped together with it.
+ */
+public class FriendBalances implements Projection {
+    private static final int SPLIT_BETWEEN_TWO_FRIENDS = 2;
+    private static final int PAYEE_RANK = 1;
+    private static final long NO_BALANCE = 0;
+
+    private final UserIds userIds = new UserIds();
+    private final IntObjectMap<IntLongMap> balances = new IntObjectMap<>();
+
+    @Override
+    public synchronized void apply(Transaction transaction) {
+        switch (transaction.getType()) {
+            case SPLIT -> {
+                long bill = transaction.getAmount();
+                long half = Money.share(Math.abs(bill), SPLIT_BETWEEN_TWO_FRIENDS, PAYEE_RANK);
+                addDebt(payerIdOf(transaction), payeeIdOf(transaction), bill < 0 ? -half : half);
+            }
+            case PAYMENT -> addDebt(payeeIdOf(transaction), payerIdOf(transaction), -transaction.getAmount());
+            default -> {
+                ///the debts in groups are projected by GroupBalances
+            }
+        }
+    }
+
+    private int payerIdOf(Transaction transaction) {
+        return userIds.idOf(transaction.getPayer());
+    }
+
+    private int payeeIdOf(Transaction transaction) {
+        return userIds.idOf(transaction.getPayees().get(0));
+    }
+
+    /**
+     * @return the amount the user with username {@code friend} owes the user with username {@code username}
+     * outside of groups in stotinki, negative if the user owes him
+     */
+    public synchronized long getBalance(String username, String friend) {
+        IntLongMap friendBalances = balances.get(userIds.find(username));
+        return friendBalances != null ? friendBalances.getOrDefault(userIds.find(friend), NO_BALANCE) : NO_BALANCE;
+    }
+
+    /**
+     * Notes that the user with user id {@code debtorId} owes {@code amount} more to the user
+     * with user id {@code creditorId}.
+     */
+    private void addDebt(int creditorId, int debtorId, long amount) {
+        balances.computeIfAbsent(creditorId, id -> new IntLongMap()).add(debtorId, amount);
+        balances.computeIfAbsent(debtorId, id -> new IntLongMap()).add(creditorId, -amount);
+    }
+}
@@ -0,0 +1,99 @@
+package bg.sofia.uni.fmi.mjt.splitwise.ledger;
+
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntLongMap;
+import bg.sofia.uni.fmi.mjt.splitwise.user.Money;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the projection of the debts in groups, accounted the way the groups account them: the bills
+ * split in a group add up to its shared amount, which is split among the creator, of rank 0, and the
+ * members, ranked by username from 1, and the payments of every member are held as his offset. The members
+ * of a group are known from the joins to it, so a bill only adds to the shared amount. A group is identified
+ * by its creator and its name. The members are referred to by their ids in the dictionary of the projection,
+ * see {@link UserIds}, which is dropped together with it.
+ */
+public class GroupBalances implements Projection {
+    private static final int CREATOR_RANK = 0;
+    private static final long NO_BALANCE = 0;
+
+    private final UserIds userIds = new UserIds();
+    private final Map<String, Map<String, Account>> accountsByCreator = new HashMap<>();
+
+    @Override
+    public synchronized void apply(Transaction transaction) {
+        switch (transaction.getType()) {
+            case GROUP_JOIN -> accountOf(transaction.getPayer(), transaction.getGroup())
+                    .join(transaction.getPayees());
+            case GROUP_SPLIT -> accountOf(transaction.getPayer(), transaction.getGroup())
+                    .split(transaction.getAmount());
+            case GROUP_PAYMENT -> accountOf(transaction.getPayees().get(0), transaction.getGroup())
+                    .pay(transaction.getPayer(), transaction.getAmount());
+            default -> {
+                ///the debts between friends are projected by FriendBalances
+            }
+        }
+    }
+
+    /**
+     * @return the amount the user with username {@code member} owes the creator of the group named
+     * {@code groupName} created by the user with username {@code creator} in stotinki
+     */
+    public synchronized long getMemberBalance(String creator, String groupName, String member) {
+        Map<String, Account> accounts = accountsByCreator.get(creator);
+        Account account = accounts != null ? accounts.get(groupName) : null;
+        return account != null ? account.getBalance(userIds.find(member)) : NO_BALANCE;
+    }
+
+    private Account accountOf(String creator, String groupName) {
+        return accountsByCreator.computeIfAbsent(creator, username -> new HashMap<>())
+                .computeIfAbsent(groupName, name -> new Account());
+    }
+
+    private class Account {
+        private final IntLongMap offsets = new IntLongMap();
+        private IntLongMap ranks = new IntLongMap();
+        private List<String> members = List.of();
+        private long sharedAmount;
+
+        void join(List<String> payees) {
+            ///the shares change with the members, so the current ones are fixed in the offsets
+            for (String member : members) {
+                int memberId = userIds.idOf(member);
+                offsets.put(memberId, getBalance(memberId));
+            }
+            sharedAmount = 0;
+
+            TreeSet<String> membersByUsername = new TreeSet<>(members);
+            membersByUsername.addAll(payees);
+            members = List.copyOf(membersByUsername);
+            ranks = new IntLongMap(members.size());
+            int rank = CREATOR_RANK + 1;
+            for (String member : members) {
+                ranks.put(userIds.idOf(member), rank++);
+            }
+        }
+
+        void split(long amount) {
+            sharedAmount += amount;
+        }
+
+        void pay(String member, long amount) {
+            offsets.add(userIds.idOf(member), -amount);
+        }
+
+        long getBalance(int memberId) {
+            long balance = offsets.getOrDefault(memberId, NO_BALANCE);
+            if (!ranks.containsKey(memberId)) {
+                return balance;
+            }
+            return balance + Money.share(sharedAmount, members.size() + 1, (int) ranks.getOrDefault(memberId,
+                    CREATOR_RANK));
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package bg.sofia.uni.fmi.mjt.splitwise.ledger;
+
+import bg.sofia.uni.fmi.mjt.splitwise.storage.OperationJournal;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the immutable history of all money moved between the users. Unlike the journal, the ledger
+ * is never emptied by a checkpoint: transactions are only appended to it, so any balance can be rebuilt
+ * and audited from it. The balances are kept by {@link Projection}s, which are built from the whole history
+ * when they are added and are then given every appended transaction, so adding a read model never changes
+ * the stored data and the ledger holds none of them unless asked to. Opening the ledger reads only its
+ * last transaction.
+ * A transaction is not durable on its own: it is written into the journal record of the operation which
+ * moved the money, so the two are durable together, and it is written to the ledger only once that record
+ * is durable, so the ledger never holds a transaction whose operation was lost. A transaction lost by a crash
+ * before it reached the ledger is restored from the journal on start up, see {@link #restore(String[])}.
+ * The ledger is forced to the disk by {@link #force()}, before the journal records are deleted.
+ */
+public class Ledger implements AutoCloseable {
+    private static final int REBUILD_BATCH_SIZE = 4096;
+
+    private final Path ledgerPath;
+    private final OperationJournal file;
+    private final List<Projection> projections = new ArrayList<>();
+    private final Queue<PendingTransaction> pendingTransactions = new ArrayDeque<>();
+    private long durableJournalSequence;
+    private long lastSequence;
+
+    /**
+     * Opens the ledger for appending, creating the file if it does not exist. Only the last
+     * transaction already in it is read.
+     *
+     * @throws IllegalStateException if the ledger cannot be read or opened
+     */
+    public Ledger(Path ledgerPath) {
+        if (ledgerPath == null) {
+            throw new IllegalArgumentException("Invalid argument value in Ledger constructor!");
+        }
+        this.ledgerPath = ledgerPath;
+        this.file = new OperationJournal(ledgerPath);
+
+        String[] lastFields = OperationJournal.readLast(ledgerPath);
+        this.lastSequence = lastFields != null ? transactionOf(ledgerPath, lastFields).getSequence() : 0;
+    }
+
+    /**
+     * Passes every transaction of the ledger at {@code ledgerPath}, if there is such a ledger,
+     * to {@code transactionConsumer} in the order they were appended.
+     *
+     * @return the sequence number of the last transaction, or 0 if there are none
+     * @throws IllegalStateException if a problem occurred while reading the ledger or a transaction is malformed
+     */
+    public static long read(Path ledgerPath, Consumer<Transaction> transactionConsumer) {
+        long[] lastSequence = {0};
+
+        OperationJournal.replay(ledgerPath, fields -> {
+            Transaction transaction = transactionOf(ledgerPath, fields);
+            lastSequence[0] = transaction.getSequence();
+            transactionConsumer.accept(transaction);
+        });
+
+        return lastSequence[0];
+    }
+
+    /**
+     * Builds {@code projections} from the ledger at {@code ledgerPath}. The ledger is read once and in
+     * batches; each batch is given to all projections in parallel, each of them applying it in order.
+     *
+     * @return the sequence number of the last transaction, or 0 if there are none
+     * @throws IllegalStateException if a problem occurred while reading the ledger
+     */
+    public static long rebuild(Path ledgerPath, Projection... projections) {
+        List<Transaction> batch = new ArrayList<>(REBUILD_BATCH_SIZE);
+
+        long lastSequence = read(ledgerPath, transaction -> {
+            batch.add(transaction);
+            if (batch.size() == REBUILD_BATCH_SIZE) {
+                applyInParallel(batch, projections);
+                batch.clear();
+            }
+        });
+        applyInParallel(batch, projections);
+
+        return lastSequence;
+    }
+
+    /**
+     * @throws IllegalStateException if {@code fields} are not the fields of a transaction
+     */
+    private static Transaction transactionOf(Path ledgerPath, String[] fields) {
+        try {
+            return Transaction.of(fields);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Malformed transaction in the ledger " + ledgerPath + ": " +
+                    String.join(" ", fields), e);
+        }
+    }
+
+    private static void applyInParallel(List<Transaction> batch, Projection... projections) {
+        Arrays.stream(projections).parallel().forEach(projection -> batch.forEach(projection::apply));
+    }
+
+    /**
+     * Appends a transaction stamped with the current time and applies it to the projections. The fields
+     * of the transaction are given to {@code journal}, which writes them into the journal record of the
+     * operation; the transaction is written to the ledger once {@link #journaled(long)} is told that
+     * record is durable. Callers which change the same users should append their transactions in the order
+     * they changed them.
+     *
+     * @param journal writes the given fields of the transaction into the journal and returns the sequence
+     *                number of the record
+     * @return the sequence number of the journal record
+     * @throws IllegalStateException if a problem occurred while writing to the journal or to the ledger
+     */
+    public synchronized long append(TransactionType type, String payer, List<String> payees, long amount,
+                                    String group, String reason, ToLongFunction<String[]> journal) {
+        Transaction transaction = new Transaction(lastSequence + 1, System.currentTimeMillis(), type, payer,
+                payees, amount, group, reason);
+
+        long journalSequence = journal.applyAsLong(transaction.toFields());
+        lastSequence = transaction.getSequence();
+        pendingTransactions.add(new PendingTransaction(transaction, journalSequence));
+        writeDurable();
+
+        for (Projection projection : projections) {
+            projection.apply(transaction);
+        }
+        return journalSequence;
+    }
+
+    /**
+     * Writes to the ledger the transactions whose journal records are durable, now that the journal
+     * is durable up to the record with sequence number {@code journalSequence}.
+     *
+     * @throws IllegalStateException if a problem occurred while writing to the ledger
+     */
+    public synchronized void journaled(long journalSequence) {
+        durableJournalSequence = Math.max(durableJournalSequence, journalSequence);
+        writeDurable();
+    }
+
+    private void writeDurable() {
+        while (!pendingTransactions.isEmpty() &&
+                pendingTransactions.peek().journalSequence <= durableJournalSequence) {
+            file.write(pendingTransactions.remove().transaction.toFields());
+        }
+    }
+
+    /**
+     * Writes to the ledger the transaction with {@code fields} replayed from the journal, unless the ledger
+     * already holds it. The transactions must be restored in the order they were appended.
+     *
+     * @throws IllegalStateException if {@code fields} are not the fields of a transaction
+     *                               or a problem occurred while writing to the ledger
+     */
+    public synchronized void restore(String[] fields) {
+        Transaction transaction = transactionOf(ledgerPath, fields);
+        if (transaction.getSequence() <= lastSequence) {
+            return;
+        }
+
+        file.write(fields);
+        lastSequence = transaction.getSequence();
+        for (Projection projection : projections) {
+            projection.apply(transaction);
+        }
+    }
+
+    /**
+     * Builds {@code projection} from the whole ledger, including the transactions whose journal records
+     * are not durable yet, and keeps it up to date with the transactions appended from then on.
+     *
+     * @return {@code projection}
+     */
+    public synchronized <P extends Projection> P project(P projection) {
+        if (projection == null) {
+            throw new IllegalArgumentException("Invalid argument value in method project in class Ledger!");
+        }
+
+        rebuild(ledgerPath, projection);
+        for (PendingTransaction pending : pendingTransactions) {
+            projection.apply(pending.transaction);
+        }
+        projections.add(projection);
+        return projection;
+    }
+
+    /**
+     * @return the sequence number of the last transaction, or 0 if there are none
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Forces the transactions written to the ledger to the disk.
+     *
+     * @throws IllegalStateException if a problem occurred while forcing the ledger
+     */
+    public void force() {
+        file.force();
+    }
+
+    @Override
+    public void close() {
+        force();
+        file.close();
+    }
+
+    private static class PendingTransaction {
+        private final Transaction transaction;
+        private final long journalSequence;
+
+        PendingTransaction(Transaction transaction, long journalSequence) {
+            this.transaction = transaction;
+            this.journalSequence = journalSequence;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package bg.sofia.uni.fmi.mjt.splitwise.ledger;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a read model built only from the transactions of the {@link Ledger}. It is given every
+ * transaction once, in the order of the ledger, and never from two threads at the same time, but it
+ * may be read from other threads meanwhile.
+ */
+@FunctionalInterface
+public interface Projection {
+    void apply(Transaction transaction);
+}
@@ -0,0 +1,141 @@
+package bg.sofia.uni.fmi.mjt.splitwise.ledger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote an immutable record of the {@link Ledger}: the payer moved {@code amount} stotinki
+ * to, or shared them with, the payees, see {@link TransactionType}. The group and the reason
+ * are null for the transactions which have none, and a bill split in a group has no payees.
+ */
+public final class Transaction {
+    private static final int TYPE_FIELD = 0;
+    private static final int SEQUENCE_FIELD = 1;
+    private static final int TIMESTAMP_FIELD = 2;
+    private static final int PAYER_FIELD = 3;
+    private static final int AMOUNT_FIELD = 4;
+    private static final int GROUP_FIELD = 5;
+    private static final int REASON_FIELD = 6;
+    private static final int FIRST_PAYEE_FIELD = 7;
+    private static final String NONE = "";
+
+    private final long sequence;
+    private final long timestamp;
+    private final TransactionType type;
+    private final String payer;
+    private final List<String> payees;
+    private final long amount;
+    private final String group;
+    private final String reason;
+
+    public Transaction(long sequence, long timestamp, TransactionType type, String payer, List<String> payees,
+                       long amount, String group, String reason) {
+        if (type == null || payer == null || payees == null || payees.stream().anyMatch(Objects::isNull)) {
+            throw new IllegalArgumentException("Invalid argument value in Transaction constructor!");
+        }
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.payer = payer;
+        this.payees = List.copyOf(payees);
+        this.amount = amount;
+        this.group = group;
+        this.reason = reason;
+    }
+
+    /**
+     * @return the position of the transaction in the ledger, starting from 1
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the time the transaction was recorded, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public TransactionType getType() {
+        return type;
+    }
+
+    public String getPayer() {
+        return payer;
+    }
+
+    public List<String> getPayees() {
+        return payees;
+    }
+
+    /**
+     * @return the amount of the transaction in stotinki
+     */
+    public long getAmount() {
+        return amount;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    String[] toFields() {
+        String[] fields = new String[FIRST_PAYEE_FIELD + payees.size()];
+        fields[TYPE_FIELD] = type.getCode();
+        fields[SEQUENCE_FIELD] = Long.toString(sequence);
+        fields[TIMESTAMP_FIELD] = Long.toString(timestamp);
+        fields[PAYER_FIELD] = payer;
+        fields[AMOUNT_FIELD] = Long.toString(amount);
+        fields[GROUP_FIELD] = group != null ? group : NONE;
+        fields[REASON_FIELD] = reason != null ? reason : NONE;
+        for (int i = 0; i < payees.size(); i++) {
+            fields[FIRST_PAYEE_FIELD + i] = payees.get(i);
+        }
+        return fields;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code fields} are not the fields of a transaction
+     */
+    static Transaction of(String[] fields) {
+        if (fields.length < FIRST_PAYEE_FIELD) {
+            throw new IllegalArgumentException("A transaction has at least " + FIRST_PAYEE_FIELD +
+                    " fields, but there are " + fields.length);
+        }
+
+        return new Transaction(Long.parseLong(fields[SEQUENCE_FIELD]), Long.parseLong(fields[TIMESTAMP_FIELD]),
+                TransactionType.ofCode(fields[TYPE_FIELD]), fields[PAYER_FIELD],
+                Arrays.asList(fields).subList(FIRST_PAYEE_FIELD, fields.length),
+                Long.parseLong(fields[AMOUNT_FIELD]),
+                fields[GROUP_FIELD].equals(NONE) ? null : fields[GROUP_FIELD],
+                fields[REASON_FIELD].equals(NONE) ? null : fields[REASON_FIELD]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Transaction that = (Transaction) o;
+        return sequence == that.sequence && timestamp == that.timestamp && amount == that.amount &&
+                type == that.type && payer.equals(that.payer) && payees.equals(that.payees) &&
+                Objects.equals(group, that.group) && Objects.equals(reason, that.reason);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sequence, timestamp, type, payer, payees, amount, group, reason);
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + type + " " + payer + " -> " + payees + " " + amount +
+                (group != null ? " in " + group : "") + (reason != null ? " [" + reason + "]" : "");
+    }
+}
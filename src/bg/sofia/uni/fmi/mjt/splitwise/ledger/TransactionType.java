@@ -0,0 +1,41 @@
+package bg.sofia.uni.fmi.mjt.splitwise.ledger;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the kinds of transactions in the {@link Ledger}, each with the code it is stored under.
+ */
+public enum TransactionType {
+    ///the payer payed a bill which he shares in half with the only payee
+    SPLIT("S"),
+    ///the payer, the creator of the group, payed a bill which he shares with all members of the group;
+    ///it has no payees, the members are known from the joins to the group
+    GROUP_SPLIT("SG"),
+    ///the payees joined the group of the payer, its creator; it moves no money
+    GROUP_JOIN("GJ"),
+    ///the payer returned the amount to the only payee
+    PAYMENT("P"),
+    ///the payer, a member of the group, returned the amount to the only payee, the creator of the group
+    GROUP_PAYMENT("PG");
+
+    private final String code;
+
+    TransactionType(String code) {
+        this.code = code;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no type with the code {@code code}
+     */
+    public static TransactionType ofCode(String code) {
+        for (TransactionType type : values()) {
+            if (type.code.equals(code)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("There is no transaction type with code: " + code);
+    }
+}
@@ -0,0 +1,176 @@
+package bg.sofia.uni.fmi.mjt.splitwise.server;
+
+import bg.sofia.uni.fmi.mjt.splitwise.DefaultSplitWise;
+import bg.sofia.uni.fmi.mjt.splitwise.SplitWise;
+import bg.sofia.uni.fmi.mjt.splitwise.command.Command;
+import bg.sofia.uni.fmi.mjt.splitwise.command.DefaultCommand;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the thread-per-connection alternative of {@link SplitWiseServer}. Every client gets
+ * its own thread, preferably a virtual one, which reads its commands from a blocking socket,
+ * executes them and writes back the responses, so a slow client is held back by its own socket.
+ */
+public class BlockingSplitWiseServer {
+    private static final String SERVER_HOST = "localhost";
+    private static final Path DATASET_PATH = Path.of("database.txt");
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+    private volatile boolean isStarted = true;
+
+    private final int port;
+    private final boolean useVirtualThreads;
+
+    private final SplitWise splitWise;
+    private final Command userCommands;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+
+    private ServerSocket serverSocket;
+
+    /**
+     * Creates a server whose connections are served by virtual threads if the JVM supports them,
+     * or else by a growing pool of platform threads.
+     */
+    public BlockingSplitWiseServer(int port) {
+        this(port, VirtualThreads.isSupported());
+    }
+
+    /**
+     * @param useVirtualThreads whether the connections should be served by virtual threads
+     *                          instead of a growing pool of platform threads
+     */
+    public BlockingSplitWiseServer(int port, boolean useVirtualThreads) {
+        this(port, new DefaultSplitWise(DATASET_PATH), useVirtualThreads);
+    }
+
+    /**
+     * @param splitWise the SplitWise whose data the server serves
+     */
+    public BlockingSplitWiseServer(int port, SplitWise splitWise, boolean useVirtualThreads) {
+        this.port = port;
+        this.useVirtualThreads = useVirtualThreads;
+        this.splitWise = splitWise;
+        this.userCommands = new DefaultCommand(this.splitWise);
+    }
+
+    public void start() {
+        ExecutorService connectionThreads = useVirtualThreads ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            this.serverSocket = serverSocket;
+            serverSocket.bind(new InetSocketAddress(SERVER_HOST, port));
+
+            while (isStarted) {
+                Socket socket = serverSocket.accept();
+                System.out.println("Connection accepted from client " + socket.getRemoteSocketAddress());
+
+                openSockets.add(socket);
+                connectionThreads.execute(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            if (isStarted) {
+                System.err.println("There is a problem with the server socket: " + e.getMessage());
+                System.err.println(e);
+            }
+        } finally {
+            connectionThreads.shutdown();
+        }
+
+        ///the connection threads are blocked reading their sockets, so these are closed to let them return
+        closeOpenSockets();
+        try {
+            if (!connectionThreads.awaitTermination(SHUTDOWN_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS)) {
+                System.err.println("Some commands were still executing when the server stopped");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("The server was interrupted while waiting for the executing commands");
+        }
+
+        splitWise.storeUsersData();
+        splitWise.close();
+        System.out.println("Server stopped");
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        isStarted = false;
+
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.err.println("A problem occurred while closing the server socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeOpenSockets() {
+        for (Socket socket : openSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("A problem occurred while closing a client connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves a single client until it disconnects. The responses to pipelined commands
+     * are flushed together once there is nothing more to read.
+     */
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedOutputStream writer = new BufferedOutputStream(socket.getOutputStream())) {
+
+            String message;
+            while ((message = reader.readLine()) != null) {
+                System.out.println("Message [" + message + "] received from client " +
+                        socket.getRemoteSocketAddress());
+
+                byte[] response = userCommands.executeEncoded(message);
+
+                if (Command.isDisconnect(message)) {
+                    break;
+                } else if (response != null) {
+                    writer.write(response);
+                    writer.write(LINE_SEPARATOR);
+                }
+
+                if (!reader.ready()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        } catch (SocketException e) {
+            System.out.println("Client " + socket.getRemoteSocketAddress() + " has closed the connection");
+        } catch (IOException e) {
+            System.err.println("A problem occurred with a client connection: " + e.getMessage());
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+}
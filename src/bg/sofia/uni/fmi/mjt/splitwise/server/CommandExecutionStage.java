@@ -0,0 +1,165 @@
+package bg.sofia.uni.fmi.mjt.splitwise.server;
+
+import bg.sofia.uni.fmi.mjt.splitwise.command.Command;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote executes the commands of the clients away from the reactor threads.
+ * Every command is routed to a serial lane chosen by the username of the user who issued it,
+ * so the commands of one user are executed one after another in the order they were received,
+ * while the commands of different users run in parallel on the worker threads, synchronized
+ * only by the SplitWise itself.
+ */
+class CommandExecutionStage {
+    private static final int MAX_COMMANDS_PER_LANE_RUN = 64;
+
+    private final Command userCommands;
+
+    private final ExecutorService workers;
+    private final Lane[] lanes;
+
+    /**
+     * Creates a stage which executes the commands directly on the thread which submits them.
+     */
+    CommandExecutionStage(Command userCommands) {
+        this.userCommands = userCommands;
+        this.workers = null;
+        this.lanes = null;
+    }
+
+    /**
+     * @param numberOfLanes     the number of serial lanes, which is also the number of worker
+     *                          threads if {@code useVirtualThreads} is false
+     * @param useVirtualThreads whether every run of a lane should get its own virtual thread
+     */
+    CommandExecutionStage(Command userCommands, int numberOfLanes, boolean useVirtualThreads) {
+        if (numberOfLanes <= 0) {
+            throw new IllegalArgumentException("The number of lanes should be positive!");
+        }
+        this.userCommands = userCommands;
+        this.workers = useVirtualThreads ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(numberOfLanes, new WorkerThreadFactory());
+
+        this.lanes = new Lane[numberOfLanes];
+        for (int i = 0; i < numberOfLanes; i++) {
+            lanes[i] = new Lane(workers);
+        }
+    }
+
+    /**
+     * @param message a single line of the text protocol
+     * @return the future response to {@code message} encoded in UTF-8, which completes with null
+     * if the command has no response
+     */
+    CompletableFuture<byte[]> submit(String message) {
+        if (lanes == null) {
+            return CompletableFuture.completedFuture(execute(message));
+        }
+
+        Lane lane = lanes[Math.floorMod(issuerOf(message).hashCode(), lanes.length)];
+
+        return CompletableFuture.supplyAsync(() -> execute(message), lane);
+    }
+
+    /**
+     * Stops accepting commands and waits for the submitted ones to be executed.
+     *
+     * @return false if some commands were still executing after {@code timeout}
+     */
+    boolean shutdown(Duration timeout) throws InterruptedException {
+        if (workers == null) {
+            return true;
+        }
+
+        workers.shutdown();
+        return workers.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private byte[] execute(String message) {
+        return userCommands.executeEncoded(message);
+    }
+
+    /**
+     * @return the username of the user who has sent {@code message}. The client appends it to every
+     * command after logging in, except for split and split-group, where it is the first argument.
+     * Before logging in it is the first argument of signup and login.
+     */
+    static String issuerOf(String message) {
+        String[] words = message.trim().split(" ");
+        if (words.length < 2) {
+            return "";
+        }
+
+        return switch (words[0]) {
+            case "split-group" -> words[1].split(",")[0];
+            case "split", "signup", "login" -> words[1];
+            default -> words[words.length - 1];
+        };
+    }
+
+    /**
+     * Runs the submitted tasks one at a time, in the order of their submission, on the
+     * backing executor. A lane occupies at most one thread of the executor at a time.
+     */
+    private static final class Lane implements Executor, Runnable {
+        private final Executor executor;
+        private final Queue<Runnable> tasks;
+        private final AtomicBoolean isScheduled;
+
+        private Lane(Executor executor) {
+            this.executor = executor;
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.isScheduled = new AtomicBoolean();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            int executedTasks = 0;
+            while (executedTasks < MAX_COMMANDS_PER_LANE_RUN && (task = tasks.poll()) != null) {
+                task.run();
+                executedTasks++;
+            }
+
+            isScheduled.set(false);
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (isScheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "splitwise-worker-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package bg.sofia.uni.fmi.mjt.splitwise.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the state of a single client connection, attached to its selection key.
+ * Assembles the newline-delimited commands from whatever the socket delivers and
+ * keeps the part of the responses which the socket has not accepted yet.
+ * The responses to all commands received in one read are sent with a single gathering write of their
+ * encoded forms, which are not copied, always in the order in which the commands were received, however
+ * their execution is scheduled.
+ * Once a disconnect command is reached, or the client has stopped sending, the connection is closing:
+ * no more responses are collected and it is closed only after everything queued has been written.
+ */
+class Connection {
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_FRAME_SIZE = 1024 * 1024;
+    private static final byte FRAME_DELIMITER = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Always in write mode: the bytes in [frameStart, position) are not consumed yet.
+     */
+    private ByteBuffer readBuffer;
+    private int frameStart;
+    private int scanPosition;
+
+    private final Queue<PendingResponse> pendingResponses;
+    private final Queue<ByteBuffer> writeQueue;
+    private int pendingBytes;
+    private boolean isInputEnded;
+    private boolean isClosing;
+
+    Connection() {
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.pendingResponses = new ArrayDeque<>();
+        this.writeQueue = new ArrayDeque<>();
+    }
+
+    /**
+     * Reads whatever is available in {@code socketChannel}.
+     *
+     * @return the number of bytes read or -1 if the client has closed the connection
+     * @throws IOException if a single command is longer than the maximal frame size
+     */
+    int read(SocketChannel socketChannel) throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            makeRoom();
+        }
+        return socketChannel.read(readBuffer);
+    }
+
+    /**
+     * @return the next complete command without its line delimiter or null if
+     * the rest of the received bytes do not form a complete command yet
+     */
+    String nextFrame() {
+        int end = readBuffer.position();
+
+        for (int i = scanPosition; i < end; i++) {
+            if (readBuffer.get(i) == FRAME_DELIMITER) {
+                int frameEnd = i;
+                if (frameEnd > frameStart && readBuffer.get(frameEnd - 1) == CARRIAGE_RETURN) {
+                    frameEnd--;
+                }
+
+                String frame = new String(readBuffer.array(), frameStart, frameEnd - frameStart,
+                        StandardCharsets.UTF_8);
+                frameStart = i + 1;
+                scanPosition = i + 1;
+                return frame;
+            }
+        }
+
+        scanPosition = end;
+        return null;
+    }
+
+    /**
+     * Remembers the future response to a command which is being executed, already encoded in UTF-8.
+     * The array is sent as it is, so it may be shared but must not be changed.
+     *
+     * @param isDisconnect whether the command closes the connection once the responses
+     *                     to the commands before it are sent
+     */
+    void addPendingEncodedResponse(CompletableFuture<byte[]> response, boolean isDisconnect) {
+        pendingResponses.add(new PendingResponse(response, isDisconnect));
+    }
+
+    /**
+     * Notes that the client will send nothing more, so the connection closes once the responses
+     * to the commands already received are sent.
+     */
+    void endOfInput() {
+        isInputEnded = true;
+        addPendingEncodedResponse(CompletableFuture.completedFuture(null), true);
+    }
+
+    /**
+     * Moves the responses of the executed commands to the batch which will be sent with the next
+     * {@link #flush(SocketChannel)}, stopping at the first command which is not executed yet,
+     * or at a disconnect command, after which the connection is closing.
+     */
+    void collectExecutedCommands() {
+        while (!isClosing && !pendingResponses.isEmpty() && pendingResponses.peek().response.isDone()) {
+            PendingResponse pendingResponse = pendingResponses.poll();
+            if (pendingResponse.isDisconnect) {
+                isClosing = true;
+                pendingResponses.clear();
+                break;
+            }
+
+            byte[] response = pendingResponse.response.join();
+            if (response != null) {
+                System.out.println("Sending response of " + response.length + " bytes to client");
+                enqueue(response);
+            }
+        }
+    }
+
+    boolean isInputEnded() {
+        return isInputEnded;
+    }
+
+    boolean isClosing() {
+        return isClosing;
+    }
+
+    int getPendingCommands() {
+        return pendingResponses.size();
+    }
+
+    /**
+     * Adds {@code response} followed by a line delimiter to the responses which will be
+     * sent to the client with the next {@link #flush(SocketChannel)}.
+     */
+    private void enqueue(byte[] response) {
+        writeQueue.add(ByteBuffer.wrap(response));
+        writeQueue.add(ByteBuffer.wrap(LINE_SEPARATOR));
+        pendingBytes += response.length + LINE_SEPARATOR.length;
+    }
+
+    /**
+     * Writes as much of the queued responses as {@code socketChannel} accepts without blocking.
+     *
+     * @return true if everything queued has been written
+     */
+    boolean flush(SocketChannel socketChannel) throws IOException {
+        while (!writeQueue.isEmpty()) {
+            long written = socketChannel.write(writeQueue.toArray(new ByteBuffer[0]));
+            pendingBytes -= written;
+
+            while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                writeQueue.poll();
+            }
+            if (written == 0) {
+                return writeQueue.isEmpty();
+            }
+        }
+        return true;
+    }
+
+    int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    private void makeRoom() throws IOException {
+        if (frameStart > 0) {
+            readBuffer.flip();
+            readBuffer.position(frameStart);
+            readBuffer.compact();
+
+            scanPosition -= frameStart;
+            frameStart = 0;
+        } else if (readBuffer.capacity() < MAX_FRAME_SIZE) {
+            ByteBuffer biggerBuffer = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_FRAME_SIZE));
+            readBuffer.flip();
+            biggerBuffer.put(readBuffer);
+            readBuffer = biggerBuffer;
+        } else {
+            throw new IOException("A command cannot be longer than " + MAX_FRAME_SIZE + " bytes");
+        }
+    }
+
+    private static final class PendingResponse {
+        private final CompletableFuture<byte[]> response;
+        private final boolean isDisconnect;
+
+        private PendingResponse(CompletableFuture<byte[]> response, boolean isDisconnect) {
+            this.response = response;
+            this.isDisconnect = isDisconnect;
+        }
+    }
+}
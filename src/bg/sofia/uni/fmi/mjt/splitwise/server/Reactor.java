@@ -0,0 +1,213 @@
+package bg.sofia.uni.fmi.mjt.splitwise.server;
+
+import bg.sofia.uni.fmi.mjt.splitwise.command.Command;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a single selector loop which serves its own set of client connections.
+ * The server runs either one reactor which also accepts the connections, or several
+ * reactors which receive the already accepted channels from a dedicated acceptor thread.
+ */
+class Reactor implements Runnable {
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PENDING_COMMANDS = 1024;
+    private static final byte[] UNABLE_TO_EXECUTE = "[ Unable to execute command ]".getBytes(StandardCharsets.UTF_8);
+
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels;
+    private final Queue<SelectionKey> executedCommandKeys;
+
+    private final CommandExecutionStage executionStage;
+
+    private volatile boolean isStarted = true;
+
+    /**
+     * @param executionStage the stage, shared by all reactors of the server, which executes
+     *                       the commands received by this reactor
+     */
+    Reactor(CommandExecutionStage executionStage) throws IOException {
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.executedCommandKeys = new ConcurrentLinkedQueue<>();
+        this.executionStage = executionStage;
+    }
+
+    /**
+     * Makes this reactor accept the connections of {@code serverSocketChannel} itself.
+     * Must be called before the reactor is started.
+     */
+    void registerAcceptor(ServerSocketChannel serverSocketChannel) throws ClosedChannelException {
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hands an already accepted connection to this reactor. Safe to call from any thread.
+     */
+    void register(SocketChannel socketChannel) {
+        pendingChannels.add(socketChannel);
+        selector.wakeup();
+    }
+
+    void stop() {
+        isStarted = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try (selector) {
+            while (isStarted) {
+                selector.select();
+                registerPendingChannels();
+                sendExecutedCommandsResponses();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    try {
+                        if (key.isWritable()) {
+                            handleKeyIsWritable(key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            handleKeyIsReadable(key);
+                        } else if (key.isValid() && key.isAcceptable()) {
+                            handleKeyIsAcceptable(key);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("A problem occurred with a client connection: " + e.getMessage());
+                        disconnect(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("There is a problem with the reactor selector: " + e.getMessage());
+        }
+    }
+
+    private void registerPendingChannels() throws IOException {
+        SocketChannel socketChannel;
+        while ((socketChannel = pendingChannels.poll()) != null) {
+            socketChannel.configureBlocking(false);
+            socketChannel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void handleKeyIsReadable(SelectionKey key) throws IOException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        int r = connection.read(socketChannel);
+        if (r < 0) {
+            System.out.println("Client has stopped sending, closing the channel after the pending responses");
+            connection.endOfInput();
+            sendResponses(key, connection);
+            return;
+        }
+
+        String message;
+        while ((message = connection.nextFrame()) != null) {
+            System.out.println("Message [" + message + "] received from client " + socketChannel.getRemoteAddress());
+
+            CompletableFuture<byte[]> response = executionStage.submit(message)
+                    .exceptionally(e -> UNABLE_TO_EXECUTE);
+            connection.addPendingEncodedResponse(response, Command.isDisconnect(message));
+
+            if (!response.isDone()) {
+                response.thenRun(() -> {
+                    executedCommandKeys.add(key);
+                    selector.wakeup();
+                });
+            }
+        }
+
+        sendResponses(key, connection);
+    }
+
+    private void sendExecutedCommandsResponses() {
+        SelectionKey key;
+        while ((key = executedCommandKeys.poll()) != null) {
+            if (key.isValid()) {
+                try {
+                    sendResponses(key, (Connection) key.attachment());
+                } catch (IOException e) {
+                    System.err.println("A problem occurred with a client connection: " + e.getMessage());
+                    disconnect(key);
+                }
+            }
+        }
+    }
+
+    private void sendResponses(SelectionKey key, Connection connection) throws IOException {
+        connection.collectExecutedCommands();
+        write(key, connection);
+    }
+
+    private void handleKeyIsWritable(SelectionKey key) throws IOException {
+        write(key, (Connection) key.attachment());
+    }
+
+    /**
+     * Writes the pending responses of {@code connection}. Whatever the socket does not accept
+     * is left for the next time the key is writable, and while too much of it or too many
+     * commands are pending, or once the client has stopped sending, the reactor stops reading
+     * new commands from this client.
+     * A closing connection is only written to, and it is closed as soon as all of it is written.
+     */
+    private void write(SelectionKey key, Connection connection) throws IOException {
+        boolean isFlushed = connection.flush((SocketChannel) key.channel());
+
+        if (connection.isClosing()) {
+            if (isFlushed) {
+                disconnect(key);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+
+        int interestOps = isFlushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (connection.isInputEnded() || connection.getPendingBytes() > MAX_PENDING_BYTES
+                || connection.getPendingCommands() > MAX_PENDING_COMMANDS) {
+            interestOps &= ~SelectionKey.OP_READ;
+        }
+        key.interestOps(interestOps);
+    }
+
+    private void handleKeyIsAcceptable(SelectionKey key) throws IOException {
+        ServerSocketChannel sockChannel = (ServerSocketChannel) key.channel();
+        SocketChannel accept = sockChannel.accept();
+        if (accept == null) {
+            return;
+        }
+        accept.configureBlocking(false);
+        accept.register(selector, SelectionKey.OP_READ, new Connection());
+
+        System.out.println("Connection accepted from client " + accept.getRemoteAddress());
+    }
+
+    private void disconnect(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            System.err.println("A problem occurred while closing a client connection: " + e.getMessage());
+        }
+    }
+}
@@ -1,174 +1,289 @@
 package bg.sofia.uni.fmi.mjt.splitwise.server;
 
 import bg.sofia.uni.fmi.mjt.splitwise.DefaultSplitWise;
+import bg.sofia.uni.fmi.mjt.splitwise.ShardedSplitWise;
 import bg.sofia.uni.fmi.mjt.splitwise.SplitWise;
 import bg.sofia.uni.fmi.mjt.splitwise.command.Command;
 import bg.sofia.uni.fmi.mjt.splitwise.command.DefaultCommand;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.GroupCommitPolicy;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
-import java.util.Iterator;
-import java.util.Set;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 
 /**
  * @author Stiliyan Iliev
  * */
 public class SplitWiseServer {
     private static final int SERVER_PORT = 7777;
-    private static final int BUFFER_SIZE = 1024;
     private static final String SERVER_HOST = "localhost";
 
-    private boolean isStarted = true;
+    private volatile boolean isStarted = true;
 
     private final int port;
-    private final ByteBuffer messageBuffer;
+    private final int numberOfReactors;
 
     private final SplitWise splitWise;
-    private Command userCommands;
+    private final CommandExecutionStage executionStage;
+
+    private Reactor[] reactors;
+    private Thread[] reactorThreads;
+    private ServerSocketChannel serverSocketChannel;
 
     private static final Path DATASET_PATH = Path.of("database.txt");
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 300;
+    private static final long DEFAULT_JOURNAL_SIZE_THRESHOLD = 64L * 1024 * 1024;
+    private static final long DEFAULT_FSYNC_LINGER_MICROS = 200;
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
 
+    /**
+     * Creates a server which accepts, reads and executes the commands on a single thread.
+     */
     public SplitWiseServer(int port) {
-        this.port = port;
-        this.messageBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-        this.splitWise = new DefaultSplitWise(DATASET_PATH);
-        this.userCommands = new DefaultCommand(this.splitWise);
+        this(port, 0);
     }
 
-    public static void main(String[] args) {
-        new SplitWiseServer(SERVER_PORT).start();
+    /**
+     * @param numberOfReactors the number of selector threads which serve the client connections.
+     *                         If it is positive a dedicated acceptor thread hands the accepted
+     *                         connections to them round-robin, otherwise a single thread does
+     *                         everything.
+     */
+    public SplitWiseServer(int port, int numberOfReactors) {
+        this(port, numberOfReactors, 0, false);
     }
 
-    public void start() {
-        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
-            serverSocketChannel.bind(new InetSocketAddress(SERVER_HOST, port));
-            serverSocketChannel.configureBlocking(false);
+    /**
+     * @param numberOfWorkers   the number of serial lanes which execute the commands away from the
+     *                          reactor threads. If it is 0 the reactors execute the commands themselves.
+     * @param useVirtualThreads whether the lanes should run on virtual threads instead of
+     *                          {@code numberOfWorkers} platform threads
+     */
+    public SplitWiseServer(int port, int numberOfReactors, int numberOfWorkers, boolean useVirtualThreads) {
+        this(port, new DefaultSplitWise(DATASET_PATH), numberOfReactors, numberOfWorkers, useVirtualThreads);
+    }
 
-            Selector selector = Selector.open();
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    /**
+     * @param splitWise the SplitWise whose data the server serves
+     */
+    public SplitWiseServer(int port, SplitWise splitWise, int numberOfReactors, int numberOfWorkers,
+                           boolean useVirtualThreads) {
+        if (numberOfReactors < 0 || numberOfWorkers < 0) {
+            throw new IllegalArgumentException("The number of reactors and workers cannot be negative!");
+        }
+        this.port = port;
+        this.numberOfReactors = numberOfReactors;
+        this.splitWise = splitWise;
 
-            while (isStarted) {
-                int readyChannels = selector.select();
-                if (readyChannels == 0) {
-                    continue;
-                }
+        Command userCommands = new DefaultCommand(this.splitWise);
+        this.executionStage = numberOfWorkers == 0 ? new CommandExecutionStage(userCommands)
+                : new CommandExecutionStage(userCommands, numberOfWorkers, useVirtualThreads);
+    }
 
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+    /**
+     * @param args the options of the server:
+     *             --mode=selector|thread-per-connection how the connections are served, by default with
+     *             selectors, or with a blocking socket and a thread per connection;
+     *             --reactors=N the number of reactor threads, by default the number of available processors;
+     *             --workers=N the number of command execution lanes, by default 0 (execute on the reactors);
+     *             --virtual-threads run the command execution lanes on virtual threads. The connections
+     *             of the thread-per-connection mode run on virtual threads whenever the JVM supports them;
+     *             --snapshot-interval=SECONDS the maximal time between two background snapshots, by default 300;
+     *             --journal-size-threshold=BYTES the size of the journal which triggers a snapshot,
+     *             by default 64 MB;
+     *             --fsync-batch-size=N force the journal to the disk in batches of up to N operations
+     *             before answering them, by default the journal is not forced;
+     *             --fsync-linger-micros=N the maximal time an operation waits for others to join its batch,
+     *             by default 200;
+     *             --engine=locking|sharded how the operations run in parallel, by default under the locks of
+     *             their users, or on single-threaded shards which own the users and pass messages;
+     *             --shards=N the number of shards of the sharded engine, by default the number of
+     *             available processors;
+     *             --lazy-load decode the users of a binary or a slotted snapshot only when they are looked up,
+     *             by default all users are loaded at start up. The sharded engine takes over all users, so it loads
+     *             them anyway;
+     *             --max-resident-bytes=BYTES keep the users on the disk and only the recently used ones in the
+     *             memory, up to about BYTES of their records, by default all users are kept in the memory.
+     *             The sharded engine keeps all users in the memory
+     */
+    public static void main(String[] args) {
+        boolean isThreadPerConnection = false;
+        int numberOfReactors = Runtime.getRuntime().availableProcessors();
+        int numberOfWorkers = 0;
+        boolean useVirtualThreads = false;
+        long snapshotIntervalSeconds = DEFAULT_SNAPSHOT_INTERVAL_SECONDS;
+        long journalSizeThreshold = DEFAULT_JOURNAL_SIZE_THRESHOLD;
+        int fsyncBatchSize = 0;
+        long fsyncLingerMicros = DEFAULT_FSYNC_LINGER_MICROS;
+        boolean isSharded = false;
+        int numberOfShards = Runtime.getRuntime().availableProcessors();
+        boolean isLoadedLazily = false;
+        long maxResidentBytes = 0;
+
+        for (String arg : args) {
+            if (arg.equals("--mode=selector")) {
+                isThreadPerConnection = false;
+            } else if (arg.equals("--mode=thread-per-connection")) {
+                isThreadPerConnection = true;
+            } else if (arg.startsWith("--reactors=")) {
+                numberOfReactors = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--workers=")) {
+                numberOfWorkers = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.equals("--virtual-threads")) {
+                useVirtualThreads = true;
+            } else if (arg.startsWith("--snapshot-interval=")) {
+                snapshotIntervalSeconds = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--journal-size-threshold=")) {
+                journalSizeThreshold = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--fsync-batch-size=")) {
+                fsyncBatchSize = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--fsync-linger-micros=")) {
+                fsyncLingerMicros = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.equals("--engine=locking")) {
+                isSharded = false;
+            } else if (arg.equals("--engine=sharded")) {
+                isSharded = true;
+            } else if (arg.startsWith("--shards=")) {
+                numberOfShards = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.equals("--lazy-load")) {
+                isLoadedLazily = true;
+            } else if (arg.startsWith("--max-resident-bytes=")) {
+                maxResidentBytes = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+            } else {
+                System.err.println("Unknown option: " + arg);
+                return;
+            }
+        }
 
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    if (key.isReadable()) {
-                        SocketChannel socketChannel = (SocketChannel) key.channel();
+        if (useVirtualThreads && !VirtualThreads.isSupported()) {
+            System.err.println("Virtual threads are not supported by this JVM, using platform threads");
+            useVirtualThreads = false;
+        }
 
-                        messageBuffer.clear();
-                        int r = socketChannel.read(messageBuffer);
-                        if (r <= 0) {
-                            System.out.println("Nothing to read, closing channel");
-                            socketChannel.close();
-                            continue;
-                        }
+        GroupCommitPolicy groupCommitPolicy = fsyncBatchSize > 0
+                ? new GroupCommitPolicy(fsyncBatchSize, Duration.of(fsyncLingerMicros, ChronoUnit.MICROS))
+                : null;
+        DefaultSplitWise splitWise = maxResidentBytes > 0
+                ? new DefaultSplitWise(DATASET_PATH, Duration.ofSeconds(snapshotIntervalSeconds),
+                journalSizeThreshold, groupCommitPolicy, maxResidentBytes)
+                : new DefaultSplitWise(DATASET_PATH, Duration.ofSeconds(snapshotIntervalSeconds),
+                journalSizeThreshold, groupCommitPolicy, isLoadedLazily);
+        SplitWise engine = isSharded ? new ShardedSplitWise(splitWise, numberOfShards) : splitWise;
+
+        if (isThreadPerConnection) {
+            new BlockingSplitWiseServer(SERVER_PORT, engine, VirtualThreads.isSupported()).start();
+        } else {
+            new SplitWiseServer(SERVER_PORT, engine, numberOfReactors, numberOfWorkers, useVirtualThreads).start();
+        }
+
+        if (groupCommitPolicy != null) {
+            System.out.println("Journal group commit: " + splitWise.getJournalStatistics());
+        }
+    }
 
-                        handleKeyIsReadable(key, messageBuffer);
-                    } else if (key.isAcceptable()) {
+    public void start() {
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            this.serverSocketChannel = serverSocketChannel;
+            serverSocketChannel.bind(new InetSocketAddress(SERVER_HOST, port));
 
-                        handleKeyIsAcceptable(selector, key);
-                    }
+            if (numberOfReactors == 0) {
+                serverSocketChannel.configureBlocking(false);
 
-                    keyIterator.remove();
-                }
+                Reactor reactor = new Reactor(executionStage);
+                reactor.registerAcceptor(serverSocketChannel);
+                reactors = new Reactor[] {reactor};
+                reactor.run();
+            } else {
+                startReactors();
+                acceptConnections(serverSocketChannel);
             }
         } catch (IOException e) {
             this.stop();
-            splitWise.storeUsersData();
             System.err.println("There is a problem with the server socket: " + e.getMessage());
             System.err.println(e);
         }
 
+        ///the last commands are executed before the final store, which is the last use of the SplitWise
+        try {
+            awaitReactors();
+            if (!executionStage.shutdown(SHUTDOWN_TIMEOUT)) {
+                System.err.println("Some commands were still executing when the server stopped");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("The server was interrupted while waiting for the executing commands");
+        }
+
+        splitWise.storeUsersData();
+        splitWise.close();
         System.out.println("Server stopped");
     }
 
     /**
      * Stop the server
-     *
-     * @throws IOException
      */
     public void stop() {
         isStarted = false;
-    }
-
-    private void handleKeyIsReadable(SelectionKey key, ByteBuffer buffer) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-
-        buffer.flip();
-        String message = new String(buffer.array(), 0, buffer.limit()).trim();
-
-        System.out.println("Message [" + message + "] received from client " + socketChannel.getRemoteAddress());
-
-        String command = message.split(" ")[0];
-        String arguments = message.substring(message.indexOf(" ") + 1);
-
-        String response = null;
-
-        switch (command) {
-            case "signup" -> response = userCommands.signup(arguments.split(" "));
-
-            case "login" -> response = userCommands.login(arguments.split(" "));
-
-            case "get-status" -> response = userCommands.getStatus(arguments.split(" "));
-
-            case "split" -> response = userCommands.split(arguments.split(" "));
-
-            case "payed" -> response = userCommands.payed(arguments.split(" "));
-
-            case "split-group" -> response = userCommands.splitGroup(arguments.split(","));
-
-            case "create-group" -> response = userCommands.createGroup(arguments.split(" "));
 
-            case "add-friend" -> response = userCommands.addFriend(arguments.split(" "));
-
-            case "get-groups" -> response = userCommands.getGroups(arguments.split(" "));
-
-            case "disconnect" -> {
-                splitWise.storeUsersData();
-                disconnect(key);
+        if (reactors != null) {
+            for (Reactor reactor : reactors) {
+                reactor.stop();
+            }
+        }
+        if (serverSocketChannel != null) {
+            try {
+                serverSocketChannel.close();
+            } catch (IOException e) {
+                System.err.println("A problem occurred while closing the server socket: " + e.getMessage());
             }
+        }
+    }
 
-            case "help" -> response = Command.help();
+    private void startReactors() throws IOException {
+        reactors = new Reactor[numberOfReactors];
+        reactorThreads = new Thread[numberOfReactors];
 
-            case "payed-group-member" -> response = userCommands.payedGroupMember(arguments.split(" "));
+        for (int i = 0; i < numberOfReactors; i++) {
+            reactors[i] = new Reactor(executionStage);
 
-            default -> response = "[ Unknown command ]";
+            reactorThreads[i] = new Thread(reactors[i], "splitwise-reactor-" + i);
+            reactorThreads[i].start();
         }
+    }
 
-        if (response != null) {
-            System.out.println("Sending response to client: " + response);
-            response += System.lineSeparator();
-            buffer.clear();
-            buffer.put(response.getBytes());
-            buffer.flip();
-            socketChannel.write(buffer);
+    private void awaitReactors() throws InterruptedException {
+        if (reactorThreads == null) {
+            return;
+        }
+
+        for (Reactor reactor : reactors) {
+            reactor.stop();
+        }
+        for (Thread reactorThread : reactorThreads) {
+            reactorThread.join(SHUTDOWN_TIMEOUT.toMillis());
         }
     }
 
-    private void handleKeyIsAcceptable(Selector selector, SelectionKey key) throws IOException {
-        ServerSocketChannel sockChannel = (ServerSocketChannel) key.channel();
-        SocketChannel accept = sockChannel.accept();
-        accept.configureBlocking(false);
-        accept.register(selector, SelectionKey.OP_READ);
+    private void acceptConnections(ServerSocketChannel serverSocketChannel) throws IOException {
+        int nextReactor = 0;
 
-        System.out.println("Connection accepted from client " + accept.getRemoteAddress());
-    }
+        while (isStarted) {
+            SocketChannel accept;
+            try {
+                accept = serverSocketChannel.accept();
+            } catch (AsynchronousCloseException e) {
+                break;
+            }
 
-    private void disconnect(SelectionKey key) throws IOException {
-        key.channel().close();
-        key.cancel();
-    }
+            System.out.println("Connection accepted from client " + accept.getRemoteAddress());
 
+            reactors[nextReactor].register(accept);
+            nextReactor = (nextReactor + 1) % reactors.length;
+        }
+    }
 }
@@ -0,0 +1,74 @@
+package bg.sofia.uni.fmi.mjt.splitwise.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the project is compiled for a language level without virtual threads, so they are
+ * looked up reflectively and are available only when the server runs on a JVM which has them.
+ * A JVM on which they are a preview feature has the method which creates them even if the preview
+ * is not enabled, so they are supported only if a virtual thread is actually started and runs.
+ */
+final class VirtualThreads {
+    private static final String FACTORY_METHOD_NAME = "newVirtualThreadPerTaskExecutor";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the running JVM starts virtual threads, which is checked once
+     */
+    static boolean isSupported() {
+        return Support.IS_SUPPORTED;
+    }
+
+    private static boolean startsVirtualThreads() {
+        ExecutorService executor;
+        try {
+            executor = newVirtualThreadPerTaskExecutor();
+        } catch (RuntimeException e) {
+            return false;
+        }
+
+        try {
+            executor.submit(() -> {
+            }).get();
+            return true;
+        } catch (ExecutionException | RuntimeException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return an executor which starts a new virtual thread for every task
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod(FACTORY_METHOD_NAME).invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM: " +
+                    System.getProperty("java.version"));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof UnsupportedOperationException) {
+                throw new UnsupportedOperationException("Virtual threads are not enabled in this JVM: " +
+                        System.getProperty("java.version"), e.getCause());
+            }
+            throw new IllegalStateException("A problem occurred while creating a virtual thread executor", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("A problem occurred while creating a virtual thread executor", e);
+        }
+    }
+
+    private static final class Support {
+        private static final boolean IS_SUPPORTED = startsVirtualThreads();
+    }
+}
@@ -0,0 +1,192 @@
+package bg.sofia.uni.fmi.mjt.splitwise.settlement;
+
+import bg.sofia.uni.fmi.mjt.splitwise.SplitWise;
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UserNotFoundException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote replaces all debts between a set of users with a short list of transfers.
+ * Only the net balance of every user matters: the user who owes the most pays the user who
+ * is owed the most as much as he can, and whichever of them is not settled yet stays in line.
+ * Every transfer settles at least one user, so there are fewer transfers than users, and
+ * the work is O(n log n) for n users, whatever the number of debts between them.
+ */
+public final class DebtSimplifier {
+
+    private DebtSimplifier() {
+    }
+
+    /**
+     * Finds the shortest list of transfers which settles all debts between the user with username
+     * {@code username} and everyone connected to him through friends lists and groups. The balances
+     * of every user are read with {@link SplitWise#readUser(String, Function)}, one user at a time.
+     *
+     * @return the transfers, an empty list if everyone is settled up
+     * @throws UserNotFoundException if the user with username {@code username} is not found in {@code splitWise}
+     */
+    public static List<Transfer> settleUp(SplitWise splitWise, String username) throws UserNotFoundException {
+        if (splitWise == null || username == null || username.isEmpty() || username.isBlank()) {
+            throw new IllegalArgumentException("Invalid argument value in method settleUp!");
+        }
+        Map<String, Long> userBalances = splitWise.readUser(username, User::getBalances);
+        if (userBalances == null) {
+            throw new UserNotFoundException("There is no user with this username: " + username);
+        }
+
+        Map<String, Map<String, Long>> balancesByUsername = new HashMap<>();
+        Deque<String> usersToVisit = new ArrayDeque<>();
+        usersToVisit.add(username);
+        balancesByUsername.put(username, userBalances);
+
+        while (!usersToVisit.isEmpty()) {
+            for (String other : balancesByUsername.get(usersToVisit.poll()).keySet()) {
+                if (!balancesByUsername.containsKey(other)) {
+                    Map<String, Long> otherBalances = splitWise.readUser(other, User::getBalances);
+                    if (otherBalances != null) {
+                        balancesByUsername.put(other, otherBalances);
+                        usersToVisit.add(other);
+                    }
+                }
+            }
+        }
+
+        ///every debt is taken once, from the user with the smaller username if both of them hold it
+        Map<String, Long> netBalances = new HashMap<>();
+        for (Map.Entry<String, Map<String, Long>> user : balancesByUsername.entrySet()) {
+            for (Map.Entry<String, Long> balance : user.getValue().entrySet()) {
+                Map<String, Long> otherBalances = balancesByUsername.get(balance.getKey());
+                if (otherBalances != null && (user.getKey().compareTo(balance.getKey()) < 0 ||
+                        !otherBalances.containsKey(user.getKey()))) {
+                    netBalances.merge(user.getKey(), balance.getValue(), Long::sum);
+                    netBalances.merge(balance.getKey(), -balance.getValue(), Long::sum);
+                }
+            }
+        }
+
+        return simplify(netBalances);
+    }
+
+    /**
+     * @param netBalances the net balance of every user in stotinki: positive if the others owe him
+     *                    in total, negative if he owes them
+     * @return the transfers which settle all balances, ordered by the time they were matched
+     * @throws IllegalArgumentException if the balances do not add up to zero
+     */
+    public static List<Transfer> simplify(Map<String, Long> netBalances) {
+        if (netBalances == null) {
+            throw new IllegalArgumentException("Invalid argument value in method simplify!");
+        }
+
+        String[] usernames = netBalances.keySet().toArray(new String[0]);
+        Arrays.sort(usernames);
+
+        long[] remaining = new long[usernames.length];
+        long total = 0;
+        for (int i = 0; i < usernames.length; i++) {
+            remaining[i] = netBalances.get(usernames[i]);
+            total += remaining[i];
+        }
+        if (total != 0) {
+            throw new IllegalArgumentException("The balances should add up to zero, but they add up to " + total);
+        }
+
+        IndexHeap creditors = new IndexHeap(remaining, 1);
+        IndexHeap debtors = new IndexHeap(remaining, -1);
+
+        for (int i = 0; i < usernames.length; i++) {
+            if (remaining[i] > 0) {
+                creditors.add(i);
+            } else if (remaining[i] < 0) {
+                debtors.add(i);
+            }
+        }
+
+        List<Transfer> transfers = new ArrayList<>();
+        while (!creditors.isEmpty() && !debtors.isEmpty()) {
+            int creditor = creditors.poll();
+            int debtor = debtors.poll();
+
+            long amount = Math.min(remaining[creditor], -remaining[debtor]);
+            transfers.add(new Transfer(usernames[debtor], usernames[creditor], amount));
+
+            remaining[creditor] -= amount;
+            remaining[debtor] += amount;
+
+            if (remaining[creditor] > 0) {
+                creditors.add(creditor);
+            }
+            if (remaining[debtor] < 0) {
+                debtors.add(debtor);
+            }
+        }
+
+        return transfers;
+    }
+
+    /**
+     * A binary max-heap of user indexes, ordered by the remaining amount of the user multiplied by
+     * {@code sign}, with ties broken by index. The amount of a user may change only while he is out of the heap.
+     */
+    private static class IndexHeap {
+        private final long[] amounts;
+        private final int sign;
+        private final int[] heap;
+        private int size;
+
+        IndexHeap(long[] amounts, int sign) {
+            this.amounts = amounts;
+            this.sign = sign;
+            this.heap = new int[amounts.length];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(int index) {
+            int position = size++;
+            while (position > 0 && isBefore(index, heap[(position - 1) / 2])) {
+                heap[position] = heap[(position - 1) / 2];
+                position = (position - 1) / 2;
+            }
+            heap[position] = index;
+        }
+
+        int poll() {
+            int top = heap[0];
+            int last = heap[--size];
+
+            int position = 0;
+            while (2 * position + 1 < size) {
+                int child = 2 * position + 1;
+                if (child + 1 < size && isBefore(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!isBefore(heap[child], last)) {
+                    break;
+                }
+                heap[position] = heap[child];
+                position = child;
+            }
+            heap[position] = last;
+
+            return top;
+        }
+
+        private boolean isBefore(int i, int j) {
+            long first = sign * amounts[i];
+            long second = sign * amounts[j];
+            return first != second ? first > second : i < j;
+        }
+    }
+}
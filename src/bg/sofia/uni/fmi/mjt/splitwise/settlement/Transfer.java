@@ -0,0 +1,58 @@
+package bg.sofia.uni.fmi.mjt.splitwise.settlement;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.Money;
+
+import java.util.Objects;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a single payment which settles debts: the user {@code from} pays
+ * {@code amount} stotinki to the user {@code to}.
+ */
+public class Transfer {
+    private final String from;
+    private final String to;
+    private final long amount;
+
+    public Transfer(String from, String to, long amount) {
+        if (from == null || to == null || amount <= 0) {
+            throw new IllegalArgumentException("Invalid argument value in Transfer constructor!");
+        }
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * @return the amount of the transfer in stotinki
+     */
+    public long getAmount() {
+        return amount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Transfer transfer = (Transfer) o;
+        return amount == transfer.amount && Objects.equals(from, transfer.from) && Objects.equals(to, transfer.to);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(from, to, amount);
+    }
+
+    @Override
+    public String toString() {
+        return from + " pays " + to + " " + Money.toMajorUnits(amount) + "BGN";
+    }
+}
@@ -0,0 +1,353 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserBinaryCodec;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.GroupNotFoundException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the snapshot of the database in a compact binary form. The file starts with a header: the magic
+ * number of the format, its version and the generation of the journal segments already included in the
+ * snapshot. The users follow in blocks, each of them the length of its content, the CRC32 checksum of its
+ * content and the content itself: a string table of every string of its users, each of them length-prefixed,
+ * and the users, written by {@link UserBinaryCodec} with their strings as indexes in the table. A block of
+ * length 0 ends the snapshot, so a snapshot cut short is told from a complete one.
+ * Every block can be read on its own, so a damaged block is reported as soon as it is read.
+ * <p>
+ * Since version 2 the blocks are followed by an index, which lets {@link MappedSnapshot} find a single user
+ * without reading the others: the offsets of the blocks in the file, the offsets of the entries of the users
+ * ordered by username and the entries themselves, each of them the username, the block of the user, his
+ * offset in the block and the creators of the groups he is a member of, as numbers of their entries.
+ * A trailer of a fixed length ends the file: the offset, the length and the checksum of the index,
+ * the number of blocks, the number of users and the magic number again.
+ */
+public final class BinarySnapshot {
+    static final int MAGIC = 0x53574253;
+    static final int VERSION = 2;
+    static final int FIRST_INDEXED_VERSION = 2;
+    static final int HEADER_LENGTH = Integer.BYTES + Short.BYTES + Long.BYTES;
+    static final int TRAILER_LENGTH = Long.BYTES + 5 * Integer.BYTES;
+
+    private static final int USERS_PER_BLOCK = 1024;
+    private static final int END_OF_BLOCKS = 0;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private BinarySnapshot() {
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} to {@code userConsumer}, in the order
+     * they are stored. Every user gets a dictionary of his own.
+     *
+     * @return the generation of the snapshot
+     * @throws IllegalStateException if a problem occurred while reading the snapshot or if it is damaged
+     */
+    public static long read(Path path, Consumer<User> userConsumer) {
+        return read(path, userConsumer, UserIds::new);
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} to {@code userConsumer}, in the order
+     * they are stored. Every user refers to other users by their ids in the dictionary {@code userIds} gives him.
+     *
+     * @return the generation of the snapshot
+     * @throws IllegalStateException if a problem occurred while reading the snapshot or if it is damaged
+     */
+    static long read(Path path, Consumer<User> userConsumer, Supplier<UserIds> userIds) {
+        if (path == null || userConsumer == null || userIds == null) {
+            throw new IllegalArgumentException("Invalid argument value in method read in class BinarySnapshot!");
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalStateException("The file " + path + " is not a binary snapshot");
+            }
+            int version = in.readUnsignedShort();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalStateException("Unsupported version " + version + " of the snapshot " + path);
+            }
+            long generation = in.readLong();
+
+            int blockLength;
+            while ((blockLength = in.readInt()) != END_OF_BLOCKS) {
+                int checksum = in.readInt();
+                byte[] block = new byte[blockLength];
+                in.readFully(block);
+
+                if (checksumOf(block) != checksum) {
+                    throw new IllegalStateException("A damaged block was found in the snapshot " + path);
+                }
+                readBlock(new DataInputStream(new ByteArrayInputStream(block)), userConsumer, userIds);
+            }
+
+            return generation;
+        } catch (EOFException e) {
+            throw new IllegalStateException("The snapshot " + path + " ends unexpectedly", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading from a file", e);
+        }
+    }
+
+    /**
+     * Passes the users of a block, read from its content without the length and the checksum,
+     * to {@code userConsumer}, each with the dictionary {@code userIds} gives him.
+     */
+    static void readBlock(DataInputStream block, Consumer<User> userConsumer, Supplier<UserIds> userIds)
+            throws IOException {
+        int numberOfStrings = UserBinaryCodec.readUnsignedInt(block);
+        String[] strings = new String[numberOfStrings];
+        for (int i = 0; i < numberOfStrings; i++) {
+            byte[] bytes = new byte[UserBinaryCodec.readUnsignedInt(block)];
+            block.readFully(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int numberOfUsers = UserBinaryCodec.readUnsignedInt(block);
+        for (int i = 0; i < numberOfUsers; i++) {
+            userConsumer.accept(UserBinaryCodec.read(block, index -> {
+                if (index >= strings.length) {
+                    throw new IllegalStateException("There is no string with index " + index + " in the block");
+                }
+                return strings[index];
+            }, userIds.get()));
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot at {@code path} with a snapshot of {@code users}.
+     *
+     * @throws IllegalStateException if a problem occurred while writing the snapshot
+     */
+    public static void write(Path path, long generation, Collection<User> users) {
+        Path temporaryFile = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporaryFile)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(generation);
+            long position = HEADER_LENGTH;
+
+            List<Long> blockOffsets = new ArrayList<>();
+            List<IndexEntry> entries = new ArrayList<>(users.size());
+            List<User> blockUsers = new ArrayList<>(USERS_PER_BLOCK);
+            for (User user : users) {
+                blockUsers.add(user);
+                if (blockUsers.size() == USERS_PER_BLOCK) {
+                    blockOffsets.add(position);
+                    position += writeBlock(out, blockUsers, blockOffsets.size() - 1, entries);
+                    blockUsers.clear();
+                }
+            }
+            if (!blockUsers.isEmpty()) {
+                blockOffsets.add(position);
+                position += writeBlock(out, blockUsers, blockOffsets.size() - 1, entries);
+            }
+            out.writeInt(END_OF_BLOCKS);
+            position += Integer.BYTES;
+
+            writeIndex(out, position, blockOffsets, entries, creatorsByMember(users));
+        } catch (IOException | GroupNotFoundException e) {
+            throw new IllegalStateException("A problem occurred while writing to a file");
+        }
+
+        try {
+            Files.move(temporaryFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while replacing the database file");
+        }
+    }
+
+    /**
+     * Writes the users first, collecting their strings in the table, and then the table before them.
+     * Adds an index entry for every user, which points to him in block number {@code blockNumber}.
+     *
+     * @return the number of bytes written
+     */
+    static int writeBlock(DataOutputStream out, List<User> users, int blockNumber, List<IndexEntry> entries)
+            throws IOException {
+        Map<String, Integer> stringIndexes = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+
+        ByteArrayOutputStream userBytes = new ByteArrayOutputStream();
+        DataOutputStream usersOut = new DataOutputStream(userBytes);
+        int[] userOffsets = new int[users.size()];
+        for (int i = 0; i < users.size(); i++) {
+            userOffsets[i] = userBytes.size();
+            UserBinaryCodec.write(users.get(i), usersOut, string -> stringIndexes.computeIfAbsent(string,
+                    newString -> {
+                        strings.add(newString);
+                        return strings.size() - 1;
+                    }));
+        }
+
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(userBytes.size());
+        DataOutputStream blockOut = new DataOutputStream(blockBytes);
+        UserBinaryCodec.writeUnsigned(blockOut, strings.size());
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            UserBinaryCodec.writeUnsigned(blockOut, bytes.length);
+            blockOut.write(bytes);
+        }
+        UserBinaryCodec.writeUnsigned(blockOut, users.size());
+        int usersStart = blockBytes.size();
+        userBytes.writeTo(blockOut);
+
+        for (int i = 0; i < users.size(); i++) {
+            entries.add(new IndexEntry(users.get(i).getUsername(), blockNumber, usersStart + userOffsets[i]));
+        }
+
+        byte[] block = blockBytes.toByteArray();
+        out.writeInt(block.length);
+        out.writeInt(checksumOf(block));
+        out.write(block);
+        return 2 * Integer.BYTES + block.length;
+    }
+
+    /**
+     * @return the usernames of the creators of the groups every user is a member of, by the username of the member
+     */
+    private static Map<String, Set<String>> creatorsByMember(Collection<User> users) throws GroupNotFoundException {
+        Map<String, Set<String>> creators = new HashMap<>();
+
+        for (User user : users) {
+            for (String groupName : user.getGroupNames()) {
+                for (String member : user.getGroupMembersUsernames(groupName)) {
+                    creators.computeIfAbsent(member, username -> new LinkedHashSet<>()).add(user.getUsername());
+                }
+            }
+        }
+        return creators;
+    }
+
+    private static void writeIndex(DataOutputStream out, long indexStart, List<Long> blockOffsets,
+                                   List<IndexEntry> entries, Map<String, Set<String>> creatorsByMember)
+            throws IOException {
+        List<IndexEntry> sortedEntries = new ArrayList<>(entries.size());
+        Map<String, Integer> entryNumbers = new HashMap<>();
+        for (IndexEntry entry : entries) {
+            ///the first user with a username is the one which is loaded
+            if (entryNumbers.putIfAbsent(entry.username, entryNumbers.size()) == null) {
+                sortedEntries.add(entry);
+            }
+        }
+        sortedEntries.sort(Comparator.comparing(entry -> entry.username));
+        for (int i = 0; i < sortedEntries.size(); i++) {
+            entryNumbers.put(sortedEntries.get(i).username, i);
+        }
+
+        int entriesStart = blockOffsets.size() * Long.BYTES + sortedEntries.size() * Integer.BYTES;
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        DataOutputStream entriesOut = new DataOutputStream(entryBytes);
+        int[] entryOffsets = new int[sortedEntries.size()];
+        for (int i = 0; i < sortedEntries.size(); i++) {
+            IndexEntry entry = sortedEntries.get(i);
+            entryOffsets[i] = entriesStart + entryBytes.size();
+
+            byte[] username = entry.username.getBytes(StandardCharsets.UTF_8);
+            UserBinaryCodec.writeUnsigned(entriesOut, username.length);
+            entriesOut.write(username);
+            UserBinaryCodec.writeUnsigned(entriesOut, entry.blockNumber);
+            UserBinaryCodec.writeUnsigned(entriesOut, entry.offsetInBlock);
+
+            List<Integer> creators = new ArrayList<>();
+            for (String creator : creatorsByMember.getOrDefault(entry.username, Set.of())) {
+                Integer creatorNumber = entryNumbers.get(creator);
+                if (creatorNumber != null) {
+                    creators.add(creatorNumber);
+                }
+            }
+            UserBinaryCodec.writeUnsigned(entriesOut, creators.size());
+            for (int creator : creators) {
+                UserBinaryCodec.writeUnsigned(entriesOut, creator);
+            }
+        }
+
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(entriesStart + entryBytes.size());
+        DataOutputStream indexOut = new DataOutputStream(indexBytes);
+        for (long blockOffset : blockOffsets) {
+            indexOut.writeLong(blockOffset);
+        }
+        for (int entryOffset : entryOffsets) {
+            indexOut.writeInt(entryOffset);
+        }
+        entryBytes.writeTo(indexOut);
+
+        byte[] index = indexBytes.toByteArray();
+        out.write(index);
+        out.writeLong(indexStart);
+        out.writeInt(index.length);
+        out.writeInt(checksumOf(index));
+        out.writeInt(blockOffsets.size());
+        out.writeInt(sortedEntries.size());
+        out.writeInt(MAGIC);
+    }
+
+    /**
+     * @return true if the file at {@code path} starts with the magic number of a binary snapshot
+     */
+    static boolean isBinarySnapshot(Path path) {
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] header = in.readNBytes(Integer.BYTES);
+            return header.length == Integer.BYTES && new DataInputStream(new ByteArrayInputStream(header))
+                    .readInt() == MAGIC;
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading from a file", e);
+        }
+    }
+
+    static int checksumOf(byte[] block) {
+        CRC32 crc = new CRC32();
+        crc.update(block);
+        return (int) crc.getValue();
+    }
+
+    static int checksumOf(ByteBuffer block) {
+        CRC32 crc = new CRC32();
+        crc.update(block.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static final class IndexEntry {
+        private final String username;
+        private final int blockNumber;
+        private final int offsetInBlock;
+
+        private IndexEntry(String username, int blockNumber, int offsetInBlock) {
+            this.username = username;
+            this.blockNumber = blockNumber;
+            this.offsetInBlock = offsetInBlock;
+        }
+    }
+}
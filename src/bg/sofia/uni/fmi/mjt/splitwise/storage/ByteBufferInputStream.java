@@ -0,0 +1,32 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote reads the bytes of a buffer, usually a mapped part of a snapshot, so they can be decoded
+ * without copying them to the heap first.
+ */
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+}
@@ -0,0 +1,72 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote runs checkpoints in the background: a new snapshot is stored once the journal grows
+ * beyond a size threshold or once a snapshot interval passes with something in the journal.
+ */
+public class Checkpointer implements AutoCloseable {
+    private static final long MAX_POLL_PERIOD_MILLIS = 1000;
+
+    private final Runnable checkpoint;
+    private final OperationJournal journal;
+    private final long snapshotIntervalMillis;
+    private final long journalSizeThreshold;
+
+    private final ScheduledExecutorService scheduler;
+    private long lastCheckpointMillis;
+
+    /**
+     * Starts checking the journal periodically.
+     *
+     * @param checkpoint           stores a new snapshot and rotates {@code journal}
+     * @param snapshotInterval     the maximal time between two checkpoints while there are journaled operations
+     * @param journalSizeThreshold the size of the journal in bytes which triggers a checkpoint immediately
+     */
+    public Checkpointer(Runnable checkpoint, OperationJournal journal,
+                        Duration snapshotInterval, long journalSizeThreshold) {
+        if (snapshotInterval.isNegative() || snapshotInterval.isZero() || journalSizeThreshold <= 0) {
+            throw new IllegalArgumentException("The snapshot interval and the journal size threshold " +
+                    "should be positive!");
+        }
+        this.checkpoint = checkpoint;
+        this.journal = journal;
+        this.snapshotIntervalMillis = snapshotInterval.toMillis();
+        this.journalSizeThreshold = journalSizeThreshold;
+        this.lastCheckpointMillis = System.currentTimeMillis();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "splitwise-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long pollPeriod = Math.max(1, Math.min(MAX_POLL_PERIOD_MILLIS, snapshotIntervalMillis));
+        scheduler.scheduleWithFixedDelay(this::poll, pollPeriod, pollPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void poll() {
+        long journalSize = journal.size();
+        long now = System.currentTimeMillis();
+
+        if (journalSize >= journalSizeThreshold ||
+                (journalSize > 0 && now - lastCheckpointMillis >= snapshotIntervalMillis)) {
+            try {
+                checkpoint.run();
+            } catch (RuntimeException e) {
+                System.err.println("A problem occurred while storing a snapshot: " + e.getMessage());
+            }
+            lastCheckpointMillis = System.currentTimeMillis();
+        }
+    }
+}
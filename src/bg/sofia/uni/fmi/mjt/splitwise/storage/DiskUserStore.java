@@ -0,0 +1,527 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.GroupNotFoundException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote keeps only the recently used users in the memory, up to a number of bytes, and the rest on the disk.
+ * A slotted snapshot, see {@link SlottedSnapshot}, which stays open while the server runs is read in place, so
+ * opening the store copies nothing. A snapshot of any other format is copied, a user at a time, to a temporary
+ * slotted snapshot. The users who changed are written back to the temporary snapshot when they are evicted,
+ * and a user is read from there if he is in it, or else from the snapshot he was loaded from. The temporary
+ * snapshot is deleted when the store is closed. Both snapshots keep their indexes on the disk, so besides the
+ * users in it the memory holds only the members of the groups created since their creators were last written back.
+ * The users in the memory are weighed by the length of their records when they were read, or when they were added,
+ * and the least recently used ones are evicted when they weigh more than the limit. The users evicted together
+ * are written back by a single save. Every user in the memory has a dictionary of his own, see {@link UserIds},
+ * so the usernames he refers to are forgotten when he is evicted.
+ * <p>
+ * A member of a group refers to the group of its creator, so a creator stays in the memory as long as a member
+ * of one of his groups is there, and a user is read together with the creators of the groups he is a member of,
+ * whose invitations he accepts before anyone can see him. A user is evicted only while the lock of his stripe
+ * is free and is held by the store, so no operation is using him, and never by a thread which holds that lock
+ * itself. A user who cannot be evicted yet is skipped and the memory may exceed the limit until he can be.
+ * The store is guarded by a single lock, which is held while a user is looked up, read or written back.
+ */
+public final class DiskUserStore implements UserStore {
+    private static final String FILE_PREFIX = "splitwise-users-";
+    private static final String FILE_SUFFIX = ".store";
+    private static final int MAX_LINKED_MEMBERS = 1024;
+
+    private final long maxResidentBytes;
+    private final Function<String, ReentrantLock> locksByUsername;
+    private final SlottedSnapshot sharedSnapshot;
+    private final SlottedSnapshot writtenBack;
+
+    private final LinkedHashMap<String, Resident> residents = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> unwrittenCreatorsByMember = new HashMap<>();
+
+    private long residentBytes;
+    private boolean isBounded = true;
+
+    /**
+     * Creates a store which copies the snapshot it loads to a temporary snapshot in {@code directory}.
+     *
+     * @param maxResidentBytes the number of bytes of records the users in the memory may weigh
+     * @param locksByUsername  the lock which is held while the user with a username is used
+     * @throws IllegalStateException if the temporary snapshot cannot be created
+     */
+    public DiskUserStore(Path directory, long maxResidentBytes, Function<String, ReentrantLock> locksByUsername) {
+        this(directory, maxResidentBytes, locksByUsername, null);
+    }
+
+    /**
+     * Creates a store which reads the users from the open snapshot {@code sharedSnapshot}, which is not closed
+     * with the store, and writes back the ones who changed to a temporary snapshot in {@code directory}.
+     * The store needs no {@link #load(Path)} if {@code sharedSnapshot} is not null.
+     *
+     * @throws IllegalStateException if the temporary snapshot cannot be created
+     */
+    public DiskUserStore(Path directory, long maxResidentBytes, Function<String, ReentrantLock> locksByUsername,
+                         SlottedSnapshot sharedSnapshot) {
+        if (directory == null || maxResidentBytes <= 0 || locksByUsername == null) {
+            throw new IllegalArgumentException("Invalid argument value in DiskUserStore constructor!");
+        }
+        this.maxResidentBytes = maxResidentBytes;
+        this.locksByUsername = locksByUsername;
+        this.sharedSnapshot = sharedSnapshot;
+        this.writtenBack = SlottedSnapshot.createTemporary(directory, FILE_PREFIX, FILE_SUFFIX);
+    }
+
+    /**
+     * Copies the users of the snapshot at {@code path} to the temporary snapshot, a user at a time, without
+     * keeping any of them in the memory, unless the store reads a shared snapshot. The members of the groups
+     * of a JSON snapshot are linked to them by a second pass over it, which reads back the members of a few groups
+     * at a time and moves the amounts of a legacy database to their friends lists.
+     */
+    @Override
+    public synchronized long load(Path path) {
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid argument value in method load in class DiskUserStore!");
+        }
+        if (sharedSnapshot != null) {
+            return sharedSnapshot.getGeneration();
+        }
+
+        SnapshotFormat format = SnapshotFormat.of(path);
+        long generation = writtenBack.save(userConsumer -> format.read(path, userConsumer));
+        if (format == SnapshotFormat.JSON_LINES) {
+            linkGroupMembers(path, generation);
+        }
+        return generation;
+    }
+
+    /**
+     * Reads the JSON snapshot at {@code path} again and links the members of the groups of every creator in it,
+     * who are read back from the temporary snapshot, and writes them back.
+     */
+    private void linkGroupMembers(Path path, long generation) {
+        Map<String, User> linkedMembers = new HashMap<>();
+        SnapshotFormat.JSON_LINES.read(path, creator -> {
+            for (String groupName : creator.getGroupNames()) {
+                try {
+                    creator.linkGroupMembers(groupName,
+                            username -> linkedMembers.computeIfAbsent(username, writtenBack::read));
+                } catch (GroupNotFoundException e) {
+                    ///impossible case
+                    e.printStackTrace();
+                }
+            }
+
+            if (linkedMembers.size() >= MAX_LINKED_MEMBERS) {
+                writtenBack.save(generation, linkedMembers.values());
+                linkedMembers.clear();
+            }
+        });
+        writtenBack.save(generation, linkedMembers.values());
+    }
+
+    @Override
+    public synchronized User find(String username) {
+        Resident resident = residents.get(username);
+        if (resident != null) {
+            return resident.user;
+        }
+
+        User user = readResident(username);
+        evictLeastRecentlyUsed();
+        return user;
+    }
+
+    /**
+     * Reads the user with username {@code username} to the memory, together with the creators of the groups he
+     * is a member of who are not there, and their creators in turn. Every user who is read accepts the invitations
+     * of all his creators.
+     *
+     * @return the user, or null if there is no such user
+     */
+    private User readResident(String username) {
+        Map<String, Resident> readUsers = new LinkedHashMap<>();
+        Map<String, Set<String>> creatorsByReadUser = new HashMap<>();
+        Deque<String> usernamesToRead = new ArrayDeque<>(List.of(username));
+        while (!usernamesToRead.isEmpty()) {
+            String usernameToRead = usernamesToRead.poll();
+            if (readUsers.containsKey(usernameToRead) || residents.containsKey(usernameToRead)) {
+                continue;
+            }
+
+            Resident resident = readRecord(usernameToRead);
+            if (resident != null) {
+                Set<String> creators = creatorsOfGroupsOf(usernameToRead);
+                readUsers.put(usernameToRead, resident);
+                creatorsByReadUser.put(usernameToRead, creators);
+                usernamesToRead.addAll(creators);
+            }
+        }
+        if (!readUsers.containsKey(username)) {
+            return null;
+        }
+
+        for (Resident resident : readUsers.values()) {
+            for (String creatorUsername : creatorsByReadUser.get(resident.user.getUsername())) {
+                Resident creator = readUsers.containsKey(creatorUsername) ? readUsers.get(creatorUsername)
+                        : residents.get(creatorUsername);
+                if (creator != null) {
+                    acceptInvitations(creator.user, resident.user);
+                }
+            }
+        }
+
+        for (Resident resident : readUsers.values()) {
+            resident.user.markStored();
+            residents.put(resident.user.getUsername(), resident);
+            residentBytes += resident.recordLength;
+        }
+        return readUsers.get(username).user;
+    }
+
+    private void acceptInvitations(User creator, User member) {
+        for (String groupName : creator.getGroupNames()) {
+            if (membersOf(creator, groupName).contains(member.getUsername())) {
+                try {
+                    creator.inviteToGroup(groupName).accept(member);
+                } catch (GroupNotFoundException e) {
+                    ///impossible case
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the creators of the groups the user with username {@code username} is a member of, as the indexes
+     * of both snapshots tell them, and of the groups whose creators were not written back since they created them
+     */
+    private Set<String> creatorsOfGroupsOf(String username) {
+        Set<String> creators = new LinkedHashSet<>(writtenBack.getCreatorsOfGroupsOf(username));
+        if (sharedSnapshot != null) {
+            creators.addAll(sharedSnapshot.getCreatorsOfGroupsOf(username));
+        }
+        creators.addAll(unwrittenCreatorsByMember.getOrDefault(username, Set.of()));
+        return creators;
+    }
+
+    /**
+     * Evicts the least recently used users while the users in the memory weigh more than the limit, skipping
+     * the users who are in use and the creators of groups with a member in the memory, and writes back the ones
+     * who changed.
+     */
+    private void evictLeastRecentlyUsed() {
+        if (!isBounded) {
+            return;
+        }
+
+        List<User> changedUsers = new ArrayList<>();
+        Iterator<Resident> leastRecentlyUsed = residents.values().iterator();
+        while (residentBytes > maxResidentBytes && leastRecentlyUsed.hasNext()) {
+            Resident resident = leastRecentlyUsed.next();
+            ReentrantLock lock = locksByUsername.apply(resident.user.getUsername());
+            if (lock.isHeldByCurrentThread() || !lock.tryLock()) {
+                continue;
+            }
+
+            try {
+                if (!hasResidentMembers(resident.user)) {
+                    leastRecentlyUsed.remove();
+                    residentBytes -= resident.recordLength;
+                    if (resident.user.isChanged()) {
+                        changedUsers.add(resident.user);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (!changedUsers.isEmpty()) {
+            ///an evicted user cannot be found again before he is written back, as the store is held until then
+            writtenBack.save(writtenBack.getGeneration(), changedUsers);
+            changedUsers.forEach(this::forgetUnwrittenGroups);
+        }
+    }
+
+    private boolean hasResidentMembers(User creator) {
+        for (String groupName : creator.getGroupNames()) {
+            for (String member : membersOf(creator, groupName)) {
+                if (residents.containsKey(member)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The groups of {@code creator} are in the index of the temporary snapshot once he is written back.
+     */
+    private void forgetUnwrittenGroups(User creator) {
+        for (String groupName : creator.getGroupNames()) {
+            for (String member : membersOf(creator, groupName)) {
+                Set<String> creators = unwrittenCreatorsByMember.get(member);
+                if (creators != null) {
+                    creators.remove(creator.getUsername());
+                    if (creators.isEmpty()) {
+                        unwrittenCreatorsByMember.remove(member);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The new user stays changed until he is written back.
+     */
+    @Override
+    public synchronized boolean add(User user) {
+        if (user == null) {
+            throw new IllegalArgumentException("Invalid argument value in method add in class DiskUserStore!");
+        }
+        if (residents.containsKey(user.getUsername()) || isStored(user.getUsername())) {
+            return false;
+        }
+
+        Resident resident = new Resident(user, recordLengthOf(user));
+        residents.put(user.getUsername(), resident);
+        residentBytes += resident.recordLength;
+        evictLeastRecentlyUsed();
+        return true;
+    }
+
+    /**
+     * @return a new dictionary, which is dropped when the user is evicted
+     */
+    @Override
+    public UserIds getUserIdsForNewUser() {
+        return new UserIds();
+    }
+
+    /**
+     * The members are in the memory and already linked, so the creator is remembered for when they are read again,
+     * until he is written back.
+     */
+    @Override
+    public synchronized void groupCreated(User creator, String groupName) {
+        if (creator == null || groupName == null) {
+            throw new IllegalArgumentException("Invalid argument value in method groupCreated in class " +
+                    "DiskUserStore!");
+        }
+        for (String member : membersOf(creator, groupName)) {
+            unwrittenCreatorsByMember.computeIfAbsent(member, username -> new HashSet<>()).add(creator.getUsername());
+        }
+    }
+
+    @Override
+    public synchronized boolean isResident(String username) {
+        return residents.containsKey(username);
+    }
+
+    /**
+     * No user is evicted from then on.
+     */
+    @Override
+    public synchronized Map<String, User> getAll() {
+        isBounded = false;
+        Iterator<String> storedUsernames = new StoredUsernames();
+        while (storedUsernames.hasNext()) {
+            String username = storedUsernames.next();
+            if (!residents.containsKey(username)) {
+                readResident(username);
+            }
+        }
+
+        Map<String, User> usersByUsername = new HashMap<>();
+        for (Resident resident : residents.values()) {
+            usersByUsername.put(resident.user.getUsername(), resident.user);
+        }
+        return Collections.unmodifiableMap(usersByUsername);
+    }
+
+    /**
+     * The users in the memory come first and the stored users who are not in the memory follow them,
+     * a bucket of the indexes at a time.
+     */
+    @Override
+    public Collection<User> getUsers() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<User> iterator() {
+                Set<String> residentUsernames = getResidentUsernames();
+                Iterator<String> storedUsernames = new StoredUsernames();
+                Iterator<String> usernames = residentUsernames.iterator();
+                return new Iterator<>() {
+                    private String nextStoredUsername;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (nextStoredUsername == null && storedUsernames.hasNext()) {
+                            String storedUsername = storedUsernames.next();
+                            nextStoredUsername = residentUsernames.contains(storedUsername) ? null : storedUsername;
+                        }
+                        return usernames.hasNext() || nextStoredUsername != null;
+                    }
+
+                    @Override
+                    public User next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        if (usernames.hasNext()) {
+                            return residentOrRecord(usernames.next());
+                        }
+
+                        String username = nextStoredUsername;
+                        nextStoredUsername = null;
+                        return residentOrRecord(username);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                Set<String> residentUsernames = getResidentUsernames();
+                int size = residentUsernames.size();
+                Iterator<String> storedUsernames = new StoredUsernames();
+                while (storedUsernames.hasNext()) {
+                    if (!residentUsernames.contains(storedUsernames.next())) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+        };
+    }
+
+    private synchronized Set<String> getResidentUsernames() {
+        return new HashSet<>(residents.keySet());
+    }
+
+    /**
+     * @return the user with username {@code username} in the memory, or else a new user read from his record,
+     * who is not kept in the memory
+     */
+    private synchronized User residentOrRecord(String username) {
+        Resident resident = residents.get(username);
+        return resident != null ? resident.user : readRecord(username).user;
+    }
+
+    /**
+     * @return the user with username {@code username} read from the temporary snapshot if he was written back,
+     * or else from the shared snapshot, or null if there is no such user on the disk
+     */
+    private Resident readRecord(String username) {
+        int recordLength = writtenBack.getRecordLength(username);
+        if (recordLength > 0) {
+            return new Resident(writtenBack.read(username), recordLength);
+        }
+
+        recordLength = sharedSnapshot != null ? sharedSnapshot.getRecordLength(username) : 0;
+        return recordLength > 0 ? new Resident(sharedSnapshot.read(username), recordLength) : null;
+    }
+
+    private boolean isStored(String username) {
+        return writtenBack.getRecordLength(username) > 0
+                || sharedSnapshot != null && sharedSnapshot.getRecordLength(username) > 0;
+    }
+
+    /**
+     * @return the length of the record {@code user} would be written to
+     */
+    private static int recordLengthOf(User user) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            BinarySnapshot.writeBlock(new DataOutputStream(record), List.of(user), 0, new ArrayList<>());
+            return record.size();
+        } catch (IOException e) {
+            ///impossible case
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private static Set<String> membersOf(User creator, String groupName) {
+        try {
+            return creator.getGroupMembersUsernames(groupName);
+        } catch (GroupNotFoundException e) {
+            ///impossible case
+            e.printStackTrace();
+            return Set.of();
+        }
+    }
+
+    /**
+     * Closes and deletes the temporary snapshot. The shared snapshot stays open.
+     */
+    @Override
+    public synchronized void close() {
+        writtenBack.close();
+    }
+
+    private static final class Resident {
+        private final User user;
+        private final int recordLength;
+
+        private Resident(User user, int recordLength) {
+            this.user = user;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /**
+     * The usernames of the users in the temporary snapshot and then of the users in the shared snapshot who are
+     * not in the temporary one, read a bucket at a time.
+     */
+    private final class StoredUsernames implements Iterator<String> {
+        private final Deque<String> bucketUsernames = new ArrayDeque<>();
+        private SlottedSnapshot snapshot = writtenBack;
+        private int nextBucket;
+
+        @Override
+        public boolean hasNext() {
+            while (bucketUsernames.isEmpty() && snapshot != null) {
+                if (nextBucket < snapshot.getNumberOfBuckets()) {
+                    for (String username : snapshot.getUsernames(nextBucket++)) {
+                        if (snapshot == writtenBack || writtenBack.getRecordLength(username) == 0) {
+                            bucketUsernames.add(username);
+                        }
+                    }
+                } else {
+                    snapshot = snapshot == writtenBack ? sharedSnapshot : null;
+                    nextBucket = 0;
+                }
+            }
+            return !bucketUsernames.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return bucketUsernames.poll();
+        }
+    }
+}
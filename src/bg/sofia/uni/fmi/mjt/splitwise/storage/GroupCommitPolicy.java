@@ -0,0 +1,36 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import java.time.Duration;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote makes the journal durable: the records of concurrent operations are written in
+ * batches and every batch is forced to the disk once. A batch is closed when it reaches
+ * the maximal batch size or when its first record has waited for the maximal linger time.
+ */
+public class GroupCommitPolicy {
+    private final int maxBatchSize;
+    private final Duration maxLinger;
+
+    /**
+     * @param maxBatchSize the number of records which closes a batch immediately
+     * @param maxLinger    the maximal time a record waits for other records to join its batch,
+     *                     zero to force a batch as soon as the previous one is forced
+     */
+    public GroupCommitPolicy(int maxBatchSize, Duration maxLinger) {
+        if (maxBatchSize <= 0 || maxLinger == null || maxLinger.isNegative()) {
+            throw new IllegalArgumentException("The maximal batch size should be positive and " +
+                    "the maximal linger time cannot be negative!");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxLinger = maxLinger;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public Duration getMaxLinger() {
+        return maxLinger;
+    }
+}
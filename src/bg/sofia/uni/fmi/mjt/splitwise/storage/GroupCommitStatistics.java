@@ -0,0 +1,59 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote counters of the batches forced to the disk by a durable journal.
+ * They are updated only by the thread which forces the batches.
+ */
+public class GroupCommitStatistics {
+    private static final long NANOS_IN_MICRO = 1000;
+
+    private volatile long numberOfBatches;
+    private volatile long numberOfRecords;
+    private volatile long maxBatchSize;
+    private volatile long totalFsyncNanos;
+    private volatile long maxFsyncNanos;
+
+    void recordBatch(int batchSize, long fsyncNanos) {
+        numberOfBatches++;
+        numberOfRecords += batchSize;
+        maxBatchSize = Math.max(maxBatchSize, batchSize);
+        totalFsyncNanos += fsyncNanos;
+        maxFsyncNanos = Math.max(maxFsyncNanos, fsyncNanos);
+    }
+
+    public long getNumberOfBatches() {
+        return numberOfBatches;
+    }
+
+    public long getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    public double getAverageBatchSize() {
+        long batches = numberOfBatches;
+        return batches == 0 ? 0.0 : (double) numberOfRecords / batches;
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getAverageFsyncMicros() {
+        long batches = numberOfBatches;
+        return batches == 0 ? 0 : totalFsyncNanos / batches / NANOS_IN_MICRO;
+    }
+
+    public long getMaxFsyncMicros() {
+        return maxFsyncNanos / NANOS_IN_MICRO;
+    }
+
+    @Override
+    public String toString() {
+        return "batches: " + getNumberOfBatches() + ", records: " + getNumberOfRecords() +
+                ", average batch size: " + String.format("%.2f", getAverageBatchSize()) +
+                ", max batch size: " + getMaxBatchSize() +
+                ", average fsync: " + getAverageFsyncMicros() + "us" +
+                ", max fsync: " + getMaxFsyncMicros() + "us";
+    }
+}
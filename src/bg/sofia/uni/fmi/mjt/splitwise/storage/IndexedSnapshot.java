@@ -0,0 +1,52 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+
+import java.util.List;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a snapshot whose users are read one at a time, by username, without reading the others.
+ * The methods are thread-safe.
+ */
+public interface IndexedSnapshot extends AutoCloseable {
+
+    /**
+     * @return the generation of the snapshot
+     */
+    long getGeneration();
+
+    /**
+     * @return the usernames of all users in the snapshot
+     */
+    List<String> getUsernames();
+
+    /**
+     * Decodes the user with username {@code username}, with a dictionary of his own. Every call decodes a new user.
+     *
+     * @return the user, or null if there is no such user in the snapshot
+     * @throws IllegalStateException if the user is damaged or cannot be read
+     */
+    default User read(String username) {
+        return read(username, new UserIds());
+    }
+
+    /**
+     * Decodes the user with username {@code username}, who refers to other users by their ids in {@code userIds}.
+     * Every call decodes a new user.
+     *
+     * @return the user, or null if there is no such user in the snapshot
+     * @throws IllegalStateException if the user is damaged or cannot be read
+     */
+    User read(String username, UserIds userIds);
+
+    /**
+     * @return the usernames of the creators of the groups the user with username {@code username} is a member of,
+     * empty if there are none or if there is no such user
+     */
+    List<String> getCreatorsOfGroupsOf(String username);
+
+    @Override
+    void close();
+}
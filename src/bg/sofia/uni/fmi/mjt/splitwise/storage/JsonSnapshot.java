@@ -0,0 +1,242 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the snapshot of the database: one JSON line per user, optionally preceded by a header
+ * with the generation of the journal segments already included in the snapshot.
+ * Snapshots without a header are of generation 0.
+ */
+public final class JsonSnapshot {
+    private static final String GENERATION_HEADER = "#generation ";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final byte LINE_DELIMITER = '\n';
+    private static final int SCAN_BUFFER_SIZE = 8192;
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    private static final long MAX_CHUNK_SIZE = 1024 * 1024 * 1024;
+
+    private JsonSnapshot() {
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} to {@code userConsumer}, in the order
+     * they are stored. The users are parsed in parallel by one worker per available processor, and every user
+     * gets a dictionary of his own.
+     *
+     * @return the generation of the snapshot
+     * @throws IllegalStateException if a problem occurred while reading the snapshot
+     */
+    public static long read(Path path, Consumer<User> userConsumer) {
+        return read(path, userConsumer, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} to {@code userConsumer}, like
+     * {@link #read(Path, Consumer)}, each with the dictionary {@code userIds} gives him.
+     */
+    static long read(Path path, Consumer<User> userConsumer, Supplier<UserIds> userIds) {
+        return read(path, userConsumer, Runtime.getRuntime().availableProcessors(), userIds);
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} to {@code userConsumer}, in the order
+     * they are stored. The file is split on line boundaries into chunks, which are memory-mapped and
+     * parsed in parallel, each of them by a single streaming reader, and the users are passed on
+     * chunk by chunk once all of them are parsed. Every user gets a dictionary of his own.
+     *
+     * @param parallelism the number of chunks parsed at the same time
+     * @return the generation of the snapshot
+     * @throws IllegalStateException if a problem occurred while reading the snapshot
+     */
+    public static long read(Path path, Consumer<User> userConsumer, int parallelism) {
+        return read(path, userConsumer, parallelism, UserIds::new);
+    }
+
+    private static long read(Path path, Consumer<User> userConsumer, int parallelism, Supplier<UserIds> userIds) {
+        if (path == null || userConsumer == null || parallelism <= 0 || userIds == null) {
+            throw new IllegalArgumentException("Invalid argument value in method read in class JsonSnapshot!");
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long generation = 0;
+            long start = 0;
+
+            String firstLine = readFirstLine(channel);
+            if (firstLine.startsWith(GENERATION_HEADER)) {
+                generation = Long.parseLong(firstLine.substring(GENERATION_HEADER.length()).trim());
+                start = nextLineStart(channel, 0);
+            }
+
+            int numberOfChunks = (int) Math.max(Math.min(parallelism, (size - start) / MIN_CHUNK_SIZE),
+                    (size - start) / MAX_CHUNK_SIZE + 1);
+            numberOfChunks = Math.max(numberOfChunks, 1);
+            long[] chunkStarts = new long[numberOfChunks + 1];
+            chunkStarts[0] = start;
+            for (int i = 1; i < numberOfChunks; i++) {
+                long approximateStart = start + (size - start) / numberOfChunks * i;
+                chunkStarts[i] = Math.max(chunkStarts[i - 1], nextLineStart(channel, approximateStart - 1));
+            }
+            chunkStarts[numberOfChunks] = size;
+
+            List<List<User>> chunks = parseChunks(channel, chunkStarts, parallelism, userIds);
+            for (List<User> chunk : chunks) {
+                chunk.forEach(userConsumer);
+            }
+
+            return generation;
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading from a file");
+        }
+    }
+
+    private static List<List<User>> parseChunks(FileChannel channel, long[] chunkStarts, int parallelism,
+                                                Supplier<UserIds> userIds) throws IOException {
+        int numberOfChunks = chunkStarts.length - 1;
+        if (numberOfChunks == 1 || parallelism == 1) {
+            List<List<User>> chunks = new ArrayList<>(numberOfChunks);
+            for (int i = 0; i < numberOfChunks; i++) {
+                chunks.add(parseChunk(channel, chunkStarts[i], chunkStarts[i + 1], userIds));
+            }
+            return chunks;
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, numberOfChunks));
+        try {
+            List<Future<List<User>>> futureChunks = new ArrayList<>(numberOfChunks);
+            for (int i = 0; i < numberOfChunks; i++) {
+                long chunkStart = chunkStarts[i];
+                long chunkEnd = chunkStarts[i + 1];
+                futureChunks.add(workers.submit(() -> parseChunk(channel, chunkStart, chunkEnd, userIds)));
+            }
+
+            List<List<User>> chunks = new ArrayList<>(numberOfChunks);
+            for (Future<List<User>> futureChunk : futureChunks) {
+                chunks.add(futureChunk.get());
+            }
+            return chunks;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the snapshot", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("A problem occurred while parsing the snapshot", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses the users stored in the lines between the offsets {@code start} and {@code end}
+     * with a single reader, which reads the users one after another from the mapped bytes.
+     */
+    private static List<User> parseChunk(FileChannel channel, long start, long end, Supplier<UserIds> userIds)
+            throws IOException {
+        List<User> users = new ArrayList<>();
+        if (start == end) {
+            return users;
+        }
+
+        MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteBufferInputStream(chunk),
+                StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                users.add(User.read(reader, userIds.get()));
+            }
+        }
+        return users;
+    }
+
+    private static String readFirstLine(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        channel.read(buffer, 0);
+        buffer.flip();
+
+        int length = 0;
+        while (length < buffer.limit() && buffer.get(length) != LINE_DELIMITER) {
+            length++;
+        }
+        return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the offset right after the first line delimiter at or after {@code position},
+     * or the size of the file if there is none
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long offset = Math.max(position, 0);
+
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                return channel.size();
+            }
+
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == LINE_DELIMITER) {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot at {@code path} with a snapshot of {@code users}.
+     *
+     * @throws IllegalStateException if a problem occurred while writing the snapshot
+     */
+    public static void write(Path path, long generation, Collection<User> users) {
+        Path temporaryFile = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+
+        try (BufferedWriter bufferedWriter = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+            bufferedWriter.write(GENERATION_HEADER + generation);
+            bufferedWriter.newLine();
+
+            for (User user : users) {
+                bufferedWriter.write(User.toJson(user));
+                bufferedWriter.newLine();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while writing to a file");
+        }
+
+        try {
+            Files.move(temporaryFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while replacing the database file");
+        }
+    }
+}
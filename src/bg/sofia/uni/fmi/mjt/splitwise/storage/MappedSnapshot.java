@@ -0,0 +1,309 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserBinaryCodec;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a binary snapshot whose users are read one at a time, when they are needed. Only the index
+ * of the snapshot is mapped and checked when it is opened, so opening it takes the same time whatever the
+ * number of users. A user is found by a binary search over the index, which is ordered by username, and
+ * decoded from his block, which is mapped and checked the first time one of its users is read. The string
+ * tables of the blocks read so far are kept, so the strings they share are decoded once.
+ * The snapshot stays readable after the file is replaced by a newer snapshot, until it is closed.
+ * The methods are thread-safe.
+ */
+public final class MappedSnapshot implements IndexedSnapshot {
+    private static final int NOT_FOUND = -1;
+    private static final int BLOCK_HEADER_LENGTH = 2 * Integer.BYTES;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long generation;
+    private final ByteBuffer index;
+    private final long[] blockOffsets;
+    private final int numberOfUsers;
+    private final AtomicReferenceArray<Block> blocks;
+
+    /**
+     * Opens the snapshot at {@code path} and maps its index.
+     *
+     * @throws IllegalStateException if the snapshot has no index, its index is damaged
+     *                               or a problem occurred while reading it
+     */
+    public MappedSnapshot(Path path) {
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid argument value in MappedSnapshot constructor!");
+        }
+        this.path = path;
+
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while opening the snapshot " + path, e);
+        }
+
+        try {
+            ByteBuffer header = readFully(0, BinarySnapshot.HEADER_LENGTH);
+            if (header.getInt() != BinarySnapshot.MAGIC
+                    || header.getShort() < BinarySnapshot.FIRST_INDEXED_VERSION) {
+                throw new IllegalStateException("The snapshot " + path + " has no index");
+            }
+            this.generation = header.getLong();
+
+            ByteBuffer trailer = readFully(channel.size() - BinarySnapshot.TRAILER_LENGTH,
+                    BinarySnapshot.TRAILER_LENGTH);
+            long indexStart = trailer.getLong();
+            int indexLength = trailer.getInt();
+            int indexChecksum = trailer.getInt();
+            int numberOfBlocks = trailer.getInt();
+            this.numberOfUsers = trailer.getInt();
+
+            this.index = channel.map(FileChannel.MapMode.READ_ONLY, indexStart, indexLength);
+            if (BinarySnapshot.checksumOf(index) != indexChecksum) {
+                throw new IllegalStateException("The index of the snapshot " + path + " is damaged");
+            }
+
+            this.blockOffsets = new long[numberOfBlocks];
+            for (int i = 0; i < numberOfBlocks; i++) {
+                blockOffsets[i] = index.getLong(i * Long.BYTES);
+            }
+            this.blocks = new AtomicReferenceArray<>(numberOfBlocks);
+        } catch (IllegalStateException e) {
+            close();
+            throw e;
+        } catch (IOException | IllegalArgumentException e) {
+            close();
+            throw new IllegalStateException("A problem occurred while reading the snapshot " + path, e);
+        }
+    }
+
+    /**
+     * @return true if the file at {@code path} is a binary snapshot with an index
+     * @throws IllegalStateException if a problem occurred while reading the file
+     */
+    public static boolean isIndexed(Path path) {
+        if (!BinarySnapshot.isBinarySnapshot(path)) {
+            return false;
+        }
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (file.size() < BinarySnapshot.HEADER_LENGTH + BinarySnapshot.TRAILER_LENGTH) {
+                return false;
+            }
+            ByteBuffer version = ByteBuffer.allocate(Short.BYTES);
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            file.read(version, Integer.BYTES);
+            file.read(magic, file.size() - Integer.BYTES);
+
+            return version.getShort(0) >= BinarySnapshot.FIRST_INDEXED_VERSION
+                    && magic.getInt(0) == BinarySnapshot.MAGIC;
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading from a file", e);
+        }
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the number of users in the snapshot
+     */
+    public int size() {
+        return numberOfUsers;
+    }
+
+    /**
+     * @return the username of the user with number {@code number}, from 0 to {@link #size()} - 1,
+     * in order of username
+     */
+    public String getUsername(int number) {
+        if (number < 0 || number >= numberOfUsers) {
+            throw new IllegalArgumentException("Invalid argument value in method getUsername in class " +
+                    "MappedSnapshot!");
+        }
+        return readUsername(entry(number));
+    }
+
+    /**
+     * @return the usernames of all users, in order of username
+     */
+    @Override
+    public List<String> getUsernames() {
+        List<String> usernames = new ArrayList<>(numberOfUsers);
+        for (int i = 0; i < numberOfUsers; i++) {
+            usernames.add(getUsername(i));
+        }
+        return usernames;
+    }
+
+    /**
+     * @throws IllegalStateException if the block of the user is damaged or cannot be read
+     */
+    @Override
+    public User read(String username, UserIds userIds) {
+        if (userIds == null) {
+            throw new IllegalArgumentException("Invalid argument value in method read in class MappedSnapshot!");
+        }
+        int number = find(username);
+        if (number == NOT_FOUND) {
+            return null;
+        }
+
+        try {
+            DataInputStream entry = entry(number);
+            readUsername(entry);
+            Block block = blockOf(UserBinaryCodec.readUnsignedInt(entry));
+            int offsetInBlock = UserBinaryCodec.readUnsignedInt(entry);
+
+            ByteBuffer userBytes = block.content.duplicate();
+            userBytes.position(offsetInBlock);
+            return UserBinaryCodec.read(new DataInputStream(new ByteBufferInputStream(userBytes)),
+                    stringIndex -> block.strings[stringIndex], userIds);
+        } catch (IOException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("A problem occurred while reading the user " + username +
+                    " from the snapshot " + path, e);
+        }
+    }
+
+    @Override
+    public List<String> getCreatorsOfGroupsOf(String username) {
+        int number = find(username);
+        if (number == NOT_FOUND) {
+            return List.of();
+        }
+
+        try {
+            DataInputStream entry = entry(number);
+            readUsername(entry);
+            UserBinaryCodec.readUnsigned(entry);
+            UserBinaryCodec.readUnsigned(entry);
+
+            int numberOfCreators = UserBinaryCodec.readUnsignedInt(entry);
+            List<String> creators = new ArrayList<>(numberOfCreators);
+            for (int i = 0; i < numberOfCreators; i++) {
+                creators.add(getUsername(UserBinaryCodec.readUnsignedInt(entry)));
+            }
+            return creators;
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading the index of the snapshot " + path, e);
+        }
+    }
+
+    /**
+     * @return the number of the user with username {@code username}, or {@link #NOT_FOUND}
+     */
+    private int find(String username) {
+        int low = 0;
+        int high = numberOfUsers - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = readUsername(entry(middle)).compareTo(username);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @return the entry of the user with number {@code number}, positioned at its username
+     */
+    private DataInputStream entry(int number) {
+        int entryOffset = index.getInt(blockOffsets.length * Long.BYTES + number * Integer.BYTES);
+        ByteBuffer entry = index.duplicate();
+        entry.position(entryOffset);
+        return new DataInputStream(new ByteBufferInputStream(entry));
+    }
+
+    private String readUsername(DataInputStream entry) {
+        try {
+            byte[] username = new byte[UserBinaryCodec.readUnsignedInt(entry)];
+            entry.readFully(username);
+            return new String(username, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading the index of the snapshot " + path, e);
+        }
+    }
+
+    /**
+     * @return block number {@code blockNumber}, which is mapped, checked and has its string table decoded
+     * the first time it is needed
+     */
+    private Block blockOf(int blockNumber) throws IOException {
+        Block block = blocks.get(blockNumber);
+        if (block != null) {
+            return block;
+        }
+
+        long blockOffset = blockOffsets[blockNumber];
+        ByteBuffer blockHeader = readFully(blockOffset, BLOCK_HEADER_LENGTH);
+        int length = blockHeader.getInt();
+        int checksum = blockHeader.getInt();
+
+        ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, blockOffset + BLOCK_HEADER_LENGTH, length);
+        if (BinarySnapshot.checksumOf(content) != checksum) {
+            throw new IllegalStateException("A damaged block was found in the snapshot " + path);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(content.duplicate()));
+        String[] strings = new String[UserBinaryCodec.readUnsignedInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[UserBinaryCodec.readUnsignedInt(in)];
+            in.readFully(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        ///two threads may decode the same block, but they agree on the one which is kept
+        blocks.compareAndSet(blockNumber, null, new Block(content, strings));
+        return blocks.get(blockNumber);
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("The snapshot " + path + " ends unexpectedly");
+            }
+        }
+        return buffer.flip();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("A problem occurred while closing the snapshot " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static final class Block {
+        private final ByteBuffer content;
+        private final String[] strings;
+
+        private Block(ByteBuffer content, String[] strings) {
+            this.content = content;
+            this.strings = strings;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.GroupNotFoundException;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote keeps every user in the memory. The whole snapshot is loaded when the store is opened, or,
+ * if the store is lazy and the snapshot is a binary or a slotted one, only its index is read and a user is decoded
+ * the first time he is looked up, see {@link IndexedSnapshot}. A decoded user joins the groups of other users
+ * he is a member of before anyone else can see him, so no user who is already visible is changed by decoding
+ * another one. A user who is not decoded yet has not changed since the snapshot was stored, so he is still read
+ * from it after a checkpoint replaces it, or saves the changed users to it.
+ * Every user is marked as stored once he is loaded or decoded, so the users who changed since then are told
+ * by {@link #getChangedUsers()}.
+ * All users of the store, loaded, decoded or added, share the dictionary of the store.
+ */
+public final class MemoryUserStore implements UserStore {
+    private final boolean isLazy;
+    private final UserIds userIds = new UserIds();
+    private final Map<String, User> usersByUsername = new ConcurrentHashMap<>();
+    private final Object decodingLock = new Object();
+    private final Map<String, List<Consumer<User>>> pendingInvitations = new HashMap<>();
+    private final boolean isSnapshotShared;
+    private IndexedSnapshot lazySnapshot;
+
+    /**
+     * @param isLazy whether the users are decoded only when they are looked up, which requires
+     *               a binary or a slotted snapshot; any other snapshot is loaded at once
+     */
+    public MemoryUserStore(boolean isLazy) {
+        this.isLazy = isLazy;
+        this.isSnapshotShared = false;
+    }
+
+    /**
+     * Creates a lazy store over the open snapshot {@code sharedSnapshot}, which is not closed with the store.
+     * The store needs no {@link #load(Path)}.
+     */
+    public MemoryUserStore(IndexedSnapshot sharedSnapshot) {
+        if (sharedSnapshot == null) {
+            throw new IllegalArgumentException("Invalid argument value in MemoryUserStore constructor!");
+        }
+        this.isLazy = true;
+        this.isSnapshotShared = true;
+        this.lazySnapshot = sharedSnapshot;
+    }
+
+    @Override
+    public long load(Path path) {
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid argument value in method load in class MemoryUserStore!");
+        }
+
+        if (lazySnapshot != null) {
+            return lazySnapshot.getGeneration();
+        }
+
+        if (isLazy && MappedSnapshot.isIndexed(path)) {
+            lazySnapshot = new MappedSnapshot(path);
+            return lazySnapshot.getGeneration();
+        }
+        if (isLazy && SlottedSnapshot.isSlottedSnapshot(path)) {
+            lazySnapshot = new SlottedSnapshot(path);
+            return lazySnapshot.getGeneration();
+        }
+        if (isLazy) {
+            System.out.println("The snapshot " + path + " has no index, so it is loaded at once");
+        }
+
+        long generation = SnapshotFormat.of(path).read(path, user ->
+                usersByUsername.putIfAbsent(user.getUsername(), user), userIds);
+        linkGroupMembers(usersByUsername);
+        usersByUsername.values().forEach(User::markStored);
+        return generation;
+    }
+
+    /**
+     * Links the members of every group of {@code usersByUsername} to it, so they see what they owe in it.
+     */
+    static void linkGroupMembers(Map<String, User> usersByUsername) {
+        for (User user : usersByUsername.values()) {
+            for (String groupName : user.getGroupNames()) {
+                try {
+                    user.linkGroupMembers(groupName, usersByUsername::get);
+                } catch (GroupNotFoundException e) {
+                    ///impossible case
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public User find(String username) {
+        User user = usersByUsername.get(username);
+        return user != null || lazySnapshot == null ? user : decodeUser(username);
+    }
+
+    /**
+     * Decodes the user with username {@code username} from the lazily loaded snapshot and makes him visible,
+     * together with the creators of the groups he is a member of which are not decoded yet, and their creators
+     * in turn, so that he joins their groups before anyone can see him. The decoded creators invite the members
+     * of their groups who are not decoded yet, who accept the invitations when they are decoded.
+     *
+     * @return the user, or null if there is no such user
+     */
+    private User decodeUser(String username) {
+        synchronized (decodingLock) {
+            User visibleUser = usersByUsername.get(username);
+            if (visibleUser != null) {
+                return visibleUser;
+            }
+
+            Map<String, User> decodedUsers = new LinkedHashMap<>();
+            Deque<String> usernamesToDecode = new ArrayDeque<>(List.of(username));
+            while (!usernamesToDecode.isEmpty()) {
+                String usernameToDecode = usernamesToDecode.poll();
+                if (decodedUsers.containsKey(usernameToDecode) || usersByUsername.containsKey(usernameToDecode)) {
+                    continue;
+                }
+
+                User user = lazySnapshot.read(usernameToDecode, userIds);
+                if (user != null) {
+                    decodedUsers.put(usernameToDecode, user);
+                    usernamesToDecode.addAll(lazySnapshot.getCreatorsOfGroupsOf(usernameToDecode));
+                }
+            }
+
+            for (User creator : decodedUsers.values()) {
+                for (String groupName : creator.getGroupNames()) {
+                    try {
+                        Consumer<User> invitation = creator.inviteToGroup(groupName);
+                        for (String member : creator.getGroupMembersUsernames(groupName)) {
+                            User decodedMember = decodedUsers.get(member);
+                            if (decodedMember != null) {
+                                invitation.accept(decodedMember);
+                            } else if (!usersByUsername.containsKey(member)) {
+                                pendingInvitations.computeIfAbsent(member, key -> new ArrayList<>()).add(invitation);
+                            }
+                        }
+                    } catch (GroupNotFoundException e) {
+                        ///impossible case
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            for (User user : decodedUsers.values()) {
+                List<Consumer<User>> invitations = pendingInvitations.remove(user.getUsername());
+                if (invitations != null) {
+                    invitations.forEach(invitation -> invitation.accept(user));
+                }
+            }
+
+            decodedUsers.values().forEach(User::markStored);
+            usersByUsername.putAll(decodedUsers);
+            return decodedUsers.get(username);
+        }
+    }
+
+    @Override
+    public boolean add(User user) {
+        if (user == null) {
+            throw new IllegalArgumentException("Invalid argument value in method add in class MemoryUserStore!");
+        }
+        return find(user.getUsername()) == null && usersByUsername.putIfAbsent(user.getUsername(), user) == null;
+    }
+
+    @Override
+    public UserIds getUserIdsForNewUser() {
+        return userIds;
+    }
+
+    @Override
+    public void groupCreated(User creator, String groupName) {
+        ///the members were found before the group was created, so all of them are decoded and linked already
+    }
+
+    @Override
+    public boolean isResident(String username) {
+        return usersByUsername.containsKey(username);
+    }
+
+    /**
+     * The users of a lazily loaded snapshot which are not decoded yet are decoded first.
+     */
+    @Override
+    public Map<String, User> getAll() {
+        if (lazySnapshot != null) {
+            for (String username : lazySnapshot.getUsernames()) {
+                find(username);
+            }
+        }
+        return Collections.unmodifiableMap(usersByUsername);
+    }
+
+    @Override
+    public Collection<User> getUsers() {
+        return getAll().values();
+    }
+
+    /**
+     * @return the users who changed since they were loaded or decoded, and the users added since then,
+     * to be stored while no one changes them
+     */
+    public Collection<User> getChangedUsers() {
+        List<User> changedUsers = new ArrayList<>();
+        for (User user : usersByUsername.values()) {
+            if (user.isChanged()) {
+                changedUsers.add(user);
+            }
+        }
+        return changedUsers;
+    }
+
+    @Override
+    public void close() {
+        if (lazySnapshot != null && !isSnapshotShared) {
+            lazySnapshot.close();
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote an append-only log of the operations which changed the data since the last
+ * full snapshot of the database. Every record is a single line of tab-separated fields,
+ * the first of which is the code of the operation, preceded by the CRC-32 checksum of the fields.
+ * A record torn by a crash can only be the last one: it is cut off when the journal is opened
+ * and skipped when the journal is replayed. The journal can be rotated: its records
+ * are sealed in a separate segment and appending continues in an empty journal.
+ * By default a record is handed to the operating system as soon as it is appended. A durable
+ * journal instead collects the records of concurrent callers in batches, forces every batch
+ * to the disk once and lets each caller continue only after its batch is forced. A listener can be told
+ * the sequence number of every record which became durable before its caller continues.
+ */
+public class OperationJournal implements AutoCloseable {
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char ESCAPE = '\\';
+    private static final byte RECORD_SEPARATOR = '\n';
+    private static final int CHECKSUM_LENGTH = 8;
+    private static final int TAIL_SCAN_BLOCK_SIZE = 8 * 1024;
+
+    private final Path journalPath;
+    private FileChannel channel;
+    private long size;
+
+    private final GroupCommitPolicy groupCommitPolicy;
+    private final LongConsumer durabilityListener;
+    private final GroupCommitStatistics statistics;
+    private final ByteArrayOutputStream pendingRecords;
+    private int numberOfPendingRecords;
+    private long firstPendingNanos;
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean isFlushing;
+    ///the records of a journal which is not durable whose sequence numbers the listener is not told yet
+    private int numberOfUntoldRecords;
+    private boolean isClosed;
+    private Exception flushFailure;
+
+    /**
+     * Opens the journal for appending, creating the file if it does not exist.
+     *
+     * @throws IllegalStateException if the journal cannot be opened
+     */
+    public OperationJournal(Path journalPath) {
+        this(journalPath, null);
+    }
+
+    /**
+     * Opens a durable journal for appending, creating the file if it does not exist.
+     * A torn record at the end of the journal is cut off, so that the next record starts on its own line.
+     *
+     * @param groupCommitPolicy how the records are batched before they are forced to the disk,
+     *                          or null if they should not be forced at all
+     * @throws IllegalStateException if the journal cannot be opened
+     */
+    public OperationJournal(Path journalPath, GroupCommitPolicy groupCommitPolicy) {
+        this(journalPath, groupCommitPolicy, null);
+    }
+
+    /**
+     * Opens a durable journal for appending which tells {@code durabilityListener} the sequence number
+     * of the last record of every batch as soon as the batch is forced, before its callers continue.
+     * If the journal is not durable, the listener is told the sequence number of every record once it
+     * is handed to the operating system. The listener is never told while the monitor of the journal is held,
+     * so it may take locks whose holders write to the journal, but a rotation waits until it is told.
+     *
+     * @param durabilityListener the listener of the durable records, or null if there is none
+     * @throws IllegalStateException if the journal cannot be opened
+     */
+    public OperationJournal(Path journalPath, GroupCommitPolicy groupCommitPolicy, LongConsumer durabilityListener) {
+        this.journalPath = journalPath;
+        this.size = truncateTornTail(journalPath);
+        this.channel = open(journalPath, StandardOpenOption.APPEND);
+
+        this.groupCommitPolicy = groupCommitPolicy;
+        this.durabilityListener = durabilityListener;
+        this.statistics = new GroupCommitStatistics();
+        this.pendingRecords = new ByteArrayOutputStream();
+
+        if (groupCommitPolicy != null) {
+            Thread flusher = new Thread(this::flushBatches, "splitwise-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Reads the records of the journal at {@code journalPath}, if there is such a journal,
+     * and passes the fields of every record to {@code recordConsumer} in the order they were appended.
+     * The last record is skipped if its checksum does not match, since a crash may have torn it.
+     *
+     * @throws IllegalStateException if a problem occurred while reading the journal
+     *                               or a record before the last one is corrupted
+     */
+    public static void replay(Path journalPath, Consumer<String[]> recordConsumer) {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String previousLine = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                if (previousLine != null) {
+                    String[] fields = verify(previousLine);
+                    if (fields == null) {
+                        throw new IllegalStateException("Corrupted record in the journal " + journalPath +
+                                ": " + previousLine);
+                    }
+                    recordConsumer.accept(fields);
+                }
+                previousLine = line;
+            }
+
+            if (previousLine != null) {
+                String[] fields = verify(previousLine);
+                if (fields == null) {
+                    System.err.println("Skipping a torn record at the end of the journal " + journalPath);
+                } else {
+                    recordConsumer.accept(fields);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading the journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * Reads only the last record of the journal at {@code journalPath}, scanning it from its end.
+     * A torn or corrupted last record is skipped, like {@link #replay(Path, Consumer)} skips it.
+     *
+     * @return the fields of the last record, or null if there is no such journal or it has no records
+     * @throws IllegalStateException if a problem occurred while reading the journal
+     *                               or the record before a corrupted last one is corrupted too
+     */
+    public static String[] readLast(Path journalPath) {
+        if (!Files.exists(journalPath)) {
+            return null;
+        }
+
+        try (FileChannel journal = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            long completeSize = lastSeparatorBefore(journal, journal.size()) + 1;
+
+            long end = completeSize;
+            while (end > 0) {
+                long start = lastSeparatorBefore(journal, end - 1) + 1;
+                ByteBuffer record = ByteBuffer.allocate((int) (end - 1 - start));
+                while (record.hasRemaining()) {
+                    journal.read(record, start + record.position());
+                }
+                String line = new String(record.array(), StandardCharsets.UTF_8);
+
+                if (!line.isEmpty()) {
+                    String[] fields = verify(line);
+                    if (fields != null) {
+                        return fields;
+                    } else if (end != completeSize) {
+                        throw new IllegalStateException("Corrupted record in the journal " + journalPath +
+                                ": " + line);
+                    }
+                    System.err.println("Skipping a torn record at the end of the journal " + journalPath);
+                }
+                end = start;
+            }
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading the journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * Appends a record of {@code fields} to the journal and, if the journal is durable,
+     * waits until the record is forced to the disk.
+     *
+     * @throws IllegalStateException if a problem occurred while writing to the journal
+     */
+    public void append(String... fields) {
+        awaitDurable(write(fields));
+    }
+
+    /**
+     * Appends a record of {@code fields} to the journal without waiting for it to become durable.
+     *
+     * @return the sequence number of the record, to be passed to {@link #awaitDurable(long)}
+     * @throws IllegalStateException if a problem occurred while writing to the journal
+     */
+    public long write(String... fields) {
+        long sequence = writeRecord(fields);
+        if (groupCommitPolicy == null && durabilityListener != null) {
+            try {
+                durabilityListener.accept(sequence);
+            } finally {
+                synchronized (this) {
+                    numberOfUntoldRecords--;
+                    notifyAll();
+                }
+            }
+        }
+        return sequence;
+    }
+
+    private synchronized long writeRecord(String... fields) {
+        String encoded = encode(fields);
+        byte[] record = (checksumOf(encoded) + FIELD_SEPARATOR + encoded + (char) RECORD_SEPARATOR)
+                .getBytes(StandardCharsets.UTF_8);
+        size += record.length;
+        appendedSequence++;
+
+        if (groupCommitPolicy == null) {
+            try {
+                writeFully(channel, ByteBuffer.wrap(record));
+            } catch (IOException e) {
+                throw new IllegalStateException("A problem occurred while writing to the journal " + journalPath, e);
+            }
+            durableSequence = appendedSequence;
+            if (durabilityListener != null) {
+                numberOfUntoldRecords++;
+            }
+        } else {
+            if (numberOfPendingRecords == 0) {
+                firstPendingNanos = System.nanoTime();
+            }
+            pendingRecords.writeBytes(record);
+            numberOfPendingRecords++;
+            notifyAll();
+        }
+
+        return appendedSequence;
+    }
+
+    /**
+     * Waits until the record with sequence number {@code sequence} is forced to the disk.
+     * Returns immediately if the journal is not durable.
+     *
+     * @throws IllegalStateException if forcing the record to the disk failed
+     */
+    public synchronized void awaitDurable(long sequence) {
+        boolean isInterrupted = false;
+
+        while (durableSequence < sequence && flushFailure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durableSequence < sequence) {
+            throw new IllegalStateException("A problem occurred while forcing the journal " + journalPath +
+                    " to the disk", flushFailure);
+        }
+    }
+
+    /**
+     * Waits until there are neither pending records nor a batch being forced, and the listener is told
+     * of every record, so that the channel can be replaced. Must be called while holding the monitor
+     * of the journal.
+     */
+    private void awaitIdle() {
+        boolean isInterrupted = false;
+
+        while ((numberOfPendingRecords > 0 || isFlushing || numberOfUntoldRecords > 0) && flushFailure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Moves all records of the journal to the segment {@code segmentPath} and continues with an
+     * empty journal. Records appended concurrently go either to the segment or to the new journal.
+     *
+     * @throws IllegalStateException if a problem occurred while rotating the journal
+     */
+    public synchronized void rotate(Path segmentPath) {
+        awaitIdle();
+
+        try {
+            channel.close();
+            Files.move(journalPath, segmentPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while rotating the journal " + journalPath, e);
+        }
+        channel = open(journalPath, StandardOpenOption.TRUNCATE_EXISTING);
+        size = 0;
+    }
+
+    /**
+     * Forces the records handed to the operating system so far to the disk. The records of a durable
+     * journal which are still waiting for their batch are not forced.
+     *
+     * @throws IllegalStateException if a problem occurred while forcing the journal
+     */
+    public synchronized void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while forcing the journal " + journalPath +
+                    " to the disk", e);
+        }
+    }
+
+    /**
+     * @return the approximate size of the journal in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the counters of the batches forced to the disk, which stay empty if the journal is not durable
+     */
+    public GroupCommitStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public synchronized void close() {
+        awaitIdle();
+        isClosed = true;
+        notifyAll();
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while closing the journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * The loop of the flusher thread of a durable journal. While a batch is being forced,
+     * the records appended meanwhile form the next batch.
+     */
+    private void flushBatches() {
+        long maxLingerNanos = groupCommitPolicy.getMaxLinger().toNanos();
+
+        while (true) {
+            FileChannel batchChannel;
+            byte[] batch;
+            int batchSize;
+            long batchSequence;
+
+            synchronized (this) {
+                try {
+                    while (numberOfPendingRecords == 0 && !isClosed) {
+                        wait();
+                    }
+                    if (numberOfPendingRecords == 0) {
+                        return;
+                    }
+
+                    long lingerNanos = firstPendingNanos + maxLingerNanos - System.nanoTime();
+                    while (numberOfPendingRecords < groupCommitPolicy.getMaxBatchSize() && lingerNanos > 0) {
+                        wait(lingerNanos / 1_000_000, (int) (lingerNanos % 1_000_000));
+                        lingerNanos = firstPendingNanos + maxLingerNanos - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                batchChannel = channel;
+                batch = pendingRecords.toByteArray();
+                batchSize = numberOfPendingRecords;
+                batchSequence = appendedSequence;
+
+                pendingRecords.reset();
+                numberOfPendingRecords = 0;
+                isFlushing = true;
+            }
+
+            try {
+                writeFully(batchChannel, ByteBuffer.wrap(batch));
+
+                long fsyncStart = System.nanoTime();
+                batchChannel.force(false);
+                statistics.recordBatch(batchSize, System.nanoTime() - fsyncStart);
+                ///the listener is told before the batch stops flushing, so a rotation waits for it as well
+                if (durabilityListener != null) {
+                    durabilityListener.accept(batchSequence);
+                }
+
+                synchronized (this) {
+                    durableSequence = batchSequence;
+                    isFlushing = false;
+                    notifyAll();
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    flushFailure = e;
+                    isFlushing = false;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Cuts the journal at {@code journalPath} after its last complete record.
+     *
+     * @return the size of the journal after cutting it
+     * @throws IllegalStateException if a problem occurred while cutting the journal
+     */
+    private static long truncateTornTail(Path journalPath) {
+        if (!Files.exists(journalPath)) {
+            return 0;
+        }
+
+        try (FileChannel journal = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = journal.size();
+            long completeSize = lastSeparatorBefore(journal, end) + 1;
+
+            if (completeSize < end) {
+                System.err.println("Cutting off a torn record of " + (end - completeSize) +
+                        " bytes at the end of the journal " + journalPath);
+                journal.truncate(completeSize);
+                journal.force(false);
+            }
+            return completeSize;
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while opening the journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * Scans {@code journal} backwards from {@code position}, block by block.
+     *
+     * @return the offset of the last record separator before {@code position}, or -1 if there is none
+     */
+    private static long lastSeparatorBefore(FileChannel journal, long position) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(TAIL_SCAN_BLOCK_SIZE);
+
+        for (long blockEnd = position; blockEnd > 0; blockEnd -= TAIL_SCAN_BLOCK_SIZE) {
+            long blockStart = Math.max(0, blockEnd - TAIL_SCAN_BLOCK_SIZE);
+            block.clear().limit((int) (blockEnd - blockStart));
+            while (block.hasRemaining()) {
+                journal.read(block, blockStart + block.position());
+            }
+
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) == RECORD_SEPARATOR) {
+                    return blockStart + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static FileChannel open(Path journalPath, StandardOpenOption mode) {
+        try {
+            return FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while opening the journal " + journalPath, e);
+        }
+    }
+
+    private static String checksumOf(String encoded) {
+        CRC32 crc = new CRC32();
+        crc.update(encoded.getBytes(StandardCharsets.UTF_8));
+        String checksum = Long.toHexString(crc.getValue());
+        return "0".repeat(CHECKSUM_LENGTH - checksum.length()) + checksum;
+    }
+
+    /**
+     * @return the fields of the record {@code line}, or null if its checksum does not match
+     */
+    private static String[] verify(String line) {
+        if (line.length() <= CHECKSUM_LENGTH || line.charAt(CHECKSUM_LENGTH) != FIELD_SEPARATOR) {
+            return null;
+        }
+
+        String encoded = line.substring(CHECKSUM_LENGTH + 1);
+        if (!line.startsWith(checksumOf(encoded))) {
+            return null;
+        }
+        return decode(encoded);
+    }
+
+    private static String encode(String... fields) {
+        StringBuilder record = new StringBuilder();
+
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                record.append(FIELD_SEPARATOR);
+            }
+
+            String field = fields[i];
+            for (int j = 0; j < field.length(); j++) {
+                char c = field.charAt(j);
+                switch (c) {
+                    case ESCAPE -> record.append(ESCAPE).append(ESCAPE);
+                    case FIELD_SEPARATOR -> record.append(ESCAPE).append('t');
+                    case '\n' -> record.append(ESCAPE).append('n');
+                    case '\r' -> record.append(ESCAPE).append('r');
+                    default -> record.append(c);
+                }
+            }
+        }
+
+        return record.toString();
+    }
+
+    private static String[] decode(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == FIELD_SEPARATOR) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == ESCAPE && i + 1 < record.length()) {
+                char escaped = record.charAt(++i);
+                switch (escaped) {
+                    case 't' -> field.append(FIELD_SEPARATOR);
+                    case 'n' -> field.append('\n');
+                    case 'r' -> field.append('\r');
+                    default -> field.append(escaped);
+                }
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+
+        return fields.toArray(new String[0]);
+    }
+}
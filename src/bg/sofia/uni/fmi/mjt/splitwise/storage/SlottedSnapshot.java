@@ -0,0 +1,791 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserBinaryCodec;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.GroupNotFoundException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the snapshot of the database in a file of fixed-size slots, which is changed in place: a save writes
+ * only the users passed to it, so storing the users who changed since the previous save costs as much as those
+ * users and not as much as all of them.
+ * Every user is a record of consecutive slots, a block of one user in the format of {@link BinarySnapshot}.
+ * The index is split by the hash of the username into buckets, each of them a record with the entries of its
+ * users: the username, the first slot and the length of the record of the user and the creators of the groups
+ * he is a member of. A directory record holds the first slot and the length of every bucket. Every record starts
+ * with its length and the CRC32 checksum of its content.
+ * The index stays on the disk: the memory holds only the directory, a bit for every slot which tells whether
+ * it is used and the buckets which were looked up most recently, so it grows with the number of buckets and not
+ * with the number of users.
+ * The first two slots hold two copies of the header: the magic number, the version, the number of the save,
+ * the generation of the journal segments already included in the snapshot, the first slot and the length of
+ * the directory, the number of buckets, the number of users and the checksum of the header.
+ * <p>
+ * A save never writes over a slot the current header refers to. The changed users, the buckets of their entries
+ * and the directory are written to free slots and forced to the disk, and only then the header of the next save
+ * is written over the older copy and forced, so a save which stops in the middle leaves the previous one in
+ * place: the newest copy with a valid checksum is the one which is read. The slots of the records replaced by
+ * a save are free from then on.
+ * A user is always read from the last save, so a user who has not changed since the snapshot was opened is
+ * still read after it is saved again. The methods are thread-safe and a save holds the snapshot until it ends.
+ * A temporary snapshot, see {@link #createTemporary(Path, String, String)}, is never forced to the disk and its
+ * file is deleted when it is closed.
+ */
+public final class SlottedSnapshot implements IndexedSnapshot {
+    static final int MAGIC = 0x5357534C;
+    private static final int VERSION = 1;
+    private static final int SLOT_SIZE = 64;
+    private static final int NUMBER_OF_HEADERS = 2;
+    private static final int HEADER_LENGTH = 6 * Integer.BYTES + Short.BYTES + 2 * Long.BYTES;
+    private static final int RECORD_HEADER_LENGTH = 2 * Integer.BYTES;
+    private static final int MAX_ENTRIES_PER_BUCKET = 256;
+    private static final int MAX_CACHED_BUCKETS = 64;
+    private static final int NOT_WRITTEN = -1;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean isTemporary;
+    private final BitSet usedSlots = new BitSet();
+    private final Map<Integer, Map<String, Entry>> cachedBuckets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, SlottedSnapshot.Entry>> eldest) {
+            return size() > MAX_CACHED_BUCKETS;
+        }
+    };
+
+    private long sequence;
+    private long generation;
+    private int numberOfUsers;
+    private int directorySlot = NOT_WRITTEN;
+    private int directoryLength;
+    private int[] bucketSlots = {NOT_WRITTEN};
+    private int[] bucketLengths = {0};
+
+    /**
+     * Opens the snapshot at {@code path} and reads its index.
+     *
+     * @throws IllegalStateException if the file is not a slotted snapshot, it is damaged
+     *                               or a problem occurred while reading it
+     */
+    public SlottedSnapshot(Path path) {
+        this(path, false, false);
+    }
+
+    /**
+     * @param isNew       whether an empty snapshot is created at {@code path}, where there should be no file
+     *                    unless the snapshot is temporary
+     * @param isTemporary whether the snapshot is never forced to the disk and its file is deleted when it is closed
+     */
+    private SlottedSnapshot(Path path, boolean isNew, boolean isTemporary) {
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid argument value in SlottedSnapshot constructor!");
+        }
+        this.path = path;
+        this.isTemporary = isTemporary;
+
+        try {
+            this.channel = isNew && !isTemporary
+                    ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)
+                    : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while opening the snapshot " + path, e);
+        }
+
+        usedSlots.set(0, NUMBER_OF_HEADERS);
+        if (!isNew) {
+            try {
+                readIndex();
+            } catch (IllegalStateException e) {
+                close();
+                throw e;
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException("A problem occurred while reading the snapshot " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Creates an empty temporary snapshot in a new file in {@code directory}.
+     *
+     * @throws IllegalStateException if the file cannot be created
+     */
+    static SlottedSnapshot createTemporary(Path directory, String prefix, String suffix) {
+        try {
+            return new SlottedSnapshot(Files.createTempFile(directory, prefix, suffix), true, true);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while creating a snapshot in " + directory, e);
+        }
+    }
+
+    /**
+     * Reads the newest valid header and the directory, and marks the slots taken by the directory, every bucket
+     * and the users as used. The buckets are read one at a time and are not kept.
+     */
+    private void readIndex() throws IOException {
+        ByteBuffer header = null;
+        for (int headerSlot = 0; headerSlot < NUMBER_OF_HEADERS; headerSlot++) {
+            ByteBuffer candidate = readHeader(headerSlot);
+            if (candidate != null && (header == null || candidate.getLong(Integer.BYTES + Short.BYTES)
+                    > header.getLong(Integer.BYTES + Short.BYTES))) {
+                header = candidate;
+            }
+        }
+        if (header == null) {
+            throw new IllegalStateException("The file " + path + " is not a slotted snapshot or it is damaged");
+        }
+
+        header.position(Integer.BYTES + Short.BYTES);
+        this.sequence = header.getLong();
+        this.generation = header.getLong();
+        this.directorySlot = header.getInt();
+        this.directoryLength = header.getInt();
+        int numberOfBuckets = header.getInt();
+        this.numberOfUsers = header.getInt();
+
+        DataInputStream directory = readRecord(directorySlot, directoryLength);
+        markUsed(directorySlot, directoryLength);
+        this.bucketSlots = new int[numberOfBuckets];
+        this.bucketLengths = new int[numberOfBuckets];
+        for (int i = 0; i < numberOfBuckets; i++) {
+            bucketSlots[i] = UserBinaryCodec.readUnsignedInt(directory);
+            bucketLengths[i] = UserBinaryCodec.readUnsignedInt(directory);
+        }
+
+        for (int i = 0; i < numberOfBuckets; i++) {
+            markUsed(bucketSlots[i], bucketLengths[i]);
+            for (Entry entry : readBucket(i).values()) {
+                markUsed(entry.slot, entry.length);
+            }
+        }
+    }
+
+    /**
+     * @return the header in slot {@code headerSlot} positioned at its start, or null if it is not valid
+     */
+    private ByteBuffer readHeader(int headerSlot) throws IOException {
+        if (channel.size() < (long) (headerSlot + 1) * SLOT_SIZE) {
+            return null;
+        }
+
+        ByteBuffer header = readFully((long) headerSlot * SLOT_SIZE, HEADER_LENGTH);
+        int checksum = header.getInt(HEADER_LENGTH - Integer.BYTES);
+        header.limit(HEADER_LENGTH - Integer.BYTES);
+        if (header.getInt(0) != MAGIC || header.getShort(Integer.BYTES) != VERSION
+                || BinarySnapshot.checksumOf(header) != checksum) {
+            return null;
+        }
+        return header.clear();
+    }
+
+    /**
+     * @return true if either copy of the header of the file at {@code path} starts with the magic number
+     * of a slotted snapshot
+     * @throws IllegalStateException if a problem occurred while reading the file
+     */
+    static boolean isSlottedSnapshot(Path path) {
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] headers = in.readNBytes(NUMBER_OF_HEADERS * SLOT_SIZE);
+            for (int headerSlot = 0; headerSlot < NUMBER_OF_HEADERS; headerSlot++) {
+                if (headers.length >= (headerSlot + 1) * SLOT_SIZE
+                        && ByteBuffer.wrap(headers).getInt(headerSlot * SLOT_SIZE) == MAGIC) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading from a file", e);
+        }
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} to {@code userConsumer}, a bucket at a time
+     * and in the order of their records in the file within a bucket. Every user gets a dictionary of his own.
+     *
+     * @return the generation of the snapshot
+     * @throws IllegalStateException if a problem occurred while reading the snapshot or if it is damaged
+     */
+    public static long read(Path path, Consumer<User> userConsumer) {
+        return read(path, userConsumer, UserIds::new);
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} to {@code userConsumer}, like
+     * {@link #read(Path, Consumer)}, each with the dictionary {@code userIds} gives him.
+     */
+    static long read(Path path, Consumer<User> userConsumer, Supplier<UserIds> userIds) {
+        if (path == null || userConsumer == null || userIds == null) {
+            throw new IllegalArgumentException("Invalid argument value in method read in class SlottedSnapshot!");
+        }
+
+        try (SlottedSnapshot snapshot = new SlottedSnapshot(path)) {
+            snapshot.forEach(userConsumer, userIds);
+            return snapshot.getGeneration();
+        }
+    }
+
+    private synchronized void forEach(Consumer<User> userConsumer, Supplier<UserIds> userIds) {
+        for (int i = 0; i < bucketSlots.length; i++) {
+            List<Entry> entries = new ArrayList<>(readBucketOrFail(i).values());
+            entries.sort(Comparator.comparingInt(entry -> entry.slot));
+            for (Entry entry : entries) {
+                userConsumer.accept(readUser(entry, userIds.get()));
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot at {@code path} with a snapshot of {@code users}.
+     *
+     * @throws IllegalStateException if a problem occurred while writing the snapshot
+     */
+    public static void write(Path path, long generation, Collection<User> users) {
+        Path temporaryFile = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+        try {
+            Files.deleteIfExists(temporaryFile);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while writing to a file");
+        }
+
+        try (SlottedSnapshot snapshot = new SlottedSnapshot(temporaryFile, true, false)) {
+            snapshot.save(generation, users);
+        }
+
+        try {
+            Files.move(temporaryFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while replacing the database file");
+        }
+    }
+
+    /**
+     * Stores {@code changedUsers}, which replace the users with the same usernames and join the others,
+     * and the generation {@code generation}, writing nothing about the users who are not passed.
+     *
+     * @throws IllegalStateException if a problem occurred while writing to the snapshot, in which case
+     *                               the previous save stays in place
+     */
+    public synchronized void save(long generation, Collection<User> changedUsers) {
+        if (changedUsers == null) {
+            throw new IllegalArgumentException("Invalid argument value in method save in class SlottedSnapshot!");
+        }
+
+        save(userConsumer -> {
+            changedUsers.forEach(userConsumer);
+            return generation;
+        });
+    }
+
+    /**
+     * Stores the users {@code changedUsers} passes to its consumer, as {@link #save(long, Collection)} does, and
+     * the generation it returns. Only the entries of the users are held until the save ends, and not the users
+     * themselves, so a whole snapshot of another format can be stored a user at a time. If the same username is
+     * passed twice, the first user is kept.
+     *
+     * @return the generation
+     * @throws IllegalStateException if a problem occurred while writing to the snapshot or while reading
+     *                               the users, in which case the previous save stays in place
+     */
+    synchronized long save(ToLongFunction<Consumer<User>> changedUsers) {
+        PendingSave pendingSave = new PendingSave();
+        try {
+            long generation = changedUsers.applyAsLong(pendingSave::write);
+            pendingSave.addCreators();
+            commit(generation, pendingSave);
+            return generation;
+        } catch (IOException e) {
+            ///the slots written by the failed save are not referred to by any header
+            usedSlots.andNot(pendingSave.writtenSlots);
+            throw new IllegalStateException("A problem occurred while saving the snapshot " + path, e);
+        } catch (IllegalStateException e) {
+            usedSlots.andNot(pendingSave.writtenSlots);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the buckets of the changed entries of {@code pendingSave} and the directory, and then the header
+     * which refers to them. The buckets are split a bucket of the last save at a time if there are too many users.
+     */
+    private void commit(long generation, PendingSave pendingSave) throws IOException {
+        BitSet writtenSlots = pendingSave.writtenSlots;
+        int newNumberOfUsers = numberOfUsers + pendingSave.changedEntries.size() - pendingSave.replacedRecords.size();
+        int oldNumberOfBuckets = bucketSlots.length;
+        int numberOfBuckets = oldNumberOfBuckets;
+        while (newNumberOfUsers > numberOfBuckets * MAX_ENTRIES_PER_BUCKET) {
+            numberOfBuckets *= 2;
+        }
+        boolean isSplit = numberOfBuckets != oldNumberOfBuckets;
+
+        Map<Integer, Map<String, Entry>> changedEntriesByBucket = new HashMap<>();
+        for (Map.Entry<String, Entry> changedEntry : pendingSave.changedEntries.entrySet()) {
+            changedEntriesByBucket.computeIfAbsent(bucketOf(changedEntry.getKey(), numberOfBuckets),
+                    bucket -> new HashMap<>()).put(changedEntry.getKey(), changedEntry.getValue());
+        }
+
+        int[] newBucketSlots = new int[numberOfBuckets];
+        int[] newBucketLengths = new int[numberOfBuckets];
+        Map<Integer, Map<String, Entry>> writtenBuckets = new HashMap<>();
+        if (!isSplit) {
+            System.arraycopy(bucketSlots, 0, newBucketSlots, 0, numberOfBuckets);
+            System.arraycopy(bucketLengths, 0, newBucketLengths, 0, numberOfBuckets);
+            for (int i = 0; i < numberOfBuckets; i++) {
+                if (bucketSlots[i] == NOT_WRITTEN || changedEntriesByBucket.containsKey(i)) {
+                    ///the buckets of the last save are not changed until this one is written
+                    Map<String, Entry> bucket = new HashMap<>(bucket(i));
+                    bucket.putAll(changedEntriesByBucket.getOrDefault(i, Map.of()));
+                    writeBucketRecord(bucket, i, newBucketSlots, newBucketLengths, writtenSlots);
+                    writtenBuckets.put(i, bucket);
+                }
+            }
+        } else {
+            ///the buckets are split, so all of them are written again
+            int splitFactor = numberOfBuckets / oldNumberOfBuckets;
+            for (int i = 0; i < oldNumberOfBuckets; i++) {
+                List<Map<String, Entry>> splitBuckets = new ArrayList<>(splitFactor);
+                for (int j = 0; j < splitFactor; j++) {
+                    splitBuckets.add(new HashMap<>());
+                }
+                for (Map.Entry<String, Entry> entry : readBucket(i).entrySet()) {
+                    splitBuckets.get(bucketOf(entry.getKey(), numberOfBuckets) / oldNumberOfBuckets)
+                            .put(entry.getKey(), entry.getValue());
+                }
+
+                for (int j = 0; j < splitFactor; j++) {
+                    int newBucket = i + j * oldNumberOfBuckets;
+                    splitBuckets.get(j).putAll(changedEntriesByBucket.getOrDefault(newBucket, Map.of()));
+                    writeBucketRecord(splitBuckets.get(j), newBucket, newBucketSlots, newBucketLengths, writtenSlots);
+                }
+            }
+        }
+        byte[] directory = withHeader(writeDirectory(newBucketSlots, newBucketLengths));
+        int newDirectorySlot = writeRecord(directory, writtenSlots);
+        force();
+
+        writeHeader(sequence + 1, generation, newDirectorySlot, directory.length, numberOfBuckets,
+                newNumberOfUsers);
+        force();
+
+        for (Entry replacedRecord : pendingSave.replacedRecords) {
+            markFree(replacedRecord.slot, replacedRecord.length);
+        }
+        for (int i = 0; i < oldNumberOfBuckets; i++) {
+            if (bucketSlots[i] != NOT_WRITTEN && (isSplit || writtenBuckets.containsKey(i))) {
+                markFree(bucketSlots[i], bucketLengths[i]);
+            }
+        }
+        if (directorySlot != NOT_WRITTEN) {
+            markFree(directorySlot, directoryLength);
+        }
+
+        this.sequence++;
+        this.generation = generation;
+        this.numberOfUsers = newNumberOfUsers;
+        this.directorySlot = newDirectorySlot;
+        this.directoryLength = directory.length;
+        this.bucketSlots = newBucketSlots;
+        this.bucketLengths = newBucketLengths;
+        if (isSplit) {
+            cachedBuckets.clear();
+        } else {
+            cachedBuckets.putAll(writtenBuckets);
+        }
+    }
+
+    private void writeBucketRecord(Map<String, Entry> bucket, int index, int[] slots, int[] lengths,
+                                   BitSet writtenSlots) throws IOException {
+        byte[] record = withHeader(writeBucket(bucket));
+        slots[index] = writeRecord(record, writtenSlots);
+        lengths[index] = record.length;
+    }
+
+    private void force() throws IOException {
+        if (!isTemporary) {
+            channel.force(true);
+        }
+    }
+
+    private Entry findEntry(String username) throws IOException {
+        return bucket(bucketOf(username, bucketSlots.length)).get(username);
+    }
+
+    /**
+     * @return the bucket at index {@code index}, which is cached until newer buckets push it out
+     */
+    private Map<String, Entry> bucket(int index) throws IOException {
+        Map<String, Entry> bucket = cachedBuckets.get(index);
+        if (bucket == null) {
+            bucket = readBucket(index);
+            cachedBuckets.put(index, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the bucket at index {@code index} read from the disk, without caching it
+     */
+    private Map<String, Entry> readBucket(int index) throws IOException {
+        return bucketSlots[index] == NOT_WRITTEN ? new HashMap<>()
+                : readBucket(readRecord(bucketSlots[index], bucketLengths[index]));
+    }
+
+    private Map<String, Entry> readBucketOrFail(int index) {
+        try {
+            return readBucket(index);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading the snapshot " + path, e);
+        }
+    }
+
+    private static int bucketOf(String username, int numberOfBuckets) {
+        int hash = username.hashCode();
+        return (hash ^ hash >>> 16) & (numberOfBuckets - 1);
+    }
+
+    private static byte[] writeBucket(Map<String, Entry> bucket) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        UserBinaryCodec.writeUnsigned(out, bucket.size());
+        for (Map.Entry<String, Entry> entry : bucket.entrySet()) {
+            writeString(out, entry.getKey());
+            UserBinaryCodec.writeUnsigned(out, entry.getValue().slot);
+            UserBinaryCodec.writeUnsigned(out, entry.getValue().length);
+            UserBinaryCodec.writeUnsigned(out, entry.getValue().creators.size());
+            for (String creator : entry.getValue().creators) {
+                writeString(out, creator);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, Entry> readBucket(DataInputStream in) throws IOException {
+        int numberOfEntries = UserBinaryCodec.readUnsignedInt(in);
+        Map<String, Entry> bucket = new HashMap<>();
+
+        for (int i = 0; i < numberOfEntries; i++) {
+            String username = readString(in);
+            int slot = UserBinaryCodec.readUnsignedInt(in);
+            int length = UserBinaryCodec.readUnsignedInt(in);
+
+            int numberOfCreators = UserBinaryCodec.readUnsignedInt(in);
+            List<String> creators = new ArrayList<>(numberOfCreators);
+            for (int j = 0; j < numberOfCreators; j++) {
+                creators.add(readString(in));
+            }
+            bucket.put(username, new Entry(slot, length, List.copyOf(creators)));
+        }
+        return bucket;
+    }
+
+    private static byte[] writeDirectory(int[] slots, int[] lengths) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for (int i = 0; i < slots.length; i++) {
+            UserBinaryCodec.writeUnsigned(out, slots[i]);
+            UserBinaryCodec.writeUnsigned(out, lengths[i]);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        UserBinaryCodec.writeUnsigned(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[UserBinaryCodec.readUnsignedInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return {@code content} preceded by its length and its checksum
+     */
+    private static byte[] withHeader(byte[] content) {
+        return ByteBuffer.allocate(RECORD_HEADER_LENGTH + content.length)
+                .putInt(content.length)
+                .putInt(BinarySnapshot.checksumOf(content))
+                .put(content)
+                .array();
+    }
+
+    private void writeHeader(long sequence, long generation, int directorySlot, int directoryLength,
+                             int numberOfBuckets, int numberOfUsers) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH)
+                .putInt(MAGIC)
+                .putShort((short) VERSION)
+                .putLong(sequence)
+                .putLong(generation)
+                .putInt(directorySlot)
+                .putInt(directoryLength)
+                .putInt(numberOfBuckets)
+                .putInt(numberOfUsers);
+        header.putInt(BinarySnapshot.checksumOf(Arrays.copyOf(header.array(), header.position())));
+
+        writeFully(header.flip(), (sequence % NUMBER_OF_HEADERS) * SLOT_SIZE);
+    }
+
+    /**
+     * Writes the record {@code record}, which starts with its length and checksum, to the first free slots
+     * which fit it, and marks them as used and as written by the current save.
+     *
+     * @return the first slot of the record
+     */
+    private int writeRecord(byte[] record, BitSet writtenSlots) throws IOException {
+        int numberOfSlots = slotsOf(record.length);
+        int slot = usedSlots.nextClearBit(0);
+        int nextUsedSlot;
+        while ((nextUsedSlot = usedSlots.nextSetBit(slot)) >= 0 && nextUsedSlot - slot < numberOfSlots) {
+            slot = usedSlots.nextClearBit(nextUsedSlot);
+        }
+
+        usedSlots.set(slot, slot + numberOfSlots);
+        writtenSlots.set(slot, slot + numberOfSlots);
+        writeFully(ByteBuffer.wrap(record), (long) slot * SLOT_SIZE);
+        return slot;
+    }
+
+    /**
+     * @return the content of the record of length {@code length} at slot {@code slot}, if its checksum is valid
+     */
+    private DataInputStream readRecord(int slot, int length) throws IOException {
+        ByteBuffer record = readFully((long) slot * SLOT_SIZE, length);
+        int contentLength = record.getInt();
+        int checksum = record.getInt();
+        if (contentLength != length - RECORD_HEADER_LENGTH) {
+            throw new IllegalStateException("A damaged record was found in the snapshot " + path);
+        }
+
+        byte[] content = new byte[contentLength];
+        record.get(content);
+        if (BinarySnapshot.checksumOf(content) != checksum) {
+            throw new IllegalStateException("A damaged record was found in the snapshot " + path);
+        }
+        return new DataInputStream(new ByteArrayInputStream(content));
+    }
+
+    private User readUser(Entry entry, UserIds userIds) {
+        try {
+            List<User> users = new ArrayList<>(1);
+            BinarySnapshot.readBlock(readRecord(entry.slot, entry.length), users::add, () -> userIds);
+            return users.get(0);
+        } catch (IOException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("A problem occurred while reading a user from the snapshot " + path, e);
+        }
+    }
+
+    private void markUsed(int slot, int length) {
+        usedSlots.set(slot, slot + slotsOf(length));
+    }
+
+    private void markFree(int slot, int length) {
+        usedSlots.clear(slot, slot + slotsOf(length));
+    }
+
+    private static int slotsOf(int length) {
+        return (length + SLOT_SIZE - 1) / SLOT_SIZE;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("The snapshot " + path + " ends unexpectedly");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    @Override
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Reads the buckets one at a time, without caching them.
+     */
+    @Override
+    public synchronized List<String> getUsernames() {
+        List<String> usernames = new ArrayList<>(numberOfUsers);
+        for (int i = 0; i < bucketSlots.length; i++) {
+            usernames.addAll(readBucketOrFail(i).keySet());
+        }
+        return usernames;
+    }
+
+    /**
+     * @return the number of buckets of the index, which changes only when a save splits them
+     */
+    synchronized int getNumberOfBuckets() {
+        return bucketSlots.length;
+    }
+
+    /**
+     * @return the usernames of the users in the bucket at index {@code bucket}, which is not cached
+     */
+    synchronized List<String> getUsernames(int bucket) {
+        return new ArrayList<>(readBucketOrFail(bucket).keySet());
+    }
+
+    /**
+     * @throws IllegalStateException if the record of the user is damaged or cannot be read
+     */
+    @Override
+    public synchronized User read(String username, UserIds userIds) {
+        if (userIds == null) {
+            throw new IllegalArgumentException("Invalid argument value in method read in class SlottedSnapshot!");
+        }
+        Entry entry = findEntryOrFail(username);
+        return entry != null ? readUser(entry, userIds) : null;
+    }
+
+    /**
+     * @return the length of the record of the user with username {@code username}, or 0 if there is no such user
+     */
+    synchronized int getRecordLength(String username) {
+        Entry entry = findEntryOrFail(username);
+        return entry != null ? entry.length : 0;
+    }
+
+    @Override
+    public synchronized List<String> getCreatorsOfGroupsOf(String username) {
+        Entry entry = findEntryOrFail(username);
+        return entry != null ? entry.creators : List.of();
+    }
+
+    private Entry findEntryOrFail(String username) {
+        try {
+            return findEntry(username);
+        } catch (IOException e) {
+            throw new IllegalStateException("A problem occurred while reading the snapshot " + path, e);
+        }
+    }
+
+    /**
+     * Closes the file and deletes it if the snapshot is temporary.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            if (isTemporary) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.err.println("A problem occurred while closing the snapshot " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The users written by a save which is not committed yet: their entries, the records they replace, the slots
+     * written so far and the creators they add to the entries of the members of their groups.
+     */
+    private final class PendingSave {
+        private final BitSet writtenSlots = new BitSet();
+        private final Map<String, Entry> changedEntries = new HashMap<>();
+        private final List<Entry> replacedRecords = new ArrayList<>();
+        private final Map<String, Set<String>> creatorsByMember = new HashMap<>();
+
+        private void write(User user) {
+            if (changedEntries.containsKey(user.getUsername())) {
+                return;
+            }
+
+            try {
+                Entry entry = findEntry(user.getUsername());
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                BinarySnapshot.writeBlock(new DataOutputStream(record), List.of(user), 0, new ArrayList<>());
+
+                int slot = writeRecord(record.toByteArray(), writtenSlots);
+                changedEntries.put(user.getUsername(), new Entry(slot, record.size(),
+                        entry != null ? entry.creators : List.of()));
+                if (entry != null) {
+                    replacedRecords.add(entry);
+                }
+
+                for (String groupName : user.getGroupNames()) {
+                    for (String member : user.getGroupMembersUsernames(groupName)) {
+                        creatorsByMember.computeIfAbsent(member, username -> new HashSet<>()).add(user.getUsername());
+                    }
+                }
+            } catch (IOException | GroupNotFoundException e) {
+                throw new IllegalStateException("A problem occurred while saving the snapshot " + path, e);
+            }
+        }
+
+        /**
+         * Adds the creators of the written users to the entries of the members of their groups, whether the members
+         * were written by the save or not.
+         */
+        private void addCreators() throws IOException {
+            for (Map.Entry<String, Set<String>> membership : creatorsByMember.entrySet()) {
+                String member = membership.getKey();
+                Entry entry = changedEntries.containsKey(member) ? changedEntries.get(member) : findEntry(member);
+                if (entry != null && !entry.creators.containsAll(membership.getValue())) {
+                    Set<String> creators = new LinkedHashSet<>(entry.creators);
+                    creators.addAll(membership.getValue());
+                    changedEntries.put(member, new Entry(entry.slot, entry.length, List.copyOf(creators)));
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final int slot;
+        private final int length;
+        private final List<String> creators;
+
+        private Entry(int slot, int length, List<String> creators) {
+            this.slot = slot;
+            this.length = length;
+            this.creators = creators;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.GroupNotFoundException;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote converts a snapshot of the database from one format to another, keeping its generation, so the
+ * journal segments next to it stay valid. The members of every group are linked to it before the snapshot
+ * is written, the way they are when the database is loaded, so a snapshot stored before the groups kept
+ * a shared amount is written in the current form.
+ * Usage: SnapshotConverter source target json|binary|slotted, where source and target may be the same file.
+ */
+public final class SnapshotConverter {
+    private static final int NUMBER_OF_ARGUMENTS = 3;
+
+    private SnapshotConverter() {
+    }
+
+    /**
+     * Reads the snapshot at {@code source}, in whichever format it is stored, and stores it at {@code target}
+     * in the format {@code format}.
+     *
+     * @return the number of converted users
+     * @throws IllegalStateException if a problem occurred while reading or writing a snapshot
+     */
+    public static int convert(Path source, Path target, SnapshotFormat format) {
+        if (source == null || target == null || format == null) {
+            throw new IllegalArgumentException("Invalid argument value in method convert in class " +
+                    "SnapshotConverter!");
+        }
+
+        Map<String, User> usersByUsername = new LinkedHashMap<>();
+        long generation = SnapshotFormat.of(source).read(source,
+                user -> usersByUsername.putIfAbsent(user.getUsername(), user));
+
+        for (User user : usersByUsername.values()) {
+            for (String groupName : user.getGroupNames()) {
+                try {
+                    user.linkGroupMembers(groupName, usersByUsername::get);
+                } catch (GroupNotFoundException e) {
+                    ///impossible case
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        format.write(target, generation, usersByUsername.values());
+        return usersByUsername.size();
+    }
+
+    public static void main(String[] args) {
+        if (args.length != NUMBER_OF_ARGUMENTS) {
+            System.err.println("Usage: SnapshotConverter <source> <target> json|binary|slotted");
+            return;
+        }
+
+        Path source = Path.of(args[0]);
+        Path target = Path.of(args[1]);
+        SnapshotFormat format = switch (args[2]) {
+            case "json" -> SnapshotFormat.JSON_LINES;
+            case "binary" -> SnapshotFormat.BINARY;
+            case "slotted" -> SnapshotFormat.SLOTTED;
+            default -> null;
+        };
+        if (format == null) {
+            System.err.println("Unknown snapshot format: " + args[2]);
+            return;
+        }
+
+        long sourceSize = source.toFile().length();
+        long start = System.nanoTime();
+        int numberOfUsers = convert(source, target, format);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println("Converted " + numberOfUsers + " users from " + sourceSize + " to " +
+                target.toFile().length() + " bytes in " + millis + " ms");
+    }
+}
@@ -0,0 +1,82 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the formats a snapshot of the database can be stored in. The format of a stored snapshot
+ * is told by its first bytes, so a database keeps the format it was converted to.
+ */
+public enum SnapshotFormat {
+    ///one JSON line per user, see {@link JsonSnapshot}
+    JSON_LINES,
+    ///blocks of users with a string table and a checksum each, see {@link BinarySnapshot}
+    BINARY,
+    ///records of one user in fixed-size slots with a hashed index, saved in place, see {@link SlottedSnapshot}
+    SLOTTED;
+
+    /**
+     * @return the format of the snapshot at {@code path}, or {@link #JSON_LINES} if there is no snapshot yet
+     * @throws IllegalStateException if a problem occurred while reading the snapshot
+     */
+    public static SnapshotFormat of(Path path) {
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid argument value in method of in enum SnapshotFormat!");
+        }
+        if (BinarySnapshot.isBinarySnapshot(path)) {
+            return BINARY;
+        }
+        return SlottedSnapshot.isSlottedSnapshot(path) ? SLOTTED : JSON_LINES;
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} in this format to {@code userConsumer},
+     * in the order they are stored. Every user gets a dictionary of his own.
+     *
+     * @return the generation of the snapshot
+     * @throws IllegalStateException if a problem occurred while reading the snapshot
+     */
+    public long read(Path path, Consumer<User> userConsumer) {
+        return switch (this) {
+            case JSON_LINES -> JsonSnapshot.read(path, userConsumer);
+            case BINARY -> BinarySnapshot.read(path, userConsumer);
+            case SLOTTED -> SlottedSnapshot.read(path, userConsumer);
+        };
+    }
+
+    /**
+     * Passes every user stored in the snapshot at {@code path} in this format to {@code userConsumer},
+     * in the order they are stored. All of them refer to other users by their ids in {@code userIds}.
+     *
+     * @return the generation of the snapshot
+     * @throws IllegalStateException if a problem occurred while reading the snapshot
+     */
+    public long read(Path path, Consumer<User> userConsumer, UserIds userIds) {
+        if (userIds == null) {
+            throw new IllegalArgumentException("Invalid argument value in method read in enum SnapshotFormat!");
+        }
+        return switch (this) {
+            case JSON_LINES -> JsonSnapshot.read(path, userConsumer, () -> userIds);
+            case BINARY -> BinarySnapshot.read(path, userConsumer, () -> userIds);
+            case SLOTTED -> SlottedSnapshot.read(path, userConsumer, () -> userIds);
+        };
+    }
+
+    /**
+     * Atomically replaces the snapshot at {@code path} with a snapshot of {@code users} in this format.
+     *
+     * @throws IllegalStateException if a problem occurred while writing the snapshot
+     */
+    public void write(Path path, long generation, Collection<User> users) {
+        switch (this) {
+            case JSON_LINES -> JsonSnapshot.write(path, generation, users);
+            case BINARY -> BinarySnapshot.write(path, generation, users);
+            case SLOTTED -> SlottedSnapshot.write(path, generation, users);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package bg.sofia.uni.fmi.mjt.splitwise.storage;
+
+import bg.sofia.uni.fmi.mjt.splitwise.user.User;
+import bg.sofia.uni.fmi.mjt.splitwise.user.UserIds;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote where the users of a SplitWise live while it runs. The snapshot and the journal stay the only
+ * durable copy of the database: a store is filled from the snapshot when it is opened and the journal is
+ * replayed over it, so whatever it keeps outside the memory is thrown away when it is closed.
+ * A store links every user it hands out to the groups he is a member of, so the members of a group always
+ * see the same group as its creator.
+ * The ids the users of a store refer to each other by belong to dictionaries of the store, see {@link UserIds},
+ * so they are dropped together with it, or with the users themselves.
+ * The users are changed only while the locks of the SplitWise for them are held, and a store never changes
+ * a user who is already handed out except through such a lock. The methods are thread-safe.
+ */
+public interface UserStore extends AutoCloseable {
+
+    /**
+     * Fills the empty store with the users of the snapshot at {@code path}. If the same username is stored
+     * twice, the first user is kept.
+     *
+     * @return the generation of the snapshot
+     * @throws IllegalStateException if a problem occurred while reading the snapshot
+     */
+    long load(Path path);
+
+    /**
+     * @return the user with username {@code username}, or null if there is no such user
+     */
+    User find(String username);
+
+    /**
+     * Adds the new user {@code user}.
+     *
+     * @return false if there is already a user with the same username
+     */
+    boolean add(User user);
+
+    /**
+     * @return the dictionary a new user of the store should refer to other users with
+     */
+    UserIds getUserIdsForNewUser();
+
+    /**
+     * Called after the group named {@code groupName} was created by {@code creator} and its members were linked
+     * to it, while the locks of the creator and of all members are still held.
+     */
+    void groupCreated(User creator, String groupName);
+
+    /**
+     * @return true if the user with username {@code username} is in the memory
+     */
+    boolean isResident(String username);
+
+    /**
+     * Brings all users to the memory, where they stay from then on.
+     *
+     * @return all users by username, which cannot be changed through the returned map
+     */
+    Map<String, User> getAll();
+
+    /**
+     * @return all users, to be stored in a snapshot while no one changes them. The users which are not in
+     * the memory are read again on every iteration and are not linked to their groups.
+     */
+    Collection<User> getUsers();
+
+    @Override
+    void close();
+}
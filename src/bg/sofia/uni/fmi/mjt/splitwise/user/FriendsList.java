@@ -0,0 +1,101 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntLongMap;
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntObjectMap;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the friends list of class StandardUser. The friends are referred to by their user ids:
+ * the amount every friend owes in stotinki is kept in a primitive map and the history of the
+ * bills between them is kept only for friends who have any.
+ */
+class FriendsList {
+    private static final long FIRST_ADDED_FRIEND_OWES_AMOUNT = 0;
+
+    private final IntLongMap amounts = new IntLongMap();
+    private final IntObjectMap<History> histories = new IntObjectMap<>();
+
+    public boolean contains(int friendId) {
+        return amounts.containsKey(friendId);
+    }
+
+    public void add(int friendId) {
+        if (!amounts.containsKey(friendId)) {
+            amounts.put(friendId, FIRST_ADDED_FRIEND_OWES_AMOUNT);
+        }
+    }
+
+    /**
+     * Adds a friend loaded from the database with the amount he owes and the bills between them,
+     * in the form in which they are shown.
+     */
+    public void add(int friendId, long amount, List<String> friendReasons) {
+        amounts.put(friendId, amount);
+        if (friendReasons != null && !friendReasons.isEmpty()) {
+            History history = new History();
+            for (String reason : friendReasons) {
+                history.addShown(reason);
+            }
+            histories.put(friendId, history);
+        }
+    }
+
+    /**
+     * Adds a friend loaded from the database with the amount he owes and the history of the bills
+     * between them, or null if there are none.
+     */
+    public void add(int friendId, long amount, History history) {
+        amounts.put(friendId, amount);
+        if (history != null && history.size() > 0) {
+            histories.put(friendId, history);
+        }
+    }
+
+    /**
+     * Changes the amount the friend owes without adding any new reason for this payment
+     */
+    public void addPayment(int friendId, long amount) {
+        amounts.add(friendId, amount);
+    }
+
+    /**
+     * Changes the amount the friend owes because of a bill of {@code bill} stotinki
+     * and adds the bill to the history of the friend
+     */
+    public void addPayment(int friendId, long amount, long bill, String reason) {
+        amounts.add(friendId, amount);
+        histories.computeIfAbsent(friendId, id -> new History()).add(bill, reason);
+    }
+
+    /**
+     * @return the amount the friend owes in stotinki
+     */
+    public long getAmount(int friendId) {
+        return amounts.getOrDefault(friendId, FIRST_ADDED_FRIEND_OWES_AMOUNT);
+    }
+
+    /**
+     * @return the bills between the current user and the friend, in the form in which they are shown
+     */
+    public List<String> getReasons(int friendId) {
+        History history = histories.get(friendId);
+        return history != null ? history.show() : Collections.emptyList();
+    }
+
+    /**
+     * @return the history of the bills between the current user and the friend, or null if there are none
+     */
+    History getHistory(int friendId) {
+        return histories.get(friendId);
+    }
+
+    /**
+     * @return the user ids of all friends, in no particular order
+     */
+    public int[] getFriendIds() {
+        return amounts.keys();
+    }
+}
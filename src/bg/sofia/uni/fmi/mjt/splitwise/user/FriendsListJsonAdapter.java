@@ -0,0 +1,50 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote keeps the friends list, which refers to the friends by user id in memory,
+ * in the JSON format of the database: an object with a {@link StandardPayment} for every username.
+ * The ids are those of the dictionary the adapter is bound to.
+ */
+class FriendsListJsonAdapter implements JsonSerializer<FriendsList>, JsonDeserializer<FriendsList> {
+    private final UserIds userIds;
+
+    FriendsListJsonAdapter(UserIds userIds) {
+        this.userIds = userIds;
+    }
+
+    @Override
+    public JsonElement serialize(FriendsList friendsList, Type type, JsonSerializationContext context) {
+        JsonObject json = new JsonObject();
+
+        for (int friendId : friendsList.getFriendIds()) {
+            StandardPayment payment = new StandardPayment(friendsList.getAmount(friendId),
+                    friendsList.getReasons(friendId));
+            json.add(userIds.usernameOf(friendId), context.serialize(payment));
+        }
+        return json;
+    }
+
+    @Override
+    public FriendsList deserialize(JsonElement json, Type type, JsonDeserializationContext context)
+            throws JsonParseException {
+        FriendsList friendsList = new FriendsList();
+
+        for (Map.Entry<String, JsonElement> friend : json.getAsJsonObject().entrySet()) {
+            StandardPayment payment = context.deserialize(friend.getValue(), StandardPayment.class);
+            friendsList.add(userIds.idOf(friend.getKey()), payment.getAmount(), payment.getReasons());
+        }
+        return friendsList;
+    }
+}
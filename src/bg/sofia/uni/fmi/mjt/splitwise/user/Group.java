@@ -1,49 +1,186 @@
 package bg.sofia.uni.fmi.mjt.splitwise.user;
 
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntLongMap;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UserNotFoundException;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UsernameAlreadyExistsException;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * @author Stiliyan Iliev
+ * @apiNote the amounts the members owe the creator of the group are held in stotinki.
+ * A bill split in the group is only added to the shared amount of the group, so recording it
+ * does not depend on the number of members. What a member owes is derived when it is read:
+ * his share of the shared amount plus his own offset, which holds his payments. The members
+ * are ordered by username, which ranks them when the shared amount is split. In memory the
+ * members are referred to by their ids in the dictionary of the creator of the group, see {@link UserIds},
+ * which the group holds, so a member of another dictionary reads what he owes by his username.
+ * Databases stored before the shared amount existed hold the amount each member owes under "Users";
+ * such amounts become the offsets of the members when the group is loaded.
+ * A group is changed by one thread at a time, but its members may read what they owe in it on
+ * other threads. They never read the fields which the changes write: every change ends by publishing an
+ * immutable {@link MemberView} of the offsets, the shared amount and the bills, which a member reads with
+ * a single volatile read, so he sees all of a change or nothing of it. A bill shares the offsets with the
+ * previous view, while a payment copies them, since the previous view may still be read. A member who has
+ * rendered his status subscribes to the changes of the group, and every change notifies the subscribed
+ * members once and forgets them, so a bill costs nothing for the members who have not looked at their
+ * status since the last change.
+ * The group counts its members who owe anything, so whether it is finished is known without reading
+ * every member. A payment changes the count by looking only at the member who payed. A member owes nothing
+ * exactly while the shared amount is in a window of as many values as there are members, which starts at
+ * minus his offset times the number of members minus his rank. The group keeps how many windows start at
+ * each value, so a bill changes the count by looking only at the windows the shared amount enters or
+ * leaves. Adding a member changes no balance, so it does not change the count, but it moves every window.
  */
 class Group {
-    private transient static final double FIRST_AMOUNT = 0.0;
+    private transient static final long FIRST_AMOUNT = 0;
+    private transient static final int CREATOR_RANK = 0;
 
     @SerializedName("Group")
     private final String groupName;
+    @SerializedName("Members")
+    private IntLongMap memberOffsets;
+    @SerializedName("Split")
+    @JsonAdapter(MoneyJsonAdapter.class)
+    private long sharedAmount;
     @SerializedName("Users")
-    private final Map<String, Double> groupOfUsers;
-    private transient final int numberOfGroupMembers;
-    private final List<String> reasons;
+    private IntLongMap legacyMemberAmounts;
+    @JsonAdapter(HistoryJsonAdapter.class)
+    private History reasons;
+
+    ///the dictionary of the creator, which the ids of the members belong to
+    private transient UserIds userIds;
+    ///built lazily and never changed, so a member view can share the ranks
+    private transient volatile int[] memberIds;
+    private transient volatile IntLongMap memberRanks;
+    private transient boolean isLoadedFromLegacyAmounts;
+    private transient volatile long numberOfChanges;
+    ///the only state of the group which its members read
+    private transient volatile MemberView memberView;
+    ///guarded by the group itself, the members are told apart by identity
+    private transient Set<StandardUser> statusSubscribers;
+    private transient long storedNumberOfChanges;
+    ///read and changed only by the creator of the group, like the position of the group among his groups
+    ///the number of windows starting at every value, or null while the members in debt were not counted
+    private transient TreeMap<Long, Integer> settledWindowStarts;
+    private transient int numberOfMembersInDebt;
+    private transient int position;
 
     public Group(String groupName, String... usernames) {
-        this.reasons = new LinkedList<>();
+        this(new UserIds(), groupName, usernames);
+    }
+
+    /**
+     * Creates a group whose members are referred to by their ids in {@code userIds}.
+     */
+    Group(UserIds userIds, String groupName, String... usernames) {
+        this.userIds = userIds;
+        this.reasons = new History();
 
         this.groupName = groupName;
 
-        this.groupOfUsers = new HashMap<>();
-        this.numberOfGroupMembers = usernames.length + 1;
+        this.memberOffsets = new IntLongMap(usernames.length);
 
         for (String username : usernames) {
-            this.groupOfUsers.put(username, FIRST_AMOUNT);
+            this.memberOffsets.put(userIds.idOf(username), FIRST_AMOUNT);
+        }
+        this.storedNumberOfChanges = StandardUser.NEVER_STORED;
+        publishMemberView();
+    }
+
+    /**
+     * Creates a group loaded from the database with the offsets of its members by their ids in {@code userIds},
+     * its shared amount and the history of its bills.
+     */
+    Group(UserIds userIds, String groupName, IntLongMap memberOffsets, long sharedAmount, History reasons) {
+        this.userIds = userIds;
+        this.groupName = groupName;
+        this.memberOffsets = memberOffsets;
+        this.sharedAmount = sharedAmount;
+        this.reasons = reasons;
+        publishMemberView();
+    }
+
+    /**
+     * @return the dictionary the ids of the members belong to
+     */
+    UserIds getUserIds() {
+        return userIds;
+    }
+
+    /**
+     * Binds a group read from JSON, which has no dictionary yet, to the dictionary it was read with.
+     */
+    void setUserIds(UserIds userIds) {
+        this.userIds = userIds;
+    }
+
+    /**
+     * Moves the amounts of a group loaded from a database stored before the shared amount
+     * existed to the offsets of its members.
+     */
+    void migrateLegacyAmounts() {
+        if (reasons == null) {
+            reasons = new History();
+        }
+        if (legacyMemberAmounts != null) {
+            memberOffsets = legacyMemberAmounts;
+            sharedAmount = 0;
+            legacyMemberAmounts = null;
+            isLoadedFromLegacyAmounts = true;
         }
+        publishMemberView();
     }
 
-    public void splitByGroup(double amount, String reason) {
-        if (amount <= 0.0) {
+    /**
+     * @return true if the group was loaded from a database in which the friends list of every
+     * member also held what he owes in the group, until {@link #markMembersLinked()} is called
+     */
+    boolean isLoadedFromLegacyAmounts() {
+        return isLoadedFromLegacyAmounts;
+    }
+
+    void markMembersLinked() {
+        isLoadedFromLegacyAmounts = false;
+    }
+
+    /**
+     * Splits {@code amount} stotinki among the creator of the group, who has rank 0,
+     * and the members, ranked by username from 1.
+     */
+    public void splitByGroup(long amount, String reason) {
+        if (amount <= 0) {
             throw new IllegalArgumentException("The value of argument amount in method splitByGroup" +
                     " is invalid!");
         }
-        double amountToPay = amount / numberOfGroupMembers;
+        long previousSharedAmount = sharedAmount;
+        sharedAmount += amount;
+        if (settledWindowStarts != null) {
+            int numberOfMembers = memberOffsets.size();
+            int numberOfShares = getNumberOfGroupMembers();
 
-        groupOfUsers.replaceAll((username, oldValue) -> oldValue + amountToPay);
-        this.reasons.add(reason + "-" + amount + "BGN");
+            if (amount >= numberOfShares) {
+                numberOfMembersInDebt = numberOfMembers -
+                        countSettledWindowStarts(sharedAmount - numberOfShares, sharedAmount);
+            } else {
+                numberOfMembersInDebt += countSettledWindowStarts(previousSharedAmount - numberOfShares,
+                        sharedAmount - numberOfShares) - countSettledWindowStarts(previousSharedAmount, sharedAmount);
+            }
+        }
+        this.reasons.add(amount, reason);
+        numberOfChanges++;
+        publishMemberView();
+        notifyStatusSubscribers();
     }
 
     public void addUserToGroup(String username) throws UsernameAlreadyExistsException {
@@ -51,23 +188,51 @@ class Group {
             throw new IllegalArgumentException("The value of argument username in method addUserToGroup" +
                     "is invalid!");
         }
-        if (groupOfUsers.containsKey(username)) {
+        int userId = userIds.idOf(username);
+        if (memberOffsets.containsKey(userId)) {
             throw new UsernameAlreadyExistsException("This user is already in this group!");
-        } else {
-            groupOfUsers.put(username, FIRST_AMOUNT);
         }
+
+        ///the shares change with the number of members, so the current ones are fixed in the offsets
+        IntLongMap offsets = getChangeableMemberOffsets();
+        for (int memberId : getMemberIds()) {
+            offsets.put(memberId, getMemberBalance(memberId));
+        }
+        sharedAmount = 0;
+        offsets.put(userId, FIRST_AMOUNT);
+        memberIds = null;
+        memberRanks = null;
+        if (settledWindowStarts != null) {
+            countMembersInDebt();
+        }
+        numberOfChanges++;
+        publishMemberView();
+        notifyStatusSubscribers();
     }
 
-    public void payed(String username, double amount) throws UserNotFoundException {
-        if (username == null || username.isEmpty() || amount <= 0.0) {
+    public void payed(String username, long amount) throws UserNotFoundException {
+        if (username == null || username.isEmpty() || amount <= 0) {
             throw new IllegalArgumentException("The value of the arguments in method payed " +
                     "in class Group are invalid!");
         }
 
-        if (!groupOfUsers.containsKey(username)) {
+        int userId = userIds.find(username);
+        if (!memberOffsets.containsKey(userId)) {
             throw new UserNotFoundException("There is no such user in this group!");
         } else {
-            groupOfUsers.replace(username, groupOfUsers.get(username) - amount);
+            boolean wasInDebt = getMemberBalance(userId) != 0;
+            if (settledWindowStarts != null) {
+                settledWindowStarts.merge(getSettledWindowStart(userId), -1, (count, change) ->
+                        count + change == 0 ? null : count + change);
+            }
+            getChangeableMemberOffsets().add(userId, -amount);
+            if (settledWindowStarts != null) {
+                settledWindowStarts.merge(getSettledWindowStart(userId), 1, Integer::sum);
+                numberOfMembersInDebt += (getMemberBalance(userId) != 0 ? 1 : 0) - (wasInDebt ? 1 : 0);
+            }
+            numberOfChanges++;
+            publishMemberView();
+            notifyStatusSubscribers();
         }
     }
 
@@ -75,20 +240,285 @@ class Group {
         return groupName;
     }
 
-    public Map<String, Double> getGroupOfUsers() {
-        return groupOfUsers;
+    /**
+     * @return the usernames of the members of the group, ordered by username
+     */
+    public Set<String> getMembers() {
+        Set<String> members = new LinkedHashSet<>();
+
+        for (int memberId : getMemberIds()) {
+            members.add(userIds.usernameOf(memberId));
+        }
+        return members;
+    }
+
+    /**
+     * @return the user ids of the members of the group, ordered by username
+     */
+    public int[] getMemberIds() {
+        int[] ids = memberIds;
+        if (ids == null) {
+            ids = idsByUsername(userIds, memberOffsets);
+            memberIds = ids;
+        }
+        return ids;
+    }
+
+    public boolean hasMember(String username) {
+        return memberOffsets.containsKey(userIds.find(username));
+    }
+
+    /**
+     * @return the amount the member with user id {@code memberId} owes the creator of the group in stotinki.
+     * Read by the creator; a member reads it from the {@link #getMemberView() member view}.
+     */
+    public long getMemberBalance(int memberId) {
+        return memberOffsets.getOrDefault(memberId, FIRST_AMOUNT) + Money.share(sharedAmount,
+                getNumberOfGroupMembers(), (int) getMemberRanks().getOrDefault(memberId, CREATOR_RANK));
+    }
+
+    /**
+     * @return the amount the member with username {@code username} owes the creator of the group in stotinki
+     */
+    public long getMemberBalance(String username) {
+        return getMemberBalance(userIds.find(username));
+    }
+
+    /**
+     * @return the number of members of the group, including its creator
+     */
+    public int getNumberOfGroupMembers() {
+        return memberOffsets.size() + 1;
+    }
+
+    /**
+     * @return the members of the group with the amounts they owe in leva, e.g. {Dimitar00=40.0, Kristian00=40.0}
+     */
+    public String getGroupOfUsersToString() {
+        StringBuilder result = new StringBuilder("{");
+
+        for (int memberId : getMemberIds()) {
+            if (result.length() > 1) {
+                result.append(", ");
+            }
+            result.append(userIds.usernameOf(memberId)).append('=')
+                    .append(Money.toMajorUnits(getMemberBalance(memberId)));
+        }
+
+        return String.valueOf(result.append('}'));
     }
 
     public boolean isFinished() {
-        for (Map.Entry<String, Double> gr : groupOfUsers.entrySet()) {
-            if (gr.getValue() != 0.0) {
-                return false;
+        return getNumberOfMembersInDebt() == 0;
+    }
+
+    /**
+     * @return the number of members of the group who owe the creator anything or whom he owes anything
+     */
+    int getNumberOfMembersInDebt() {
+        if (settledWindowStarts == null) {
+            countMembersInDebt();
+        }
+        return numberOfMembersInDebt;
+    }
+
+    private void countMembersInDebt() {
+        settledWindowStarts = new TreeMap<>();
+        numberOfMembersInDebt = 0;
+
+        for (int memberId : getMemberIds()) {
+            settledWindowStarts.merge(getSettledWindowStart(memberId), 1, Integer::sum);
+            if (getMemberBalance(memberId) != 0) {
+                numberOfMembersInDebt++;
             }
         }
-        return true;
     }
 
-    public List<String> getReasons() {
+    /**
+     * @return the smallest shared amount at which the member with user id {@code memberId} owes nothing:
+     * his share is floor((shared amount + rank) / number of shares), which cancels his offset for as many
+     * shared amounts as there are shares
+     */
+    private long getSettledWindowStart(int memberId) {
+        return -memberOffsets.getOrDefault(memberId, FIRST_AMOUNT) * getNumberOfGroupMembers() -
+                getMemberRanks().getOrDefault(memberId, CREATOR_RANK);
+    }
+
+    /**
+     * @return the number of members whose window starts after {@code from} and at or before {@code to}
+     */
+    private int countSettledWindowStarts(long from, long to) {
+        int count = 0;
+        for (Map.Entry<Long, Integer> windowStarts : settledWindowStarts.subMap(from, false, to, true).entrySet()) {
+            count += windowStarts.getValue();
+        }
+        return count;
+    }
+
+    /**
+     * @return the position of the group among the groups of its creator, in the order they were created
+     */
+    int getPosition() {
+        return position;
+    }
+
+    void setPosition(int position) {
+        this.position = position;
+    }
+
+    /**
+     * @return the offsets of the members by user id in stotinki, which are changed only by the group
+     */
+    IntLongMap getMemberOffsets() {
+        return memberOffsets;
+    }
+
+    /**
+     * @return the sum of the bills split in the group since its members last changed in stotinki
+     */
+    long getSharedAmount() {
+        return sharedAmount;
+    }
+
+    History getHistory() {
         return reasons;
     }
+
+    /**
+     * @return the bills split in the group, in the form in which they are shown
+     */
+    public List<String> getReasons() {
+        return reasons.show();
+    }
+
+    /**
+     * @return true if the group has changed since {@link #markStored()} was last called, or since it was created
+     * if it was never called
+     */
+    boolean isChanged() {
+        return numberOfChanges != storedNumberOfChanges;
+    }
+
+    void markStored() {
+        storedNumberOfChanges = numberOfChanges;
+    }
+
+    /**
+     * Subscribes {@code member} to the next change of the group, after which the status he has rendered
+     * is no longer valid. Subscribing the same member again before that change has no effect.
+     */
+    synchronized void subscribeToNextChange(StandardUser member) {
+        if (statusSubscribers == null) {
+            statusSubscribers = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+        statusSubscribers.add(member);
+    }
+
+    private synchronized void notifyStatusSubscribers() {
+        if (statusSubscribers == null || statusSubscribers.isEmpty()) {
+            return;
+        }
+        for (StandardUser member : statusSubscribers) {
+            member.memberGroupChanged();
+        }
+        statusSubscribers.clear();
+    }
+
+    /**
+     * @return what the members read of the group, as of its last change
+     */
+    MemberView getMemberView() {
+        return memberView;
+    }
+
+    private void publishMemberView() {
+        memberView = new MemberView(userIds, memberOffsets, sharedAmount, reasons.view(), memberRanks);
+    }
+
+    /**
+     * @return the offsets of the members, copied first if the member view holds them, so the view never changes
+     */
+    private IntLongMap getChangeableMemberOffsets() {
+        if (memberView != null && memberView.memberOffsets == memberOffsets) {
+            memberOffsets = memberOffsets.copy();
+        }
+        return memberOffsets;
+    }
+
+    private IntLongMap getMemberRanks() {
+        IntLongMap ranks = memberRanks;
+        if (ranks == null) {
+            ranks = ranksOf(getMemberIds());
+            memberRanks = ranks;
+        }
+        return ranks;
+    }
+
+    private static int[] idsByUsername(UserIds userIds, IntLongMap memberOffsets) {
+        return Arrays.stream(memberOffsets.keys()).boxed()
+                .sorted(Comparator.comparing(userIds::usernameOf))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    private static IntLongMap ranksOf(int[] memberIdsByUsername) {
+        IntLongMap ranks = new IntLongMap(memberIdsByUsername.length);
+
+        int rank = CREATOR_RANK + 1;
+        for (int memberId : memberIdsByUsername) {
+            ranks.put(memberId, rank++);
+        }
+        return ranks;
+    }
+
+    /**
+     * The group as of one of its changes, which is never changed itself, so it can be read on any thread.
+     */
+    static final class MemberView {
+        private final UserIds userIds;
+        private final IntLongMap memberOffsets;
+        private final long sharedAmount;
+        private final History.View reasons;
+        private volatile IntLongMap memberRanks;
+
+        private MemberView(UserIds userIds, IntLongMap memberOffsets, long sharedAmount, History.View reasons,
+                           IntLongMap memberRanks) {
+            this.userIds = userIds;
+            this.memberOffsets = memberOffsets;
+            this.sharedAmount = sharedAmount;
+            this.reasons = reasons;
+            this.memberRanks = memberRanks;
+        }
+
+        /**
+         * @return the amount the member with user id {@code memberId} owed the creator of the group in stotinki
+         */
+        long getMemberBalance(int memberId) {
+            return memberOffsets.getOrDefault(memberId, FIRST_AMOUNT) + Money.share(sharedAmount,
+                    memberOffsets.size() + 1, (int) getMemberRanks().getOrDefault(memberId, CREATOR_RANK));
+        }
+
+        /**
+         * @return the amount the member with username {@code username} owed the creator of the group in stotinki
+         */
+        long getMemberBalance(String username) {
+            return getMemberBalance(userIds.find(username));
+        }
+
+        /**
+         * @return the bills split in the group, in the form in which they are shown
+         */
+        List<String> getReasons() {
+            return reasons.show();
+        }
+
+        private IntLongMap getMemberRanks() {
+            IntLongMap ranks = memberRanks;
+            if (ranks == null) {
+                ranks = ranksOf(idsByUsername(userIds, memberOffsets));
+                memberRanks = ranks;
+            }
+            return ranks;
+        }
+    }
 }
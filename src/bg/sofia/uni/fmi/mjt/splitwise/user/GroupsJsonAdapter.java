@@ -0,0 +1,53 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote keeps the groups of a user, which are indexed by their names in memory,
+ * in the JSON format of the database: an array of groups. The groups it reads refer to their members
+ * by the ids of the dictionary the adapter is bound to.
+ */
+class GroupsJsonAdapter implements JsonSerializer<Map<String, Group>>, JsonDeserializer<Map<String, Group>> {
+    static final Type GROUPS_TYPE = new TypeToken<Map<String, Group>>() {
+    }.getType();
+    private static final Type GROUP_LIST_TYPE = new TypeToken<List<Group>>() {
+    }.getType();
+
+    private final UserIds userIds;
+
+    GroupsJsonAdapter(UserIds userIds) {
+        this.userIds = userIds;
+    }
+
+    @Override
+    public JsonElement serialize(Map<String, Group> groups, Type type, JsonSerializationContext context) {
+        return context.serialize(new ArrayList<>(groups.values()), GROUP_LIST_TYPE);
+    }
+
+    @Override
+    public Map<String, Group> deserialize(JsonElement json, Type type, JsonDeserializationContext context)
+            throws JsonParseException {
+        List<Group> groupList = context.deserialize(json, GROUP_LIST_TYPE);
+
+        Map<String, Group> groups = new LinkedHashMap<>();
+        for (Group group : groupList) {
+            group.setUserIds(userIds);
+            group.migrateLegacyAmounts();
+            groups.putIfAbsent(group.getGroupName(), group);
+        }
+        return groups;
+    }
+}
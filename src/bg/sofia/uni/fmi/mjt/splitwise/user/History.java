@@ -0,0 +1,197 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the history of the bills between two friends or in a group. Every entry is the time it was
+ * added, the amount of the bill in stotinki and its reason, taken from the {@link ReasonTable}, held
+ * in chunks of arrays, so an entry takes 20 bytes and the entries are read in order of memory.
+ * The first chunk grows until it reaches the size of the others, so a short history stays small.
+ * An entry is shown as before: the reason, a dash, the amount in leva and BGN, e.g. dinner-40.0BGN.
+ * Entries loaded from a database which do not have this form are kept as they were, without an amount.
+ * The history is changed by one thread at a time, but may be read on other threads: the size is
+ * written last and read first. A {@link View} taken by the thread which changes the history holds
+ * the entries added so far and can be read on any thread once it is safely published.
+ */
+final class History {
+    static final long UNKNOWN_TIMESTAMP = 0;
+    static final long NO_AMOUNT = Long.MIN_VALUE;
+
+    private static final int FIRST_CHUNK_CAPACITY = 4;
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_CAPACITY = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_CAPACITY - 1;
+    private static final Pattern SHOWN_ENTRY = Pattern.compile("(.*?)-(-?\\d+\\.\\d+(?:E-?\\d+)?)BGN",
+            Pattern.DOTALL);
+
+    private long[][] timestamps = new long[0][];
+    private long[][] amounts = new long[0][];
+    private String[][] reasons = new String[0][];
+    private volatile int size;
+
+    /**
+     * Adds a bill of {@code amount} stotinki made now.
+     */
+    void add(long amount, String reason) {
+        add(System.currentTimeMillis(), amount, reason);
+    }
+
+    /**
+     * Adds a bill of {@code amount} stotinki made at {@code timestamp}.
+     */
+    void add(long timestamp, long amount, String reason) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        int offset = index & CHUNK_MASK;
+
+        if (chunk == timestamps.length || offset == timestamps[chunk].length) {
+            grow(chunk);
+        }
+        timestamps[chunk][offset] = timestamp;
+        amounts[chunk][offset] = amount;
+        reasons[chunk][offset] = ReasonTable.intern(reason);
+
+        size = index + 1;
+    }
+
+    /**
+     * Adds an entry loaded in the form in which it is shown, whose time is unknown.
+     */
+    void addShown(String entry) {
+        Matcher matcher = SHOWN_ENTRY.matcher(entry);
+        if (matcher.matches()) {
+            add(UNKNOWN_TIMESTAMP, Money.toMinorUnits(Double.parseDouble(matcher.group(2))),
+                    matcher.group(1));
+        } else {
+            add(UNKNOWN_TIMESTAMP, NO_AMOUNT, entry);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the time the entry at {@code index} was added in milliseconds since the epoch,
+     * or {@link #UNKNOWN_TIMESTAMP} if it was loaded from a database which does not hold it
+     */
+    long getTimestamp(int index) {
+        return timestamps[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    /**
+     * @return the amount of the bill at {@code index} in stotinki, or {@link #NO_AMOUNT} if it was loaded
+     * from a database in which the entry does not have the form in which it is shown
+     */
+    long getAmount(int index) {
+        return amounts[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    /**
+     * @return the reason of the entry at {@code index}
+     */
+    String getReason(int index) {
+        return reasons[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    /**
+     * @return the entry at {@code index} in the form in which it is shown
+     */
+    String show(int index) {
+        return show(amounts, reasons, index);
+    }
+
+    /**
+     * @return all entries in the form in which they are shown, in the order they were added
+     */
+    List<String> show() {
+        int currentSize = size;
+        return showFirst(amounts, reasons, currentSize);
+    }
+
+    /**
+     * @return the entries added so far. Must be called by the thread which changes the history.
+     */
+    View view() {
+        int currentSize = size;
+        return new View(amounts, reasons, currentSize);
+    }
+
+    private static String show(long[][] amounts, String[][] reasons, int index) {
+        int chunk = index >>> CHUNK_SHIFT;
+        int offset = index & CHUNK_MASK;
+
+        String reason = reasons[chunk][offset];
+        long amount = amounts[chunk][offset];
+        return amount == NO_AMOUNT ? reason : reason + "-" + Money.toMajorUnits(amount) + "BGN";
+    }
+
+    private static List<String> showFirst(long[][] amounts, String[][] reasons, int size) {
+        List<String> entries = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            entries.add(show(amounts, reasons, i));
+        }
+        return entries;
+    }
+
+    /**
+     * The first entries of a history. The arrays of the chunks are replaced, never changed, when the history
+     * grows and the entries of the view are never changed, so the view does not change either.
+     */
+    static final class View {
+        private final long[][] amounts;
+        private final String[][] reasons;
+        private final int size;
+
+        private View(long[][] amounts, String[][] reasons, int size) {
+            this.amounts = amounts;
+            this.reasons = reasons;
+            this.size = size;
+        }
+
+        /**
+         * @return the entries of the view in the form in which they are shown, in the order they were added
+         */
+        List<String> show() {
+            return showFirst(amounts, reasons, size);
+        }
+    }
+
+    /**
+     * Makes room for the entries of chunk {@code chunk}: the first chunk is doubled until it
+     * reaches the capacity of the others and every other chunk is added at its full capacity.
+     * The arrays of the entries already added are never changed, so they can still be read.
+     */
+    private void grow(int chunk) {
+        if (chunk == 0 && timestamps.length > 0) {
+            int capacity = Math.min(timestamps[0].length * 2, CHUNK_CAPACITY);
+            long[][] newTimestamps = timestamps.clone();
+            long[][] newAmounts = amounts.clone();
+            String[][] newReasons = reasons.clone();
+
+            newTimestamps[0] = Arrays.copyOf(timestamps[0], capacity);
+            newAmounts[0] = Arrays.copyOf(amounts[0], capacity);
+            newReasons[0] = Arrays.copyOf(reasons[0], capacity);
+
+            timestamps = newTimestamps;
+            amounts = newAmounts;
+            reasons = newReasons;
+            return;
+        }
+
+        int capacity = chunk == 0 ? FIRST_CHUNK_CAPACITY : CHUNK_CAPACITY;
+        timestamps = Arrays.copyOf(timestamps, chunk + 1);
+        amounts = Arrays.copyOf(amounts, chunk + 1);
+        reasons = Arrays.copyOf(reasons, chunk + 1);
+
+        timestamps[chunk] = new long[capacity];
+        amounts[chunk] = new long[capacity];
+        reasons[chunk] = new String[capacity];
+    }
+}
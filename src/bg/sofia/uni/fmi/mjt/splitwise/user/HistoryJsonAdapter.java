@@ -0,0 +1,36 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote keeps a history, which is held in primitive arrays in memory, in the JSON format
+ * of the database: an array of its entries in the form in which they are shown.
+ */
+class HistoryJsonAdapter extends TypeAdapter<History> {
+    @Override
+    public void write(JsonWriter out, History history) throws IOException {
+        out.beginArray();
+        for (int i = 0; i < history.size(); i++) {
+            out.value(history.show(i));
+        }
+        out.endArray();
+    }
+
+    @Override
+    public History read(JsonReader in) throws IOException {
+        History history = new History();
+
+        in.beginArray();
+        while (in.hasNext()) {
+            history.addShown(in.nextString());
+        }
+        in.endArray();
+
+        return history;
+    }
+}
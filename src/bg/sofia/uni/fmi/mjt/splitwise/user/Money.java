@@ -0,0 +1,45 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote all amounts are kept as a whole number of stotinki (hundredths of a lev), so they add up
+ * exactly and a settled debt is exactly zero. Amounts are converted from and to leva only at the
+ * boundaries: the commands, the journal and the JSON database.
+ */
+public final class Money {
+    private static final double MINOR_UNITS_IN_MAJOR_UNIT = 100.0;
+
+    private Money() {
+    }
+
+    /**
+     * @return {@code amount} leva in stotinki, rounded to the nearest stotinka
+     */
+    public static long toMinorUnits(double amount) {
+        return Math.round(amount * MINOR_UNITS_IN_MAJOR_UNIT);
+    }
+
+    /**
+     * @return {@code amount} stotinki in leva
+     */
+    public static double toMajorUnits(long amount) {
+        return amount / MINOR_UNITS_IN_MAJOR_UNIT;
+    }
+
+    /**
+     * Splits {@code amount} into {@code numberOfShares} shares which differ by at most a stotinka
+     * and always add up to {@code amount}: the share of rank {@code rank} is
+     * floor((amount + rank) / numberOfShares), so the remainder goes to the highest ranks.
+     *
+     * @param amount         the non-negative amount to split, in stotinki
+     * @param numberOfShares the number of participants in the split
+     * @param rank           the position of the participant, from 0 to {@code numberOfShares} - 1
+     * @return the share of the participant of rank {@code rank}, in stotinki
+     */
+    public static long share(long amount, int numberOfShares, int rank) {
+        if (amount < 0 || numberOfShares <= 0 || rank < 0 || rank >= numberOfShares) {
+            throw new IllegalArgumentException("Invalid argument value in method share in class Money!");
+        }
+        return (amount + rank) / numberOfShares;
+    }
+}
@@ -0,0 +1,24 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote keeps an amount, which is held in stotinki in memory, in leva in the JSON database,
+ * so databases stored before amounts were held in stotinki are still read.
+ */
+class MoneyJsonAdapter extends TypeAdapter<Long> {
+    @Override
+    public void write(JsonWriter out, Long amount) throws IOException {
+        out.value(Money.toMajorUnits(amount));
+    }
+
+    @Override
+    public Long read(JsonReader in) throws IOException {
+        return Money.toMinorUnits(in.nextDouble());
+    }
+}
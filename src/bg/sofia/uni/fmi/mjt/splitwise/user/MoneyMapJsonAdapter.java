@@ -0,0 +1,43 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntLongMap;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote keeps amounts of users, which are held in stotinki by user id in memory,
+ * in leva by username in the JSON database. The ids are those of the dictionary the adapter is bound to.
+ */
+class MoneyMapJsonAdapter extends TypeAdapter<IntLongMap> {
+    private final UserIds userIds;
+
+    MoneyMapJsonAdapter(UserIds userIds) {
+        this.userIds = userIds;
+    }
+
+    @Override
+    public void write(JsonWriter out, IntLongMap amounts) throws IOException {
+        out.beginObject();
+        for (int userId : amounts.keys()) {
+            out.name(userIds.usernameOf(userId)).value(Money.toMajorUnits(amounts.getOrDefault(userId, 0)));
+        }
+        out.endObject();
+    }
+
+    @Override
+    public IntLongMap read(JsonReader in) throws IOException {
+        IntLongMap amounts = new IntLongMap();
+
+        in.beginObject();
+        while (in.hasNext()) {
+            amounts.put(userIds.idOf(in.nextName()), Money.toMinorUnits(in.nextDouble()));
+        }
+        in.endObject();
+
+        return amounts;
+    }
+}
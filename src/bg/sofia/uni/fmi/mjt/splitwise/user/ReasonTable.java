@@ -0,0 +1,54 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote the pool of the reasons of payments: every reason is held once, so the histories refer to
+ * the same instance of a reason shared by both sides of a split, or repeated over many bills.
+ * The pool holds the reasons weakly: a reason which no history refers to any more is forgotten by
+ * the garbage collector, so the pool never holds more than the reasons of the users in memory.
+ * The pool is split in stripes by the hash of the reason, each guarded by itself, so it is safe
+ * to use from many threads.
+ */
+public final class ReasonTable {
+    private static final int NUMBER_OF_STRIPES = 16;
+
+    private static final Map<String, WeakReference<String>>[] STRIPES = createStripes();
+
+    private ReasonTable() {
+    }
+
+    /**
+     * @return the instance of {@code reason} held by the pool, which is {@code reason} itself if the pool
+     * does not hold an equal reason yet
+     */
+    public static String intern(String reason) {
+        if (reason == null) {
+            throw new IllegalArgumentException("The value of the reason cannot be null!");
+        }
+
+        Map<String, WeakReference<String>> stripe = STRIPES[reason.hashCode() & (NUMBER_OF_STRIPES - 1)];
+        synchronized (stripe) {
+            WeakReference<String> held = stripe.get(reason);
+            String heldReason = held != null ? held.get() : null;
+            if (heldReason != null) {
+                return heldReason;
+            }
+
+            stripe.put(reason, new WeakReference<>(reason));
+            return reason;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, WeakReference<String>>[] createStripes() {
+        Map<String, WeakReference<String>>[] stripes = new Map[NUMBER_OF_STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new WeakHashMap<>();
+        }
+        return stripes;
+    }
+}
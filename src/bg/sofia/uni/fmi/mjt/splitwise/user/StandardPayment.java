@@ -1,48 +1,28 @@
 package bg.sofia.uni.fmi.mjt.splitwise.user;
 
-import java.util.LinkedList;
+import com.google.gson.annotations.JsonAdapter;
+
 import java.util.List;
 
 /**
  * @author Stiliyan Iliev
- * @apiNote the purpose of this class is to make the process of containing and maintaining
- * of the friends list in class StandardUser much easier.
+ * @apiNote the form in which a single friend of class StandardUser is kept in the JSON database:
+ * the amount the friend owes in stotinki and the reasons of the payments between them.
  * */
 class StandardPayment {
-    private transient static final double FIRST_ADDED_FRIEND_OWES_AMOUNT = 0.0;
     private final List<String> reasons;
-    private double amount;
-
-    public StandardPayment() {
-        this.reasons = new LinkedList<>();
-        this.amount = FIRST_ADDED_FRIEND_OWES_AMOUNT;
-    }
+    @JsonAdapter(MoneyJsonAdapter.class)
+    private final long amount;
 
-    /**
-     * Allows the user to easily change the owe amount without adding any new reason for this payment
-     *
-     * @return the updated StandardPayment
-     * */
-    public StandardPayment addPayment(double amount) {
-        this.amount += amount;
-        return this;
-    }
-
-    /**
-     * Allows the user to easily change the owe amount and adding the reason for this change
-     *
-     * @return the updated StandardPayment
-     * */
-    public StandardPayment addPayment(double amount, String reason) {
-        this.amount += amount;
-        reasons.add(reason);
-        return this;
+    public StandardPayment(long amount, List<String> reasons) {
+        this.reasons = reasons;
+        this.amount = amount;
     }
 
     /**
-     * @return the current amount of the StandardPayment
+     * @return the current amount of the StandardPayment in stotinki
      * */
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
@@ -1,22 +1,40 @@
 package bg.sofia.uni.fmi.mjt.splitwise.user;
 
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntObjectMap;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.GroupNotFoundException;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UnableToCreateGroupException;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UserNotFoundException;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UsernameAlreadyExistsException;
 import com.google.gson.annotations.SerializedName;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * @author Stiliyan Iliev
+ * @apiNote what the user owes in the groups of other users is not held in his friends list.
+ * It is derived from the groups themselves, to which the user is linked when the groups
+ * are created or loaded. The friends and the creators of those groups are referred to by
+ * their ids in the dictionary the user was created or read with, see {@link UserIds}, which is
+ * the dictionary of his store and of the groups he creates.
+ * The status of the user is rendered once and kept, already encoded for sending, until something it shows
+ * changes: every change of the user counts as a change of his own, and a group he is a member of pushes
+ * its next change to him once he has rendered his status, so a rendering is still valid while the sum of
+ * these numbers is the one it was rendered for. Reading a valid rendering does not look at any group.
+ * The groups of the user which may be open are indexed by their position, so listing the open groups does
+ * not look at the finished ones: a group becomes possibly open when it changes and is dropped from the
+ * index when it is found finished while listing.
  */
 public class StandardUser implements User {
-
-    private transient static final double FIRST_ADDED_FRIEND_OWES_AMOUNT = 0;
-    private transient static final double SPLIT_BETWEEN_TWO_FRIEND = 2.0;
+    private transient static final int SPLIT_BETWEEN_TWO_FRIEND = 2;
+    private transient static final int FRIEND_WHO_HAS_TO_PAY_RANK = 1;
+    transient static final long NEVER_STORED = -1;
+    private transient static final AtomicLongFieldUpdater<StandardUser> MEMBER_GROUP_CHANGES =
+            AtomicLongFieldUpdater.newUpdater(StandardUser.class, "numberOfMemberGroupChanges");
 
     @SerializedName("Username")
     private final String myUsername;
@@ -25,44 +43,207 @@ public class StandardUser implements User {
     private final String password;
 
     @SerializedName("Friends")
-    private final Map<String, StandardPayment> friendsList;
-
-    private final Set<Group> groups;
+    private final FriendsList friendsList;
+
+    private final Map<String, Group> groups;
+
+    private transient UserIds userIds;
+    private transient IntObjectMap<List<Group>> memberGroupsByCreator;
+    private transient List<Group> memberGroups;
+    private transient List<Group> groupsByPosition;
+    private transient BitSet possiblyOpenGroups;
+
+    private transient volatile long numberOfChanges;
+    ///changed by the threads which change the groups the user is a member of
+    private transient volatile long numberOfMemberGroupChanges;
+    ///a user who was never stored is created with a number of changes he never has
+    private transient long storedNumberOfChanges;
+    private transient volatile Rendering statusRendering;
+    private transient volatile Rendering friendsListRendering;
+    private transient volatile Rendering unfinishedGroupsRendering;
+    private transient volatile Rendering friendsIOweRendering;
 
     public StandardUser(String myUsername, String password) {
+        this(myUsername, password, new UserIds());
+    }
+
+    /**
+     * Creates a user who refers to his friends, and the groups he creates to their members,
+     * by their ids in {@code userIds}.
+     */
+    public StandardUser(String myUsername, String password, UserIds userIds) {
         if (myUsername == null || myUsername.isEmpty() || password == null
                 || password.isEmpty() || password.isBlank()) {
             throw new IllegalArgumentException("The vaule of argument myUsername in User constructor" +
                     " is invalid!");
         }
+        if (userIds == null) {
+            throw new IllegalArgumentException("Invalid argument value in constructor of class StandardUser!");
+        }
 
+        this.userIds = userIds;
         this.myUsername = myUsername;
         this.password = password;
 
-        this.friendsList = new HashMap<>();
-        this.groups = new HashSet<>();
+        this.friendsList = new FriendsList();
+        this.groups = new LinkedHashMap<>();
+        this.storedNumberOfChanges = NEVER_STORED;
+    }
+
+    /**
+     * Creates a user loaded from the database with his friends list and the groups he created,
+     * indexed by their names, which refer to users by their ids in {@code userIds}.
+     */
+    StandardUser(UserIds userIds, String myUsername, String password, FriendsList friendsList,
+                 Map<String, Group> groups) {
+        this.userIds = userIds;
+        this.myUsername = myUsername;
+        this.password = password;
+        this.friendsList = friendsList;
+        this.groups = groups;
+    }
+
+    /**
+     * @return the dictionary the ids of the friends of the user belong to
+     */
+    UserIds getUserIds() {
+        return userIds;
+    }
+
+    /**
+     * Binds a user read from JSON, which has no dictionary yet, to the dictionary he was read with.
+     */
+    void setUserIds(UserIds userIds) {
+        this.userIds = userIds;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    FriendsList getFriendsList() {
+        return friendsList;
+    }
+
+    /**
+     * @return the groups created by the user, in the order they were created
+     */
+    Collection<Group> getGroups() {
+        return groups.values();
     }
 
     private Group findGroup(String groupName) {
-        Group group = null;
-        for (Group gr : this.groups) {
-            if (gr.getGroupName().equals(groupName)) {
-                group = gr;
-                break;
+        return groups.get(groupName);
+    }
+
+    /**
+     * @return the amount the user with user id {@code userId} owes the current user in stotinki,
+     * negative if the current user owes him, including what the current user owes in his groups
+     */
+    private long getBalance(int userId) {
+        long balance = friendsList.getAmount(userId);
+
+        List<Group> memberGroups = memberGroupsByCreator != null ? memberGroupsByCreator.get(userId) : null;
+        if (memberGroups != null) {
+            for (Group group : memberGroups) {
+                balance -= group.getMemberView().getMemberBalance(myUsername);
+            }
+        }
+        return balance;
+    }
+
+    /**
+     * @return the reasons of the payments between the current user and the user with
+     * user id {@code userId}, including the bills of his groups the current user is in
+     */
+    private List<String> getReasons(int userId) {
+        List<String> reasons = friendsList.getReasons(userId);
+
+        List<Group> memberGroups = memberGroupsByCreator != null ? memberGroupsByCreator.get(userId) : null;
+        if (memberGroups == null) {
+            return reasons;
+        }
+
+        List<String> allReasons = new ArrayList<>(reasons);
+        for (Group group : memberGroups) {
+            allReasons.addAll(group.getMemberView().getReasons());
+        }
+        return allReasons;
+    }
+
+    /**
+     * Links the current user, as a member, to the group {@code group} created by the user with
+     * username {@code creatorUsername}.
+     */
+    void joinGroup(String creatorUsername, Group group) {
+        int creatorId = userIds.idOf(creatorUsername);
+        if (memberGroupsByCreator == null) {
+            memberGroupsByCreator = new IntObjectMap<>();
+        }
+        memberGroupsByCreator.computeIfAbsent(creatorId, creator -> new ArrayList<>()).add(group);
+        if (memberGroups == null) {
+            memberGroups = new ArrayList<>();
+        }
+        memberGroups.add(group);
+
+        friendsList.add(creatorId);
+        if (group.isLoadedFromLegacyAmounts()) {
+            ///the friends list of a member used to hold what he owes in the group as well
+            friendsList.addPayment(creatorId, group.getMemberView().getMemberBalance(myUsername));
+        }
+        numberOfChanges++;
+    }
+
+    public void linkGroupMembers(String groupName, Function<String, User> usersByUsername)
+            throws GroupNotFoundException {
+        if (groupName == null || groupName.isEmpty() || usersByUsername == null) {
+            throw new IllegalArgumentException("Invalid argument value in method linkGroupMembers!");
+        }
+
+        Consumer<User> invitation = inviteToGroup(groupName);
+        Group group = findGroup(groupName);
+
+        for (String memberUsername : group.getMembers()) {
+            User member = usersByUsername.apply(memberUsername);
+            if (member != null) {
+                invitation.accept(member);
             }
         }
-        return group;
+        group.markMembersLinked();
+    }
+
+    public Consumer<User> inviteToGroup(String groupName) throws GroupNotFoundException {
+        if (groupName == null || groupName.isEmpty()) {
+            throw new IllegalArgumentException("Invalid argument value in method inviteToGroup!");
+        }
+
+        Group group = findGroup(groupName);
+        if (group == null) {
+            throw new GroupNotFoundException("There is no group by name: " + groupName);
+        }
+
+        return member -> {
+            if (member instanceof StandardUser) {
+                ((StandardUser) member).joinGroup(myUsername, group);
+            }
+        };
+    }
+
+    public Set<String> getGroupNames() {
+        return groups.keySet();
     }
 
     public void addFriendToFriendsList(String username) throws UsernameAlreadyExistsException {
         if (username == null || username.isEmpty() || username.isBlank()) {
             throw new IllegalArgumentException("Invalid argument value in method addFriendTOFriendsList!");
         }
-        if (friendsList.containsKey(username)) {
+        int userId = userIds.idOf(username);
+        if (friendsList.contains(userId)) {
             throw new UsernameAlreadyExistsException("The username value in method addFriendToFriendsList" +
                     " already exists!");
         }
-        friendsList.put(username, new StandardPayment());
+        friendsList.add(userId);
+        numberOfChanges++;
     }
 
     public void split(double amount, String username, String paymentReason) throws UserNotFoundException {
@@ -71,15 +252,16 @@ public class StandardUser implements User {
             throw new IllegalArgumentException("Invalid argument value in method split!");
         }
 
-        if (!friendsList.containsKey(username)) {
+        int userId = userIds.find(username);
+        if (!friendsList.contains(userId)) {
             throw new UserNotFoundException("There is no user with this username " +
                     "in your friendsList!");
         } else {
-            friendsList.replace(username,
-                    friendsList.get(username).addPayment(friendsList.get(username).getAmount() +
-                                    new BigDecimal(amount / SPLIT_BETWEEN_TWO_FRIEND)
-                                            .setScale(2, RoundingMode.HALF_UP).doubleValue(),
-                            paymentReason + "-" + amount + "BGN"));
+            long bill = Money.toMinorUnits(amount);
+            long half = Money.share(Math.abs(bill), SPLIT_BETWEEN_TWO_FRIEND, FRIEND_WHO_HAS_TO_PAY_RANK);
+
+            friendsList.addPayment(userId, bill < 0 ? -half : half, bill, paymentReason);
+            numberOfChanges++;
         }
     }
 
@@ -89,12 +271,13 @@ public class StandardUser implements User {
             throw new IllegalArgumentException("Illegal arument value in method played!");
         }
 
-        if (!friendsList.containsKey(username)) {
+        int userId = userIds.find(username);
+        if (!friendsList.contains(userId)) {
             throw new UserNotFoundException("There is no user with this username: " + username +
                     ", in your friendsList!");
         } else {
-            friendsList.replace(username,
-                    friendsList.get(username).addPayment(-amount));
+            friendsList.addPayment(userId, -Money.toMinorUnits(amount));
+            numberOfChanges++;
         }
     }
 
@@ -104,16 +287,17 @@ public class StandardUser implements User {
                     "blank space!");
         }
 
-        long matchingName = groups.stream()
-                .map(Group::getGroupName)
-                .filter(groupName::equals)
-                .count();
-
-        if (matchingName > 0) {
+        if (groups.containsKey(groupName)) {
             throw new UnableToCreateGroupException("There is already an existing group named: " + groupName);
         }
 
-        this.groups.add(new Group(groupName, usernames));
+        Group group = new Group(userIds, groupName, usernames);
+        getPossiblyOpenGroups();
+        group.setPosition(groupsByPosition.size());
+        groupsByPosition.add(group);
+
+        this.groups.put(groupName, group);
+        numberOfChanges++;
     }
 
     public void splitByGroup(String groupName, double amount, String paymentReason) throws GroupNotFoundException {
@@ -127,24 +311,49 @@ public class StandardUser implements User {
             throw new GroupNotFoundException("There is no such group with this group name: " +
                     groupName);
         } else {
-            group.splitByGroup(amount, paymentReason);
+            group.splitByGroup(Money.toMinorUnits(amount), paymentReason);
+            getPossiblyOpenGroups().set(group.getPosition());
+            numberOfChanges++;
         }
     }
 
+    @Override
+    public String getStatus() {
+        return getStatusRendering().text;
+    }
+
+    @Override
+    public byte[] getEncodedStatus() {
+        return getStatusRendering().encoded;
+    }
+
+    private Rendering getStatusRendering() {
+        Rendering rendering = getRendering(statusRendering, true,
+                () -> "Friends list:\n" + getFriendsListToString() + getAllUnfinishedGroups());
+        statusRendering = rendering;
+        return rendering;
+    }
+
     public String getFriendsListToString() {
+        Rendering rendering = getRendering(friendsListRendering, false, this::renderFriendsList);
+        friendsListRendering = rendering;
+        return rendering.text;
+    }
 
+    private String renderFriendsList() {
         StringBuilder friendsListString = new StringBuilder();
 
-        for (Map.Entry<String, StandardPayment> friendsEntry : friendsList.entrySet()) {
-            if (friendsEntry.getValue().getAmount() < 0.0) {
-                friendsListString.append(friendsEntry.getKey()).append(" you owe ")
-                        .append(-friendsEntry.getValue().getAmount()).append(" ")
-                        .append(friendsEntry.getValue().getReasons())
+        for (int friendId : friendsList.getFriendIds()) {
+            long balance = getBalance(friendId);
+            if (balance < 0) {
+                friendsListString.append(userIds.usernameOf(friendId)).append(" you owe ")
+                        .append(Money.toMajorUnits(-balance)).append(" ")
+                        .append(getReasons(friendId))
                         .append(System.lineSeparator());
-            } else if (friendsEntry.getValue().getAmount() > 0.0) {
-                friendsListString.append(friendsEntry.getKey()).append(" owe you ")
-                        .append(friendsEntry.getValue().getAmount()).append(" ")
-                        .append(friendsEntry.getValue().getReasons())
+            } else if (balance > 0) {
+                friendsListString.append(userIds.usernameOf(friendId)).append(" owe you ")
+                        .append(Money.toMajorUnits(balance)).append(" ")
+                        .append(getReasons(friendId))
                         .append(System.lineSeparator());
             }
         }
@@ -163,7 +372,7 @@ public class StandardUser implements User {
             throw new GroupNotFoundException("There is no group with this group name");
         }
 
-        return gr.getGroupOfUsers().toString();
+        return gr.getGroupOfUsersToString();
     }
 
     public void payedFromGroupMember(String groupName, String username, double amount)
@@ -179,7 +388,9 @@ public class StandardUser implements User {
         if (group1 == null) {
             throw new GroupNotFoundException("There is no group by name: " + groupName);
         }
-        group1.payed(username, amount);
+        group1.payed(username, Money.toMinorUnits(amount));
+        getPossiblyOpenGroups().set(group1.getPosition());
+        numberOfChanges++;
     }
 
     public String getUsername() {
@@ -197,7 +408,7 @@ public class StandardUser implements User {
             throw new GroupNotFoundException("There is no such group with name: " + groupName);
         }
 
-        return gr.getGroupOfUsers().keySet();
+        return gr.getMembers();
     }
 
     public boolean isValidPassword(String password1) {
@@ -206,12 +417,23 @@ public class StandardUser implements User {
 
     @Override
     public String getAllUnfinishedGroups() {
+        Rendering rendering = getRendering(unfinishedGroupsRendering, false, this::renderUnfinishedGroups);
+        unfinishedGroupsRendering = rendering;
+        return rendering.text;
+    }
+
+    private String renderUnfinishedGroups() {
+        BitSet openGroups = getPossiblyOpenGroups();
 
         StringBuilder result = new StringBuilder();
-        for (Group gr : groups) {
-            if (!gr.isFinished()) {
+        for (int position = openGroups.nextSetBit(0); position >= 0;
+             position = openGroups.nextSetBit(position + 1)) {
+            Group gr = groupsByPosition.get(position);
+            if (gr.isFinished()) {
+                openGroups.clear(position);
+            } else {
                 result.append("Group: ").append(gr.getGroupName()).append(" ")
-                        .append(gr.getGroupOfUsers().toString()).append(" ")
+                        .append(gr.getGroupOfUsersToString()).append(" ")
                         .append(gr.getReasons()).append(System.lineSeparator());
             }
         }
@@ -221,14 +443,20 @@ public class StandardUser implements User {
 
     @Override
     public String getAllFriendIOweMoneyMessage() {
+        Rendering rendering = getRendering(friendsIOweRendering, false, this::renderFriendsIOwe);
+        friendsIOweRendering = rendering;
+        return rendering.text;
+    }
 
+    private String renderFriendsIOwe() {
         StringBuilder friendIOweMoney = new StringBuilder("***************************\n");
 
-        for (Map.Entry<String, StandardPayment> fr : friendsList.entrySet()) {
-            if (fr.getValue().getAmount() < 0.0) {
-                friendIOweMoney.append("You owe ").append(fr.getKey()).append(" ")
-                        .append(-fr.getValue().getAmount()).append("BGN")
-                        .append(fr.getValue().getReasons()).append(System.lineSeparator());
+        for (int friendId : friendsList.getFriendIds()) {
+            long balance = getBalance(friendId);
+            if (balance < 0) {
+                friendIOweMoney.append("You owe ").append(userIds.usernameOf(friendId)).append(" ")
+                        .append(Money.toMajorUnits(-balance)).append("BGN")
+                        .append(getReasons(friendId)).append(System.lineSeparator());
             }
         }
 
@@ -244,11 +472,12 @@ public class StandardUser implements User {
                     "is invalid!");
         }
 
-        if (!friendsList.containsKey(username)) {
+        int userId = userIds.find(username);
+        if (!friendsList.contains(userId)) {
             throw new UserNotFoundException("There is no user with username: " + username);
         }
 
-        return -friendsList.get(username).getAmount();
+        return -Money.toMajorUnits(getBalance(userId));
     }
 
     @Override
@@ -265,12 +494,101 @@ public class StandardUser implements User {
             throw new GroupNotFoundException("There is no group with this name: " + groupName);
         }
 
-        if (!group.getGroupOfUsers().containsKey(username)) {
+        if (!group.hasMember(username)) {
             throw new UserNotFoundException("There is no user with this username is group: " +
                     groupName);
         }
 
-        return group.getGroupOfUsers().get(username);
+        return Money.toMajorUnits(group.getMemberBalance(username));
+    }
+
+    @Override
+    public Map<String, Long> getBalances() {
+        Map<String, Long> balances = new HashMap<>();
+
+        for (int friendId : friendsList.getFriendIds()) {
+            balances.put(userIds.usernameOf(friendId), getBalance(friendId));
+        }
+        for (Group group : groups.values()) {
+            for (int memberId : group.getMemberIds()) {
+                balances.merge(group.getUserIds().usernameOf(memberId), group.getMemberBalance(memberId), Long::sum);
+            }
+        }
+
+        return balances;
+    }
+
+    @Override
+    public boolean isChanged() {
+        if (numberOfChanges != storedNumberOfChanges) {
+            return true;
+        }
+        for (Group group : groups.values()) {
+            if (group.isChanged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void markStored() {
+        storedNumberOfChanges = numberOfChanges;
+        for (Group group : groups.values()) {
+            group.markStored();
+        }
+    }
+
+    /**
+     * @return the positions of the groups of the user which may be open. The index is built the first time
+     * it is needed, with all groups of a user loaded from the database possibly open.
+     */
+    private BitSet getPossiblyOpenGroups() {
+        if (possiblyOpenGroups == null) {
+            groupsByPosition = new ArrayList<>(groups.values());
+            for (int position = 0; position < groupsByPosition.size(); position++) {
+                groupsByPosition.get(position).setPosition(position);
+            }
+            possiblyOpenGroups = new BitSet(groupsByPosition.size());
+            possiblyOpenGroups.set(0, groupsByPosition.size());
+        }
+        return possiblyOpenGroups;
+    }
+
+    /**
+     * Notes a change of a group the user is a member of, pushed by the group after he has rendered his status.
+     */
+    void memberGroupChanged() {
+        MEMBER_GROUP_CHANGES.incrementAndGet(this);
+    }
+
+    /**
+     * @return the number of changes of the user and of the groups he is a member of, which grows
+     * with every change of what his status shows
+     */
+    private long getNumberOfChangesShown() {
+        return numberOfChanges + numberOfMemberGroupChanges;
+    }
+
+    /**
+     * @return {@code cached} if nothing it shows has changed since it was rendered, otherwise a new rendering
+     * by {@code renderer}, encoded as well if {@code isEncoded}. The number of changes is read and the user
+     * subscribes to the next change of his member groups before rendering, so a change made meanwhile makes
+     * the new rendering invalid.
+     */
+    private Rendering getRendering(Rendering cached, boolean isEncoded, Supplier<String> renderer) {
+        long changes = getNumberOfChangesShown();
+        if (cached != null && cached.numberOfChanges == changes) {
+            return cached;
+        }
+
+        if (memberGroups != null) {
+            for (Group group : memberGroups) {
+                group.subscribeToNextChange(this);
+            }
+        }
+        String text = renderer.get();
+        return new Rendering(changes, text, isEncoded ? text.getBytes(StandardCharsets.UTF_8) : null);
     }
 
     @Override
@@ -285,4 +603,20 @@ public class StandardUser implements User {
     public int hashCode() {
         return Objects.hash(myUsername, password);
     }
+
+    /**
+     * A part of the status of the user rendered after {@code numberOfChanges} changes, and its UTF-8
+     * encoding if it is sent as it is.
+     */
+    private static final class Rendering {
+        private final long numberOfChanges;
+        private final String text;
+        private final byte[] encoded;
+
+        private Rendering(long numberOfChanges, String text, byte[] encoded) {
+            this.numberOfChanges = numberOfChanges;
+            this.text = text;
+            this.encoded = encoded;
+        }
+    }
 }
@@ -4,23 +4,74 @@ import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.GroupNotFoundException;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UnableToCreateGroupException;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UserNotFoundException;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UsernameAlreadyExistsException;
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public interface User {
     /**
-     * Allows 1 line of our database to be parsed to a User object.
+     * Allows 1 line of our database to be parsed to a User object with a dictionary of his own.
      */
     static User of(String line) {
-        if (line == null || line.isEmpty()) {
+        return of(line, new UserIds());
+    }
+
+    /**
+     * Allows 1 line of our database to be parsed to a User object, who refers to other users by their ids
+     * in {@code userIds}.
+     */
+    static User of(String line, UserIds userIds) {
+        if (line == null || line.isEmpty() || userIds == null) {
             throw new IllegalArgumentException("The value of argument line in static method of in" +
                     "class User is invalid!");
         }
 
-        Gson gson = new Gson();
+        StandardUser user = userIds.getGson().fromJson(line, StandardUser.class);
+        user.setUserIds(userIds);
+        return user;
+    }
 
-        return gson.fromJson(line, StandardUser.class);
+    /**
+     * Reads the next user from {@code reader}, which may hold many users one after another, with a dictionary
+     * of his own.
+     *
+     * @throws com.google.gson.JsonParseException if the next value of {@code reader} is not a user
+     */
+    static User read(JsonReader reader) {
+        return read(reader, new UserIds());
+    }
+
+    /**
+     * Reads the next user from {@code reader}, which may hold many users one after another, who refers to
+     * other users by their ids in {@code userIds}.
+     *
+     * @throws com.google.gson.JsonParseException if the next value of {@code reader} is not a user
+     */
+    static User read(JsonReader reader, UserIds userIds) {
+        if (reader == null || userIds == null) {
+            throw new IllegalArgumentException("The value of argument reader in static method read in " +
+                    "class User is invalid!");
+        }
+
+        StandardUser user = userIds.getGson().fromJson(reader, StandardUser.class);
+        user.setUserIds(userIds);
+        return user;
+    }
+
+    /**
+     * @return {@code user} as 1 line of our database, which {@link #of(String)} parses back
+     */
+    static String toJson(User user) {
+        if (user == null) {
+            throw new IllegalArgumentException("The value of argument user in static method toJson in " +
+                    "class User is invalid!");
+        }
+
+        UserIds userIds = user instanceof StandardUser ? ((StandardUser) user).getUserIds() : new UserIds();
+        return userIds.getGson().toJson(user);
     }
 
     /**
@@ -64,6 +115,29 @@ public interface User {
      */
     void createGroup(String groupName, String... usernames) throws UnableToCreateGroupException;
 
+    /**
+     * Allows the members of the group named {@code groupName} to see what they owe in it.
+     * Should be called once the group is created and once all users are loaded.
+     *
+     * @param groupName       the name of the group of the current user
+     * @param usersByUsername finds a user by his username
+     * @throws IllegalArgumentException if {@code groupName} is null or an empty string
+     * @throws GroupNotFoundException   if the group named {@code groupName} does not exist
+     */
+    void linkGroupMembers(String groupName, Function<String, User> usersByUsername) throws GroupNotFoundException;
+
+    /**
+     * Finds the group named {@code groupName} of the current user and returns what links a member to it.
+     * The returned invitation changes only the member it is given, so it can be applied on another
+     * thread than the one which changes the current user.
+     *
+     * @param groupName the name of the group of the current user
+     * @return links the user it is given, as a member, to the group
+     * @throws IllegalArgumentException if {@code groupName} is null or an empty string
+     * @throws GroupNotFoundException   if the group named {@code groupName} does not exist
+     */
+    Consumer<User> inviteToGroup(String groupName) throws GroupNotFoundException;
+
     /**
      * Allows the current user to split a bill among the him and the other participant in the group
      * named {@code groupName}, if the group exists.
@@ -115,6 +189,11 @@ public interface User {
      */
     Set<String> getGroupMembersUsernames(String groupName) throws GroupNotFoundException;
 
+    /**
+     * @return the names of the groups created by the current user
+     */
+    Set<String> getGroupNames();
+
     /**
      * @return true if the value of password1 equals the current user's password value
      */
@@ -126,6 +205,18 @@ public interface User {
      */
     String getAllUnfinishedGroups();
 
+    /**
+     * @return the status of the current user as get-status shows it: his friends list followed by
+     * his unfinished groups
+     */
+    String getStatus();
+
+    /**
+     * @return the status of the current user encoded in UTF-8, see {@link #getStatus()}.
+     * The array is shared and must not be changed.
+     */
+    byte[] getEncodedStatus();
+
     /**
      * @return a string representation of all the users which the current user owes money to.
      */
@@ -141,4 +232,22 @@ public interface User {
 
     double getGroupMemberOweAmount(String groupName, String username)
             throws GroupNotFoundException, UserNotFoundException;
+
+    /**
+     * @return the amounts in stotinki the other users owe the current user, negative if he owes them,
+     * including the groups the current user created or is a member of
+     */
+    Map<String, Long> getBalances();
+
+    /**
+     * @return true if what is stored about the current user, including the groups he created, has changed
+     * since {@link #markStored()} was last called, or since he was created if it was never called. A user who
+     * was just loaded has not changed.
+     */
+    boolean isChanged();
+
+    /**
+     * Notes that the current user and the groups he created are stored as they are now.
+     */
+    void markStored();
 }
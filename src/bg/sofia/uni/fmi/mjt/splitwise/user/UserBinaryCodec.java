@@ -0,0 +1,197 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntLongMap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote keeps a user in the binary format of the database. Every string, a username, a password, a group
+ * name or a reason, is written as its index in a string table kept by the caller, so a string repeated by many
+ * users is stored once. Counts and indexes are written as variable-length integers, 7 bits per byte, and
+ * amounts and times in zigzag form, so small negative numbers take as few bytes as small positive ones.
+ * The times in a history are written as the difference from the time of the previous entry.
+ * <p>
+ * A user is written as his username, his password, his friends and the groups he created:
+ * a friend is his username, the amount he owes and the history of the bills between them; a group is its
+ * name, its shared amount, its members with their offsets and the history of its bills. A history is the
+ * number of its entries and every entry as its time, its amount and its reason.
+ */
+public final class UserBinaryCodec {
+    private static final int BITS_PER_BYTE = 7;
+    private static final int LOW_BITS = 0x7F;
+    private static final int HAS_MORE_BYTES = 0x80;
+    private static final int MAX_LENGTH_OF_LONG = 10;
+
+    private UserBinaryCodec() {
+    }
+
+    /**
+     * Writes {@code user} to {@code out}, writing every string as the index {@code stringIndexes} gives it.
+     *
+     * @throws IllegalArgumentException if {@code user} is not a {@link StandardUser}
+     */
+    public static void write(User user, DataOutput out, ToIntFunction<String> stringIndexes) throws IOException {
+        if (!(user instanceof StandardUser) || out == null || stringIndexes == null) {
+            throw new IllegalArgumentException("Invalid argument value in method write in class UserBinaryCodec!");
+        }
+        StandardUser standardUser = (StandardUser) user;
+
+        writeUnsigned(out, stringIndexes.applyAsInt(standardUser.getUsername()));
+        writeUnsigned(out, stringIndexes.applyAsInt(standardUser.getPassword()));
+
+        UserIds userIds = standardUser.getUserIds();
+        FriendsList friendsList = standardUser.getFriendsList();
+        int[] friendIds = friendsList.getFriendIds();
+        writeUnsigned(out, friendIds.length);
+        for (int friendId : friendIds) {
+            writeUnsigned(out, stringIndexes.applyAsInt(userIds.usernameOf(friendId)));
+            writeSigned(out, friendsList.getAmount(friendId));
+            writeHistory(out, friendsList.getHistory(friendId), stringIndexes);
+        }
+
+        writeUnsigned(out, standardUser.getGroups().size());
+        for (Group group : standardUser.getGroups()) {
+            writeUnsigned(out, stringIndexes.applyAsInt(group.getGroupName()));
+            writeSigned(out, group.getSharedAmount());
+
+            UserIds memberIds = group.getUserIds();
+            IntLongMap memberOffsets = group.getMemberOffsets();
+            int[] members = memberOffsets.keys();
+            writeUnsigned(out, members.length);
+            for (int memberId : members) {
+                writeUnsigned(out, stringIndexes.applyAsInt(memberIds.usernameOf(memberId)));
+                writeSigned(out, memberOffsets.getOrDefault(memberId, 0));
+            }
+            writeHistory(out, group.getHistory(), stringIndexes);
+        }
+    }
+
+    /**
+     * Reads a user written by {@link #write(User, DataOutput, ToIntFunction)}, reading every string
+     * from the string table by its index. The user gets a dictionary of his own.
+     */
+    public static User read(DataInput in, IntFunction<String> strings) throws IOException {
+        return read(in, strings, new UserIds());
+    }
+
+    /**
+     * Reads a user written by {@link #write(User, DataOutput, ToIntFunction)}, reading every string
+     * from the string table by its index. The user refers to other users by their ids in {@code userIds}.
+     */
+    public static User read(DataInput in, IntFunction<String> strings, UserIds userIds) throws IOException {
+        if (in == null || strings == null || userIds == null) {
+            throw new IllegalArgumentException("Invalid argument value in method read in class UserBinaryCodec!");
+        }
+
+        String username = strings.apply(readUnsignedInt(in));
+        String password = strings.apply(readUnsignedInt(in));
+
+        FriendsList friendsList = new FriendsList();
+        int numberOfFriends = readUnsignedInt(in);
+        for (int i = 0; i < numberOfFriends; i++) {
+            int friendId = userIds.idOf(strings.apply(readUnsignedInt(in)));
+            long amount = readSigned(in);
+            friendsList.add(friendId, amount, readHistory(in, strings));
+        }
+
+        int numberOfGroups = readUnsignedInt(in);
+        Map<String, Group> groups = new LinkedHashMap<>();
+        for (int i = 0; i < numberOfGroups; i++) {
+            String groupName = strings.apply(readUnsignedInt(in));
+            long sharedAmount = readSigned(in);
+
+            int numberOfMembers = readUnsignedInt(in);
+            IntLongMap memberOffsets = new IntLongMap(numberOfMembers);
+            for (int j = 0; j < numberOfMembers; j++) {
+                memberOffsets.put(userIds.idOf(strings.apply(readUnsignedInt(in))), readSigned(in));
+            }
+            History history = readHistory(in, strings);
+            groups.putIfAbsent(groupName, new Group(userIds, groupName, memberOffsets, sharedAmount, history));
+        }
+
+        return new StandardUser(userIds, username, password, friendsList, groups);
+    }
+
+    private static void writeHistory(DataOutput out, History history, ToIntFunction<String> stringIndexes)
+            throws IOException {
+        int size = history != null ? history.size() : 0;
+        writeUnsigned(out, size);
+
+        long previousTimestamp = History.UNKNOWN_TIMESTAMP;
+        for (int i = 0; i < size; i++) {
+            long timestamp = history.getTimestamp(i);
+            writeSigned(out, timestamp - previousTimestamp);
+            writeSigned(out, history.getAmount(i));
+            writeUnsigned(out, stringIndexes.applyAsInt(history.getReason(i)));
+            previousTimestamp = timestamp;
+        }
+    }
+
+    private static History readHistory(DataInput in, IntFunction<String> strings) throws IOException {
+        History history = new History();
+        int size = readUnsignedInt(in);
+
+        long timestamp = History.UNKNOWN_TIMESTAMP;
+        for (int i = 0; i < size; i++) {
+            timestamp += readSigned(in);
+            long amount = readSigned(in);
+            history.add(timestamp, amount, strings.apply(readUnsignedInt(in)));
+        }
+        return history;
+    }
+
+    /**
+     * Writes the non-negative {@code value} in 7 bits per byte, the lowest bits first,
+     * setting the highest bit of every byte but the last.
+     */
+    public static void writeUnsigned(DataOutput out, long value) throws IOException {
+        while ((value & ~LOW_BITS) != 0) {
+            out.writeByte((int) (value & LOW_BITS) | HAS_MORE_BYTES);
+            value >>>= BITS_PER_BYTE;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * @throws IOException if the value is longer than a long
+     */
+    public static long readUnsigned(DataInput in) throws IOException {
+        long value = 0;
+
+        for (int i = 0; i < MAX_LENGTH_OF_LONG; i++) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & LOW_BITS) << (i * BITS_PER_BYTE);
+            if ((b & HAS_MORE_BYTES) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    /**
+     * @throws IOException if the value is negative or does not fit in an int
+     */
+    public static int readUnsignedInt(DataInput in) throws IOException {
+        long value = readUnsigned(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Variable-length integer out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    private static void writeSigned(DataOutput out, long value) throws IOException {
+        writeUnsigned(out, (value << 1) ^ (value >> (Long.SIZE - 1)));
+    }
+
+    private static long readSigned(DataInput in) throws IOException {
+        long value = readUnsigned(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,98 @@
+package bg.sofia.uni.fmi.mjt.splitwise.user;
+
+import bg.sofia.uni.fmi.mjt.splitwise.collections.IntLongMap;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Stiliyan Iliev
+ * @apiNote a dictionary of usernames: every username gets a dense int id the first time the dictionary sees it,
+ * so the friends lists and the groups refer to users by id and each username is held only once.
+ * There is no dictionary shared by the whole process: every store of users has one of its own, which is dropped
+ * together with the store, so the stores built by the checkpoints and the projections of the ledger do not keep
+ * the usernames they have seen. A user refers to his friends by the ids of the dictionary he was created or read
+ * with and a group to its members by the ids of the dictionary of its creator, so users of different dictionaries
+ * can still be friends and members of the same groups. Ids are never reused or forgotten while the dictionary
+ * lives. The dictionary is safe to use from many threads.
+ */
+public final class UserIds {
+    public static final int UNKNOWN = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] usernames = new String[INITIAL_CAPACITY];
+    private int size;
+    private volatile Gson gson;
+
+    /**
+     * @return the id of {@code username}, which is given a new id if it has none yet
+     */
+    public int idOf(String username) {
+        Integer id = ids.get(username);
+        return id != null ? id : register(username);
+    }
+
+    /**
+     * @return the id of {@code username} or {@link #UNKNOWN} if it has none, without giving it one
+     */
+    public int find(String username) {
+        Integer id = username == null ? null : ids.get(username);
+        return id != null ? id : UNKNOWN;
+    }
+
+    /**
+     * @return the username with id {@code id}
+     * @throws IllegalArgumentException if there is no username with this id
+     */
+    public String usernameOf(int id) {
+        String[] current = usernames;
+        if (id < 0 || id >= current.length || current[id] == null) {
+            throw new IllegalArgumentException("There is no username with id: " + id);
+        }
+        return current[id];
+    }
+
+    private synchronized int register(String username) {
+        if (username == null) {
+            throw new IllegalArgumentException("The value of the username cannot be null!");
+        }
+
+        Integer existing = ids.get(username);
+        if (existing != null) {
+            return existing;
+        }
+
+        String[] current = usernames;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = username;
+        ///the array is published before the id, so whoever gets the id can find the username
+        usernames = current;
+        ids.put(username, size);
+
+        return size++;
+    }
+
+    /**
+     * @return the instance which reads and writes the users of the dictionary in the JSON format of the database,
+     * built the first time it is needed. It is thread-safe.
+     */
+    Gson getGson() {
+        Gson current = gson;
+        if (current == null) {
+            current = new GsonBuilder()
+                    .registerTypeAdapter(FriendsList.class, new FriendsListJsonAdapter(this))
+                    .registerTypeAdapter(IntLongMap.class, new MoneyMapJsonAdapter(this).nullSafe())
+                    .registerTypeAdapter(GroupsJsonAdapter.GROUPS_TYPE, new GroupsJsonAdapter(this))
+                    .create();
+            gson = current;
+        }
+        return current;
+    }
+}
@@ -1,5 +1,19 @@
 package bg.sofia.uni.fmi.mjt.splitwise;
 
+import bg.sofia.uni.fmi.mjt.splitwise.command.Command;
+import bg.sofia.uni.fmi.mjt.splitwise.command.DefaultCommand;
+import bg.sofia.uni.fmi.mjt.splitwise.ledger.FriendBalances;
+import bg.sofia.uni.fmi.mjt.splitwise.ledger.GroupBalances;
+import bg.sofia.uni.fmi.mjt.splitwise.ledger.Transaction;
+import bg.sofia.uni.fmi.mjt.splitwise.ledger.TransactionType;
+import bg.sofia.uni.fmi.mjt.splitwise.settlement.Transfer;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.GroupCommitPolicy;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.JsonSnapshot;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.OperationJournal;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.SlottedSnapshot;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.SnapshotConverter;
+import bg.sofia.uni.fmi.mjt.splitwise.storage.SnapshotFormat;
+import bg.sofia.uni.fmi.mjt.splitwise.user.Money;
 import bg.sofia.uni.fmi.mjt.splitwise.user.StandardUser;
 import bg.sofia.uni.fmi.mjt.splitwise.user.User;
 import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.*;
@@ -8,8 +22,18 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -399,4 +423,685 @@ class SplitWiseTest {
 
         assertEquals(0.0, Math.abs(splitWise.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00")));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testUsersLoadedFromTheDatabaseAreFoundByUsername() throws InvalidUsernameException,
+            InvalidPasswordException {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            users.add(new StandardUser("username" + i, "password" + i));
+        }
+        users.add(new StandardUser("username42", "duplicate1"));
+        Path databasePath = tempDir.resolve("index.txt");
+        JsonSnapshot.write(databasePath, 0, users);
+
+        DefaultSplitWise loaded = new DefaultSplitWise(databasePath);
+        for (int i = 0; i < 5_000; i++) {
+            assertEquals("username" + i, loaded.findUserByUsername("username" + i).getUsername());
+        }
+        assertTrue(loaded.findUserByUsername("username42").isValidPassword("password42"));
+        assertNull(loaded.findUserByUsername("username5000"));
+        assertThrows(UsernameAlreadyExistsException.class, () -> loaded.register("username4999", "password"));
+        loaded.close();
+    }
+
+    @Test
+    void testJournaledOperationsAreReplayedAfterRestart() throws UserNotFoundException,
+            UsernameAlreadyExistsException, UnableToCreateGroupException, GroupNotFoundException {
+        splitWise.addUserToFriendsList("Stiliyan00", "Kristian00");
+        splitWise.split("Stiliyan00", "Kristian00", 100, "restaurant\tand\nbar");
+        splitWise.createGroup("Stiliyan00", "Sushi Gang", "Velina00", "Aleksandra00");
+        splitWise.splitByGroup("Stiliyan00", 90.0, "Sushi Gang", "sushi");
+        splitWise.payed("Stiliyan00", "Kristian00", 20.0);
+
+        SplitWise restarted = new DefaultSplitWise(path1);
+
+        assertEquals(30.0, restarted.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertEquals(30.0, restarted.findUserByUsername("Velina00").amountOweFriend("Stiliyan00"));
+        assertEquals(30.0, restarted.findUserByUsername("Stiliyan00")
+                .getGroupMemberOweAmount("Sushi Gang", "Aleksandra00"));
+    }
+
+    @Test
+    void testStoreUsersDataEmptiesTheJournal() throws UserNotFoundException, UsernameAlreadyExistsException {
+        splitWise.addUserToFriendsList("Stiliyan00", "Kristian00");
+        splitWise.split("Stiliyan00", "Kristian00", 100, "bills");
+        splitWise.storeUsersData();
+
+        assertEquals(0, DefaultSplitWise.journalPathOf(path1).toFile().length());
+        assertEquals(50.0, new DefaultSplitWise(path1).findUserByUsername("Kristian00")
+                .amountOweFriend("Stiliyan00"));
+    }
+
+    @Test
+    void testOperationsAfterACheckpointAreReplayedOnlyOnce() throws UserNotFoundException,
+            UsernameAlreadyExistsException, InvalidUsernameException, InvalidPasswordException {
+        DefaultSplitWise defaultSplitWise = new DefaultSplitWise(path1);
+        defaultSplitWise.addUserToFriendsList("Stiliyan00", "Kristian00");
+        defaultSplitWise.addUserToFriendsList("Stiliyan00", "Velina00");
+        defaultSplitWise.split("Stiliyan00", "Kristian00", 100, "bills");
+        defaultSplitWise.checkpoint();
+        defaultSplitWise.split("Stiliyan00", "Velina00", 20, "taxi");
+        defaultSplitWise.checkpoint();
+        defaultSplitWise.register("Ivelina00", "password5");
+        defaultSplitWise.close();
+
+        SplitWise restarted = new DefaultSplitWise(path1);
+        assertEquals(50.0, restarted.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertEquals(10.0, restarted.findUserByUsername("Velina00").amountOweFriend("Stiliyan00"));
+        assertNotNull(restarted.findUserByUsername("Ivelina00"));
+    }
+
+    @Test
+    void testDurableJournalForcesConcurrentOperationsInBatches() throws InterruptedException {
+        Path journalPath = tempDir.resolve("durable.journal");
+        OperationJournal journal = new OperationJournal(journalPath,
+                new GroupCommitPolicy(16, Duration.ofMillis(5)));
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            String username = "user" + i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10; j++) {
+                    journal.append("R", username + j, "password");
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        journal.close();
+
+        List<String[]> records = new ArrayList<>();
+        OperationJournal.replay(journalPath, records::add);
+        assertEquals(80, records.size());
+        assertEquals(80, journal.getStatistics().getNumberOfRecords());
+        assertTrue(journal.getStatistics().getNumberOfBatches() <= 80);
+    }
+
+    @Test
+    void testCommandsReadingAnUnknownUserAnswerThatThereIsNoSuchUser() {
+        Command command = new DefaultCommand(splitWise);
+
+        assertEquals(DefaultCommand.NO_SUCH_USER, command.execute("get-status Unknown000"));
+        assertEquals(DefaultCommand.NO_SUCH_USER, command.execute("get-groups Unknown000"));
+        assertEquals(DefaultCommand.NO_SUCH_USER,
+                new String(command.executeEncoded("get-status Unknown000"), StandardCharsets.UTF_8));
+        assertEquals("Friends list:\n",
+                new String(command.executeEncoded("get-status Kristian00"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testRegisterAndSplitRunConcurrentlyWithoutDeadlock() throws UserNotFoundException,
+            UsernameAlreadyExistsException {
+        splitWise.addUserToFriendsList("Stiliyan00", "Kristian00");
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        Thread registering = new Thread(() -> {
+            try {
+                for (int i = 0; i < 5000; i++) {
+                    splitWise.register("newcomer" + i, "password" + i);
+                }
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        Thread splitting = new Thread(() -> {
+            try {
+                for (int i = 0; i < 5000; i++) {
+                    splitWise.split("Stiliyan00", "Kristian00", 2, "coffee");
+                }
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            registering.start();
+            splitting.start();
+            registering.join();
+            splitting.join();
+        });
+        assertTrue(failures.isEmpty(), () -> "Concurrent operations failed: " + failures);
+        assertNotNull(splitWise.findUserByUsername("newcomer4999"));
+        assertEquals(5000.0, splitWise.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+    }
+
+    @Test
+    void testTornJournalTailIsCutOffBeforeAppending() throws IOException {
+        Path journalPath = tempDir.resolve("torn.journal");
+        try (OperationJournal journal = new OperationJournal(journalPath)) {
+            journal.append("R", "user1", "password");
+            journal.append("R", "user2", "password");
+        }
+        long completeSize = journalPath.toFile().length();
+        Files.writeString(journalPath, "1234abcd\tR\tus", StandardOpenOption.APPEND);
+
+        List<String[]> records = new ArrayList<>();
+        OperationJournal.replay(journalPath, records::add);
+        assertEquals(2, records.size());
+
+        try (OperationJournal journal = new OperationJournal(journalPath)) {
+            assertEquals(completeSize, journal.size());
+            journal.append("R", "user3", "password");
+        }
+
+        records.clear();
+        OperationJournal.replay(journalPath, records::add);
+        assertEquals(3, records.size());
+        assertArrayEquals(new String[] {"R", "user3", "password"}, records.get(2));
+    }
+
+    @Test
+    void testCorruptedJournalRecordBeforeTheLastOneIsNotSkipped() throws IOException {
+        Path journalPath = tempDir.resolve("corrupted.journal");
+        try (OperationJournal journal = new OperationJournal(journalPath)) {
+            journal.append("R", "user1", "password");
+            journal.append("R", "user2", "password");
+        }
+        Files.writeString(journalPath, Files.readString(journalPath).replace("user1", "user9"));
+
+        assertThrows(IllegalStateException.class, () -> OperationJournal.replay(journalPath, record -> { }));
+    }
+
+    @Test
+    void testGroupDebtsAreKeptAfterRestart() throws UserNotFoundException, UnableToCreateGroupException,
+            GroupNotFoundException {
+        splitWise.createGroup("Stiliyan00", "group1", "Kristian00", "Velina00");
+        splitWise.splitByGroup("Stiliyan00", 120, "group1", "restaurant");
+        splitWise.splitByGroup("Stiliyan00", 30, "group1", "taxi");
+        splitWise.payedFromGroupMember("Stiliyan00", "group1", "Kristian00", 20);
+        splitWise.storeUsersData();
+
+        SplitWise restarted = new DefaultSplitWise(path1);
+        assertEquals(30.0, restarted.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertEquals(50.0, restarted.findUserByUsername("Velina00").amountOweFriend("Stiliyan00"));
+        assertEquals(30.0, restarted.findUserByUsername("Stiliyan00")
+                .getGroupMemberOweAmount("group1", "Kristian00"));
+    }
+
+    @Test
+    void testGroupDebtsStoredInTheFriendsListsOfTheMembersAreNotCountedTwice() throws IOException,
+            UserNotFoundException {
+        try (Writer writer = new FileWriter(file1)) {
+            writer.write("{\"Username\":\"Kristian00\",\"Password\":\"password2\",\"Friends\":" +
+                    "{\"Stiliyan00\":{\"reasons\":[\"sushi--60.0BGN\"],\"amount\":-30.0}},\"groups\":[]}\n");
+            writer.write("{\"Username\":\"Stiliyan00\",\"Password\":\"password1\",\"Friends\":{}," +
+                    "\"groups\":[{\"Group\":\"group1\",\"Users\":{\"Kristian00\":30.0,\"Velina00\":30.0}," +
+                    "\"reasons\":[\"sushi-90.0BGN\"]}]}\n");
+        }
+        DefaultSplitWise.journalPathOf(path1).toFile().delete();
+
+        DefaultSplitWise disk = new DefaultSplitWise(path1, (GroupCommitPolicy) null, 1L);
+        assertEquals(30.0, disk.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        disk.close();
+
+        DefaultSplitWise legacy = new DefaultSplitWise(path1);
+        assertEquals(30.0, legacy.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+
+        legacy.storeUsersData();
+        assertEquals(30.0, new DefaultSplitWise(path1).findUserByUsername("Kristian00")
+                .amountOweFriend("Stiliyan00"));
+    }
+
+    @Test
+    void testSnapshotIsReadInParallelChunksInOrder() throws IOException, InvalidUsernameException,
+            InvalidPasswordException {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            users.add(new StandardUser("user" + i, "password" + i));
+        }
+        Path snapshotPath = tempDir.resolve("large.snapshot");
+        JsonSnapshot.write(snapshotPath, 7, users);
+        assertTrue(snapshotPath.toFile().length() > 1024 * 1024);
+
+        List<String> usernames = new ArrayList<>();
+        assertEquals(7, JsonSnapshot.read(snapshotPath, user -> usernames.add(user.getUsername()), 4));
+        assertEquals(users.size(), usernames.size());
+        for (int i = 0; i < users.size(); i++) {
+            assertEquals("user" + i, usernames.get(i));
+        }
+    }
+
+    @Test
+    void testBinarySnapshotKeepsTheDatabaseAndIsKeptByCheckpoints() throws UserNotFoundException,
+            UsernameAlreadyExistsException, UnableToCreateGroupException, GroupNotFoundException, IOException {
+        splitWise.addUserToFriendsList("Stiliyan00", "Kristian00");
+        splitWise.split("Stiliyan00", "Kristian00", 100, "restaurant");
+        splitWise.createGroup("Stiliyan00", "group1", "Velina00", "Aleksandra00");
+        splitWise.splitByGroup("Stiliyan00", 90.0, "group1", "sushi");
+        splitWise.payedFromGroupMember("Stiliyan00", "group1", "Velina00", 10);
+        splitWise.storeUsersData();
+        long jsonSize = file1.length();
+
+        assertEquals(4, SnapshotConverter.convert(path1, path1, SnapshotFormat.BINARY));
+        assertEquals(SnapshotFormat.BINARY, SnapshotFormat.of(path1));
+        assertTrue(file1.length() < jsonSize);
+
+        DefaultSplitWise restarted = new DefaultSplitWise(path1);
+        assertEquals(50.0, restarted.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertEquals(20.0, restarted.findUserByUsername("Velina00").amountOweFriend("Stiliyan00"));
+        assertTrue(restarted.findUserByUsername("Velina00").getFriendsListToString().contains("sushi-90.0BGN"));
+        restarted.split("Stiliyan00", "Kristian00", 20, "taxi");
+        restarted.checkpoint();
+        restarted.close();
+        assertEquals(SnapshotFormat.BINARY, SnapshotFormat.of(path1));
+
+        Path jsonPath = tempDir.resolve("converted.txt");
+        SnapshotConverter.convert(path1, jsonPath, SnapshotFormat.JSON_LINES);
+        assertEquals(SnapshotFormat.JSON_LINES, SnapshotFormat.of(jsonPath));
+        assertEquals(60.0, new DefaultSplitWise(jsonPath).findUserByUsername("Kristian00")
+                .amountOweFriend("Stiliyan00"));
+
+        byte[] bytes = Files.readAllBytes(path1);
+        bytes[30] ^= 1;
+        Files.write(path1, bytes);
+        assertThrows(IllegalStateException.class, () -> new DefaultSplitWise(path1));
+    }
+
+    @Test
+    void testLazilyLoadedUsersAreDecodedWhenLookedUpAndJoinTheirGroups() throws UserNotFoundException,
+            UsernameAlreadyExistsException, UnableToCreateGroupException, GroupNotFoundException,
+            InvalidUsernameException, InvalidPasswordException {
+        splitWise.addUserToFriendsList("Kristian00", "Velina00");
+        splitWise.split("Kristian00", "Velina00", 10, "coffee");
+        splitWise.createGroup("Stiliyan00", "group1", "Kristian00", "Velina00");
+        splitWise.splitByGroup("Stiliyan00", 90.0, "group1", "sushi");
+        splitWise.createGroup("Kristian00", "group2", "Stiliyan00", "Aleksandra00");
+        splitWise.splitByGroup("Kristian00", 60.0, "group2", "taxi");
+        splitWise.storeUsersData();
+        SnapshotConverter.convert(path1, path1, SnapshotFormat.BINARY);
+
+        DefaultSplitWise eager = new DefaultSplitWise(path1);
+        DefaultSplitWise lazy = new DefaultSplitWise(path1, null, true);
+        assertFalse(lazy.isDecoded("Velina00"));
+
+        assertEquals(5.0, lazy.findUserByUsername("Velina00").amountOweFriend("Kristian00"));
+        assertEquals(30.0, lazy.findUserByUsername("Velina00").amountOweFriend("Stiliyan00"));
+        assertTrue(lazy.isDecoded("Stiliyan00") && lazy.isDecoded("Kristian00"));
+        assertFalse(lazy.isDecoded("Aleksandra00"));
+        assertEquals(eager.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"),
+                lazy.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertEquals(eager.findUserByUsername("Stiliyan00").getFriendsListToString(),
+                lazy.findUserByUsername("Stiliyan00").getFriendsListToString());
+        assertNull(lazy.findUserByUsername("Ivelina00"));
+        assertThrows(UsernameAlreadyExistsException.class, () -> lazy.register("Aleksandra00", "password3"));
+
+        lazy.payedFromGroupMember("Stiliyan00", "group1", "Velina00", 30);
+        lazy.checkpoint();
+        lazy.close();
+
+        DefaultSplitWise restarted = new DefaultSplitWise(path1, null, true);
+        assertEquals(0.0, Math.abs(restarted.findUserByUsername("Velina00").amountOweFriend("Stiliyan00")));
+        assertEquals(eager.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"),
+                restarted.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertEquals(4, restarted.getUsersByUsername().size());
+    }
+
+    @Test
+    void testUsersKeptOnTheDiskAreWrittenBackWhenEvictedAndRejoinTheirGroups() throws UserNotFoundException,
+            UsernameAlreadyExistsException, UnableToCreateGroupException, GroupNotFoundException,
+            InvalidUsernameException, InvalidPasswordException, IOException {
+        splitWise.createGroup("Stiliyan00", "group1", "Kristian00", "Velina00");
+        splitWise.storeUsersData();
+
+        DefaultSplitWise disk = new DefaultSplitWise(path1, (GroupCommitPolicy) null, 1L);
+        disk.addUserToFriendsList("Kristian00", "Velina00");
+        disk.split("Kristian00", "Velina00", 10, "coffee");
+        disk.splitByGroup("Stiliyan00", 90.0, "group1", "sushi");
+        disk.register("Ivelina00", "password5");
+        disk.addUserToFriendsList("Ivelina00", "Aleksandra00");
+        disk.split("Ivelina00", "Aleksandra00", 20, "lunch");
+        assertFalse(disk.isDecoded("Velina00"));
+
+        assertEquals(5.0, disk.findUserByUsername("Velina00").amountOweFriend("Kristian00"));
+        assertEquals(30.0, disk.findUserByUsername("Velina00").amountOweFriend("Stiliyan00"));
+        assertEquals(Boolean.TRUE, disk.readUser("Velina00", user -> disk.isDecoded("Stiliyan00")));
+        assertFalse(disk.isDecoded("Ivelina00"));
+
+        disk.payedFromGroupMember("Stiliyan00", "group1", "Velina00", 30);
+        disk.findUserByUsername("Aleksandra00");
+        assertFalse(disk.isDecoded("Stiliyan00") || disk.isDecoded("Velina00"));
+        assertEquals(0.0, Math.abs(disk.findUserByUsername("Velina00").amountOweFriend("Stiliyan00")));
+        assertEquals(30.0, disk.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertThrows(UsernameAlreadyExistsException.class, () -> disk.register("Ivelina00", "password5"));
+
+        disk.checkpoint();
+        disk.close();
+        try (var files = Files.list(tempDir)) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(".store")));
+        }
+
+        DefaultSplitWise restarted = new DefaultSplitWise(path1);
+        assertEquals(5, restarted.getUsersByUsername().size());
+        assertEquals(5.0, restarted.findUserByUsername("Velina00").amountOweFriend("Kristian00"));
+        assertEquals(0.0, Math.abs(restarted.findUserByUsername("Velina00").amountOweFriend("Stiliyan00")));
+        assertEquals(30.0, restarted.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertEquals(10.0, restarted.findUserByUsername("Aleksandra00").amountOweFriend("Ivelina00"));
+    }
+
+    @Test
+    void testUsersKeptOnTheDiskAreReadInPlaceFromASlottedSnapshot() throws UserNotFoundException,
+            UsernameAlreadyExistsException, UnableToCreateGroupException, GroupNotFoundException,
+            InvalidUsernameException, InvalidPasswordException, IOException {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            users.add(new StandardUser("username" + i, "password" + i));
+        }
+        Path slottedPath = tempDir.resolve("slotted.snapshot");
+        SlottedSnapshot.write(slottedPath, 0, users);
+
+        DefaultSplitWise disk = new DefaultSplitWise(slottedPath, (GroupCommitPolicy) null, 1L);
+        assertEquals("username5", disk.findUserByUsername("username5").getUsername());
+        assertEquals(0, storeSize());
+
+        disk.addUserToFriendsList("username1", "username2");
+        disk.split("username1", "username2", 10, "coffee");
+        disk.createGroup("username0", "group1", "username598", "username599");
+        disk.splitByGroup("username0", 90.0, "group1", "sushi");
+        for (int i = 600; i < 900; i++) {
+            disk.register("username" + i, "password" + i);
+        }
+        disk.addUserToFriendsList("username899", "username3");
+        disk.split("username899", "username3", 20, "lunch");
+        assertFalse(disk.isDecoded("username599"));
+        assertTrue(storeSize() < slottedPath.toFile().length());
+
+        assertEquals(30.0, disk.findUserByUsername("username599").amountOweFriend("username0"));
+        assertEquals(5.0, disk.findUserByUsername("username2").amountOweFriend("username1"));
+        assertEquals(10.0, disk.findUserByUsername("username3").amountOweFriend("username899"));
+        assertThrows(UsernameAlreadyExistsException.class, () -> disk.register("username700", "password7"));
+        disk.checkpoint();
+        disk.close();
+        assertEquals(-1, storeSize());
+
+        DefaultSplitWise restarted = new DefaultSplitWise(slottedPath);
+        assertEquals(900, restarted.getUsersByUsername().size());
+        assertEquals(30.0, restarted.findUserByUsername("username598").amountOweFriend("username0"));
+        assertEquals(10.0, restarted.findUserByUsername("username3").amountOweFriend("username899"));
+    }
+
+    /**
+     * @return the size of the file of the users kept on the disk, or -1 if there is none
+     */
+    private long storeSize() throws IOException {
+        try (var files = Files.list(tempDir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".store"))
+                    .mapToLong(file -> file.toFile().length())
+                    .findAny()
+                    .orElse(-1);
+        }
+    }
+
+    @Test
+    void testSlottedSnapshotSavesOnlyTheChangedUsersAtCheckpoints() throws UserNotFoundException,
+            UsernameAlreadyExistsException, UnableToCreateGroupException, GroupNotFoundException,
+            InvalidUsernameException, InvalidPasswordException {
+        splitWise.createGroup("Stiliyan00", "group1", "Kristian00", "Velina00");
+        splitWise.splitByGroup("Stiliyan00", 90.0, "group1", "sushi");
+        splitWise.storeUsersData();
+        SnapshotConverter.convert(path1, path1, SnapshotFormat.SLOTTED);
+        assertEquals(SnapshotFormat.SLOTTED, SnapshotFormat.of(path1));
+
+        DefaultSplitWise lazy = new DefaultSplitWise(path1, null, true);
+        lazy.register("Ivelina00", "password5");
+        lazy.createGroup("Ivelina00", "group2", "Velina00", "Aleksandra00");
+        lazy.splitByGroup("Ivelina00", 60.0, "group2", "taxi");
+        lazy.checkpoint();
+        assertFalse(lazy.isDecoded("Kristian00"));
+        assertEquals(SnapshotFormat.SLOTTED, SnapshotFormat.of(path1));
+
+        long size = file1.length();
+        for (int i = 0; i < 10; i++) {
+            lazy.payedFromGroupMember("Ivelina00", "group2", "Aleksandra00", 1);
+            lazy.checkpoint();
+        }
+        assertTrue(file1.length() < 2 * size);
+        lazy.close();
+
+        DefaultSplitWise restarted = new DefaultSplitWise(path1);
+        assertEquals(5, restarted.getUsersByUsername().size());
+        assertEquals(30.0, restarted.findUserByUsername("Kristian00").amountOweFriend("Stiliyan00"));
+        assertEquals(10.0, restarted.findUserByUsername("Aleksandra00").amountOweFriend("Ivelina00"));
+        assertEquals(20.0, restarted.findUserByUsername("Velina00").amountOweFriend("Ivelina00"));
+
+        DefaultSplitWise lazyRestarted = new DefaultSplitWise(path1, null, true);
+        assertEquals(30.0, lazyRestarted.findUserByUsername("Velina00").amountOweFriend("Stiliyan00"));
+        lazyRestarted.payedFromGroupMember("Ivelina00", "group2", "Velina00", 20);
+        assertEquals(0.0, Math.abs(lazyRestarted.findUserByUsername("Velina00").amountOweFriend("Ivelina00")));
+        assertEquals(10.0, lazyRestarted.findUserByUsername("Aleksandra00").amountOweFriend("Ivelina00"));
+        lazyRestarted.close();
+    }
+
+    @Test
+    void testLedgerProjectionsAreRebuiltAfterRestart() throws UserNotFoundException,
+            UsernameAlreadyExistsException, UnableToCreateGroupException, GroupNotFoundException {
+        splitWise.addUserToFriendsList("Kristian00", "Velina00");
+        splitWise.split("Kristian00", "Velina00", 0.03, "gum");
+        splitWise.payed("Kristian00", "Velina00", 0.01);
+        splitWise.createGroup("Stiliyan00", "group1", "Kristian00", "Velina00");
+        splitWise.splitByGroup("Stiliyan00", 0.01, "group1", "candy");
+        splitWise.splitByGroup("Stiliyan00", 0.01, "group1", "candy");
+        splitWise.payedFromGroupMember("Stiliyan00", "group1", "Kristian00", 1);
+        splitWise.storeUsersData();
+
+        DefaultSplitWise restarted = new DefaultSplitWise(path1);
+        FriendBalances friendBalances = restarted.getLedger().project(new FriendBalances());
+        GroupBalances groupBalances = restarted.getLedger().project(new GroupBalances());
+        assertEquals(1, friendBalances.getBalance("Kristian00", "Velina00"));
+        assertEquals(-1, friendBalances.getBalance("Velina00", "Kristian00"));
+        assertEquals(-99, groupBalances.getMemberBalance("Stiliyan00", "group1", "Kristian00"));
+        assertEquals(1, groupBalances.getMemberBalance("Stiliyan00", "group1", "Velina00"));
+        assertEquals(restarted.findUserByUsername("Stiliyan00").getGroupMemberOweAmount("group1", "Velina00"),
+                Money.toMajorUnits(groupBalances.getMemberBalance("Stiliyan00", "group1", "Velina00")));
+
+        List<Transaction> history = new ArrayList<>();
+        restarted.getLedger().project(history::add);
+        restarted.split("Kristian00", "Velina00", 1, "tea");
+
+        assertEquals(7, history.size());
+        assertEquals(TransactionType.GROUP_JOIN, history.get(2).getType());
+        assertEquals(List.of("Kristian00", "Velina00"), history.get(2).getPayees());
+        assertEquals(TransactionType.GROUP_SPLIT, history.get(3).getType());
+        assertEquals(List.of(), history.get(3).getPayees());
+        assertEquals(TransactionType.SPLIT, history.get(6).getType());
+        assertEquals(List.of("Velina00"), history.get(6).getPayees());
+        assertEquals(100, history.get(6).getAmount());
+        assertEquals(51, friendBalances.getBalance("Kristian00", "Velina00"));
+    }
+
+    @Test
+    void testTransactionsMissingFromTheLedgerAreRestoredFromTheJournal() throws UserNotFoundException,
+            UsernameAlreadyExistsException, IOException {
+        DefaultSplitWise durable = new DefaultSplitWise(path1, new GroupCommitPolicy(4, Duration.ofMillis(1)));
+        durable.addUserToFriendsList("Kristian00", "Velina00");
+        durable.split("Kristian00", "Velina00", 3, "gum");
+        durable.storeUsersData();
+        durable.payed("Kristian00", "Velina00", 1);
+        durable.split("Velina00", "Kristian00", 5, "tea");
+
+        List<Transaction> appended = new ArrayList<>();
+        durable.getLedger().project(appended::add);
+        durable.close();
+        assertEquals(3, appended.size());
+
+        ///a crash loses the transactions written to the ledger after the checkpoint, but not their journal records
+        Path ledgerPath = DefaultSplitWise.ledgerPathOf(path1);
+        List<String> ledgerLines = Files.readAllLines(ledgerPath);
+        Files.write(ledgerPath, ledgerLines.subList(0, 1));
+
+        for (int restart = 0; restart < 2; restart++) {
+            DefaultSplitWise restarted = new DefaultSplitWise(path1);
+            assertEquals(3, restarted.getLedger().getLastSequence());
+
+            List<Transaction> restored = new ArrayList<>();
+            restarted.getLedger().project(restored::add);
+            assertEquals(appended, restored);
+            restarted.close();
+        }
+    }
+
+    @Test
+    void testSettleUpWithInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> splitWise.settleUp(" "));
+        assertThrows(UserNotFoundException.class, () -> splitWise.settleUp("username1"));
+    }
+
+    @Test
+    void testSettleUpReplacesAChainOfDebtsWithASingleTransfer() throws UserNotFoundException,
+            UsernameAlreadyExistsException {
+        splitWise.addUserToFriendsList("Stiliyan00", "Kristian00");
+        splitWise.split("Stiliyan00", "Kristian00", 100, "dinner");
+        splitWise.addUserToFriendsList("Velina00", "Stiliyan00");
+        splitWise.split("Velina00", "Stiliyan00", 100, "taxi");
+
+        assertEquals(List.of(new Transfer("Kristian00", "Velina00", 5000)), splitWise.settleUp("Stiliyan00"));
+        assertEquals(List.of(), splitWise.settleUp("Aleksandra00"));
+    }
+
+    @Test
+    void testSettleUpIncludesGroupDebts() throws UserNotFoundException, UsernameAlreadyExistsException,
+            UnableToCreateGroupException, GroupNotFoundException {
+        splitWise.createGroup("Stiliyan00", "group1", "Kristian00", "Velina00");
+        splitWise.splitByGroup("Stiliyan00", 90, "group1", "sushi");
+        splitWise.addUserToFriendsList("Kristian00", "Velina00");
+        splitWise.split("Kristian00", "Velina00", 60, "drinks");
+
+        assertEquals(List.of(new Transfer("Velina00", "Stiliyan00", 6000)), splitWise.settleUp("Kristian00"));
+    }
+
+    @Test
+    void testConcurrentOperationsKeepPairwiseBalancesInSync() throws InvalidUsernameException,
+            InvalidPasswordException, UsernameAlreadyExistsException, UserNotFoundException,
+            UnableToCreateGroupException, InterruptedException {
+        String[] usernames = {"Stiliyan00", "Kristian00", "Aleksandra00", "Velina00", "Dimitar00",
+                "Ivelina00"};
+        splitWise.register("Dimitar00", "password5");
+        splitWise.register("Ivelina00", "password6");
+        for (String username : usernames) {
+            for (String friend : usernames) {
+                if (!username.equals(friend)) {
+                    splitWise.addUserToFriendsList(username, friend);
+                }
+            }
+        }
+        splitWise.createGroup("Stiliyan00", "group1", "Kristian00", "Velina00");
+        splitWise.createGroup("Dimitar00", "group2", "Ivelina00", "Aleksandra00", "Stiliyan00");
+
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            Random random = new Random(i);
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 5000; j++) {
+                        String payer = usernames[random.nextInt(usernames.length)];
+                        String other = usernames[random.nextInt(usernames.length)];
+                        int amount = 1 + random.nextInt(100);
+                        switch (random.nextInt(5)) {
+                            case 0 -> splitWise.splitByGroup("Stiliyan00", amount, "group1", "dinner");
+                            case 1 -> splitWise.payedFromGroupMember("Dimitar00", "group2", "Ivelina00", amount);
+                            case 2 -> splitWise.settleUp(payer);
+                            default -> {
+                                if (!payer.equals(other)) {
+                                    splitWise.split(payer, other, amount, "lunch");
+                                    splitWise.payed(other, payer, amount / 4.0);
+                                }
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.isEmpty(), () -> "Concurrent operations failed: " + failures);
+
+        SplitWise restarted = new DefaultSplitWise(path1);
+        for (String username : usernames) {
+            Map<String, Long> balances = splitWise.findUserByUsername(username).getBalances();
+            assertEquals(balances, restarted.findUserByUsername(username).getBalances());
+
+            for (String friend : usernames) {
+                if (!username.equals(friend)) {
+                    long otherBalance = splitWise.findUserByUsername(friend).getBalances().get(username);
+                    assertEquals(0, balances.get(friend) + otherBalance,
+                            "The balances of " + username + " and " + friend + " should cancel out");
+                }
+            }
+        }
+    }
+
+    @Test
+    void testShardedSplitWiseAppliesBothSidesOfConcurrentOperations() throws InvalidUsernameException,
+            InvalidPasswordException, UsernameAlreadyExistsException, UserNotFoundException,
+            UnableToCreateGroupException, GroupNotFoundException, InterruptedException {
+        ShardedSplitWise sharded = new ShardedSplitWise((DefaultSplitWise) splitWise, 3);
+        String[] usernames = {"Stiliyan00", "Kristian00", "Aleksandra00", "Velina00", "Dimitar00"};
+        sharded.register("Dimitar00", "password5");
+        for (String username : usernames) {
+            for (String friend : usernames) {
+                if (!username.equals(friend)) {
+                    sharded.addUserToFriendsList(username, friend);
+                }
+            }
+        }
+        sharded.createGroup("Stiliyan00", "group1", "Kristian00", "Velina00");
+        sharded.splitByGroup("Stiliyan00", 90, "group1", "sushi");
+        assertEquals(30.0, sharded.readUser("Kristian00", user -> {
+            try {
+                return user.amountOweFriend("Stiliyan00");
+            } catch (UserNotFoundException e) {
+                return null;
+            }
+        }));
+
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; i++) {
+            Random random = new Random(i);
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 2000; j++) {
+                        String payer = usernames[random.nextInt(usernames.length)];
+                        String other = usernames[random.nextInt(usernames.length)];
+                        int amount = 1 + random.nextInt(100);
+                        if (payer.equals(other)) {
+                            sharded.splitByGroup("Stiliyan00", amount, "group1", "dinner");
+                        } else {
+                            sharded.split(payer, other, amount, "lunch");
+                            sharded.payed(other, payer, amount / 4.0);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.isEmpty(), () -> "Concurrent operations failed: " + failures);
+        sharded.close();
+
+        SplitWise restarted = new DefaultSplitWise(path1);
+        for (String username : usernames) {
+            Map<String, Long> balances = sharded.findUserByUsername(username).getBalances();
+            assertEquals(balances, restarted.findUserByUsername(username).getBalances());
+
+            for (String friend : usernames) {
+                if (!username.equals(friend)) {
+                    long otherBalance = sharded.findUserByUsername(friend).getBalances().get(username);
+                    assertEquals(0, balances.get(friend) + otherBalance,
+                            "The balances of " + username + " and " + friend + " should cancel out");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package bg.sofia.uni.fmi.mjt.splitwise.server;
+
+import bg.sofia.uni.fmi.mjt.splitwise.DefaultSplitWise;
+import bg.sofia.uni.fmi.mjt.splitwise.command.Command;
+import bg.sofia.uni.fmi.mjt.splitwise.command.DefaultCommand;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerTest {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    @TempDir
+    Path tempDir;
+
+    private SocketChannel client;
+    private SocketChannel server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+            client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+            server = serverSocketChannel.accept();
+        }
+        server.configureBlocking(false);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void testCommandsSplitAcrossReadsAreAssembled() throws IOException {
+        Connection connection = new Connection();
+
+        List<String> frames = new ArrayList<>();
+        for (String part : List.of("sig", "nup user0001 ", "password1\r\nhe", "lp\nget-sta", "tus user0001\n")) {
+            send(part);
+            frames.addAll(readFrames(connection, part.length()));
+        }
+
+        assertEquals(List.of("signup user0001 password1", "help", "get-status user0001"), frames);
+        assertNull(connection.nextFrame());
+    }
+
+    @Test
+    void testCharactersSplitAcrossReadsAreDecodedWhole() throws IOException {
+        Connection connection = new Connection();
+        String frame = "split user0001 10 \u043a\u0430\u0444\u0435";
+        byte[] command = (frame + "\n").getBytes(StandardCharsets.UTF_8);
+        ///the cut falls between the two bytes of a cyrillic letter
+        int cut = command.length - 4;
+
+        client.write(ByteBuffer.wrap(command, 0, cut));
+        assertEquals(List.of(), readFrames(connection, cut));
+        client.write(ByteBuffer.wrap(command, cut, command.length - cut));
+
+        assertEquals(List.of(frame), readFrames(connection, command.length - cut));
+    }
+
+    @Test
+    void testCommandsLongerThanTheInitialBufferAreReceivedWhole() throws IOException {
+        Connection connection = new Connection();
+        String longCommand = "split-group " + "x".repeat(10_000);
+
+        send(longCommand.substring(0, 3000));
+        assertEquals(List.of(), readFrames(connection, 3000));
+        send(longCommand.substring(3000) + "\nhelp\n");
+
+        assertEquals(List.of(longCommand, "help"), readFrames(connection, longCommand.length() - 3000 + 6));
+    }
+
+    @Test
+    void testResponsesWhichTheSocketDoesNotAcceptAreWrittenLater() throws IOException {
+        Connection connection = new Connection();
+        String response = "r".repeat(8 * 1024 * 1024);
+        connection.addPendingEncodedResponse(encoded(response), false);
+        connection.collectExecutedCommands();
+
+        assertFalse(connection.flush(server));
+        assertTrue(connection.getPendingBytes() > 0);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        boolean isFlushed = false;
+        while (!isFlushed || received.size() < response.length() + LINE_SEPARATOR.length()) {
+            buffer.clear();
+            client.read(buffer);
+            received.write(buffer.array(), 0, buffer.position());
+            isFlushed = isFlushed || connection.flush(server);
+        }
+
+        assertEquals(0, connection.getPendingBytes());
+        assertEquals(response + LINE_SEPARATOR, received.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testPipelinedResponsesAreSentInTheOrderOfTheCommands() throws IOException {
+        Connection connection = new Connection();
+        CompletableFuture<byte[]> slowResponse = new CompletableFuture<>();
+        connection.addPendingEncodedResponse(slowResponse, false);
+        connection.addPendingEncodedResponse(encoded("second"), false);
+        connection.addPendingEncodedResponse(encoded(null), false);
+        connection.addPendingEncodedResponse(encoded("third"), false);
+        connection.addPendingEncodedResponse(encoded(null), true);
+        connection.addPendingEncodedResponse(encoded("after disconnect"), false);
+
+        connection.collectExecutedCommands();
+        assertTrue(connection.flush(server));
+        assertEquals(6, connection.getPendingCommands());
+
+        slowResponse.complete("first".getBytes(StandardCharsets.UTF_8));
+        connection.collectExecutedCommands();
+        assertTrue(connection.isClosing());
+        assertTrue(connection.flush(server));
+        server.close();
+
+        assertEquals("first" + LINE_SEPARATOR + "second" + LINE_SEPARATOR + "third" + LINE_SEPARATOR,
+                new String(client.socket().getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testServerSendsAllPipelinedResponsesBeforeClosingTheConnection() throws IOException, InterruptedException {
+        Path databasePath = tempDir.resolve("database.txt");
+        Files.createFile(databasePath);
+        DefaultSplitWise splitWise = new DefaultSplitWise(databasePath);
+
+        int port = freePort();
+        SplitWiseServer splitWiseServer = new SplitWiseServer(port, splitWise, 1, 0, false);
+        Thread serverThread = new Thread(splitWiseServer::start);
+        serverThread.start();
+
+        ///the long command grows the read buffer, so most of the commands after it are read at once
+        int numberOfCommands = 12_000;
+        StringBuilder commands = new StringBuilder("x".repeat(60_000) + "\n");
+        for (int i = 0; i < numberOfCommands; i++) {
+            commands.append("help\n");
+        }
+        commands.append("disconnect\nhelp\n");
+
+        String responses;
+        try (Socket socket = connect(port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(commands.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            ///the server fills the socket buffers long before the client starts reading
+            Thread.sleep(200);
+            InputStream in = socket.getInputStream();
+            responses = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            splitWiseServer.stop();
+            serverThread.join();
+        }
+
+        String help = Command.help() + LINE_SEPARATOR;
+        assertEquals("[ Unknown command ]" + LINE_SEPARATOR + help.repeat(numberOfCommands), responses);
+    }
+
+    @Test
+    void testReactorsServeManyClientsAtOnceAndStoreTheirDataOnStop() throws IOException, InterruptedException {
+        Path databasePath = tempDir.resolve("database.txt");
+        Files.createFile(databasePath);
+
+        int port = freePort();
+        SplitWiseServer splitWiseServer = new SplitWiseServer(port, new DefaultSplitWise(databasePath), 3, 0, false);
+        Thread serverThread = new Thread(splitWiseServer::start);
+        serverThread.start();
+
+        int numberOfClients = 8;
+        List<Socket> sockets = new ArrayList<>();
+        List<String> responses = new ArrayList<>();
+        try {
+            ///every client is connected before any of them is served, so they are spread over all reactors
+            for (int i = 0; i < numberOfClients; i++) {
+                sockets.add(connect(port));
+            }
+            for (int i = 0; i < numberOfClients; i++) {
+                write(sockets.get(i), "signup reactor0" + i + " password1\nhelp\ndisconnect\n");
+            }
+            for (Socket socket : sockets) {
+                responses.add(new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            splitWiseServer.stop();
+            serverThread.join();
+        }
+
+        for (String response : responses) {
+            assertEquals("successful registration" + LINE_SEPARATOR + Command.help() + LINE_SEPARATOR, response);
+        }
+        DefaultSplitWise restarted = new DefaultSplitWise(databasePath);
+        for (int i = 0; i < numberOfClients; i++) {
+            assertNotNull(restarted.findUserByUsername("reactor0" + i));
+        }
+        restarted.close();
+    }
+
+    @Test
+    void testPipelinedCommandsOfDifferentUsersAreAnsweredInOrder() throws IOException, InterruptedException {
+        Path databasePath = tempDir.resolve("database.txt");
+        Files.createFile(databasePath);
+
+        int port = freePort();
+        SplitWiseServer splitWiseServer = new SplitWiseServer(port, new DefaultSplitWise(databasePath), 2, 4, false);
+        Thread serverThread = new Thread(splitWiseServer::start);
+        serverThread.start();
+
+        int numberOfUsers = 200;
+        StringBuilder signups = new StringBuilder();
+        StringBuilder addFriends = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < numberOfUsers; i++) {
+            signups.append("signup pipeline").append(i).append(" password1\n");
+        }
+        for (int i = 1; i < numberOfUsers; i++) {
+            ///the commands of different users run on different lanes and may finish in any order
+            addFriends.append("add-friend pipeline").append(i - 1).append(" pipeline").append(i).append("\n");
+            expected.append("You successfully added user: pipeline").append(i - 1).append(" to your friends list")
+                    .append(LINE_SEPARATOR);
+        }
+
+        String responses;
+        try (Socket socket = connect(port)) {
+            write(socket, signups.toString());
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < numberOfUsers; i++) {
+                assertEquals("successful registration", reader.readLine());
+            }
+
+            write(socket, addFriends + "disconnect\n");
+            responses = reader.lines().collect(Collectors.joining(LINE_SEPARATOR, "", LINE_SEPARATOR));
+        } finally {
+            splitWiseServer.stop();
+            serverThread.join();
+        }
+
+        assertEquals(expected.toString(), responses);
+    }
+
+    @Test
+    void testCommandsOfOneUserAreExecutedInOrderOnItsLane() throws IOException, InterruptedException {
+        Path databasePath = tempDir.resolve("database.txt");
+        Files.createFile(databasePath);
+        DefaultSplitWise splitWise = new DefaultSplitWise(databasePath);
+        CommandExecutionStage executionStage = new CommandExecutionStage(new DefaultCommand(splitWise), 4,
+                VirtualThreads.isSupported());
+
+        int numberOfUsers = 500;
+        List<CompletableFuture<byte[]>> responses = new ArrayList<>();
+        for (int i = 0; i < numberOfUsers; i++) {
+            responses.add(executionStage.submit("signup laneuser" + i + " password1"));
+            responses.add(executionStage.submit("signup laneuser" + i + " password1"));
+            responses.add(executionStage.submit("get-status laneuser" + i));
+        }
+
+        for (int i = 0; i < numberOfUsers; i++) {
+            assertEquals("successful registration", decode(responses.get(3 * i)));
+            assertEquals("username already exists", decode(responses.get(3 * i + 1)));
+            assertNotEquals(DefaultCommand.NO_SUCH_USER, decode(responses.get(3 * i + 2)));
+        }
+        assertTrue(executionStage.shutdown(Duration.ofSeconds(10)));
+        splitWise.close();
+    }
+
+    @Test
+    void testVirtualThreadsAreSupportedOnlyIfTheyCanBeCreated() {
+        if (VirtualThreads.isSupported()) {
+            VirtualThreads.newVirtualThreadPerTaskExecutor().shutdown();
+        } else {
+            assertThrows(UnsupportedOperationException.class, VirtualThreads::newVirtualThreadPerTaskExecutor);
+        }
+    }
+
+    @Test
+    void testCommandsAreRoutedByTheUserWhoIssuedThem() {
+        assertEquals("user0001", CommandExecutionStage.issuerOf("signup user0001 password1"));
+        assertEquals("user0001", CommandExecutionStage.issuerOf("split user0001 user0002 10 coffee"));
+        assertEquals("user0001", CommandExecutionStage.issuerOf("split-group user0001,group1,30,dinner"));
+        assertEquals("user0002", CommandExecutionStage.issuerOf("add-friend user0001 user0002"));
+        assertEquals("", CommandExecutionStage.issuerOf("help"));
+    }
+
+    @Test
+    void testBlockingServerAnswersPipelinedCommandsAndStopsWithIdleClients() throws IOException,
+            InterruptedException {
+        Path databasePath = tempDir.resolve("database.txt");
+        Files.createFile(databasePath);
+
+        int port = freePort();
+        BlockingSplitWiseServer blockingServer = new BlockingSplitWiseServer(port, new DefaultSplitWise(databasePath),
+                VirtualThreads.isSupported());
+        Thread serverThread = new Thread(blockingServer::start);
+        serverThread.start();
+
+        String responses;
+        try (Socket socket = connect(port); Socket idleSocket = connect(port)) {
+            write(socket, "signup blocking1 password1\nsignup blocking1 password1\nhelp\ndisconnect\nhelp\n");
+            responses = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+
+            ///the idle client is still connected, so the server has to close its socket to stop
+            blockingServer.stop();
+            serverThread.join(Duration.ofSeconds(10).toMillis());
+            assertFalse(serverThread.isAlive());
+            assertEquals(-1, idleSocket.getInputStream().read());
+        } finally {
+            blockingServer.stop();
+            serverThread.join();
+        }
+
+        assertEquals("successful registration" + LINE_SEPARATOR + "username already exists" + LINE_SEPARATOR +
+                Command.help() + LINE_SEPARATOR, responses);
+        DefaultSplitWise restarted = new DefaultSplitWise(databasePath);
+        assertNotNull(restarted.findUserByUsername("blocking1"));
+        restarted.close();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket freePort = new ServerSocket(0)) {
+            return freePort.getLocalPort();
+        }
+    }
+
+    private static void write(Socket socket, String commands) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(commands.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket();
+                socket.setOption(StandardSocketOptions.SO_RCVBUF, 1024);
+                socket.connect(new InetSocketAddress("localhost", port));
+                return socket;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static String decode(CompletableFuture<byte[]> response) {
+        return new String(response.join(), StandardCharsets.UTF_8);
+    }
+
+    private static CompletableFuture<byte[]> encoded(String response) {
+        return CompletableFuture.completedFuture(response != null ? response.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    private void send(String part) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(part.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the {@code numberOfBytes} bytes already sent by the client and returns the complete frames.
+     */
+    private List<String> readFrames(Connection connection, int numberOfBytes) throws IOException {
+        int read = 0;
+        while (read < numberOfBytes) {
+            read += Math.max(0, connection.read(server));
+        }
+
+        List<String> frames = new ArrayList<>();
+        String frame;
+        while ((frame = connection.nextFrame()) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+}
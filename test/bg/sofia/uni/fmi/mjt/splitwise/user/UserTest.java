@@ -7,9 +7,13 @@ import bg.sofia.uni.fmi.mjt.splitwise.user.exceptions.UsernameAlreadyExistsExcep
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -334,4 +338,253 @@ class UserTest {
 
         assertEquals(String.valueOf(res), user.getAllUnfinishedGroups());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testGroupsAreStoredAsAJsonArray() throws GroupNotFoundException, UnableToCreateGroupException {
+        user.createGroup("group1", "Kristian00", "Dimitar00");
+        user.splitByGroup("group1", 120, "reason1");
+
+        String json = User.toJson(user);
+        assertTrue(json.contains("\"groups\":[{\"Group\":\"group1\""));
+
+        User restored = User.of(json);
+        assertEquals(user.getGroup("group1"), restored.getGroup("group1"));
+        assertThrows(UnableToCreateGroupException.class,
+                () -> restored.createGroup("group1", "Kristian00", "Dimitar00"));
+    }
+
+    @Test
+    void testRepeatedSplitsAddUp() throws UsernameAlreadyExistsException, UserNotFoundException {
+        user.addFriendToFriendsList("Kristian00");
+        user.split(100, "Kristian00", "reason1");
+        user.split(0.3, "Kristian00", "reason2");
+
+        assertEquals(-50.15, user.amountOweFriend("Kristian00"));
+    }
+
+    @Test
+    void testSplitByGroupDistributesTheRemainderByUsername() throws UnableToCreateGroupException,
+            GroupNotFoundException, UserNotFoundException {
+        user.createGroup("group1", "Kristian00", "Dimitar00");
+        user.splitByGroup("group1", 100, "reason1");
+
+        assertEquals(33.33, user.getGroupMemberOweAmount("group1", "Dimitar00"));
+        assertEquals(33.34, user.getGroupMemberOweAmount("group1", "Kristian00"));
+
+        user.payedFromGroupMember("group1", "Dimitar00", 33.33);
+        user.payedFromGroupMember("group1", "Kristian00", 33.34);
+        assertEquals("", user.getAllUnfinishedGroups());
+    }
+
+    @Test
+    void testGroupCountsItsMembersInDebtAfterEveryBillAndPayment() throws UserNotFoundException,
+            UsernameAlreadyExistsException {
+        Group group = new Group("group1", "Kristian00", "Dimitar00", "Velina00", "Aleksandra00");
+        Random random = new Random(7);
+
+        for (int i = 0; i < 2000; i++) {
+            int[] memberIds = group.getMemberIds();
+            int memberId = memberIds[random.nextInt(memberIds.length)];
+            long balance = group.getMemberBalance(memberId);
+
+            switch (random.nextInt(5)) {
+                case 0 -> group.splitByGroup(1 + random.nextInt(2 * group.getNumberOfGroupMembers()), "bill");
+                case 1 -> group.splitByGroup(1 + random.nextInt(10_000), "bill");
+                case 2 -> group.payed(group.getUserIds().usernameOf(memberId), balance > 0 ? balance : 1);
+                case 3 -> group.payed(group.getUserIds().usernameOf(memberId), 1 + random.nextInt(3));
+                default -> {
+                    if (i % 200 == 0) {
+                        group.addUserToGroup("member" + i);
+                    }
+                }
+            }
+
+            int numberOfMembersInDebt = 0;
+            for (int id : group.getMemberIds()) {
+                numberOfMembersInDebt += group.getMemberBalance(id) != 0 ? 1 : 0;
+            }
+            assertEquals(numberOfMembersInDebt, group.getNumberOfMembersInDebt());
+            assertEquals(numberOfMembersInDebt == 0, group.isFinished());
+        }
+    }
+
+    @Test
+    void testOfReadsAmountsStoredInLeva() throws GroupNotFoundException, UserNotFoundException {
+        String userString = "{\"Username\":\"Stiliyan00\",\"Password\":\"password1\",\"Friends\":{}," +
+                "\"groups\":[{\"Group\":\"group1\",\"Users\":{\"Kristian00\":33.333333333333336}," +
+                "\"reasons\":[\"reason1-100.0BGN\"]}]}";
+        User user1 = User.of(userString);
+
+        assertEquals(33.33, user1.getGroupMemberOweAmount("group1", "Kristian00"));
+    }
+
+    @Test
+    void testFriendsListIsStoredByUsername() throws UsernameAlreadyExistsException, UserNotFoundException {
+        user.addFriendToFriendsList("Kristian00");
+        user.addFriendToFriendsList("Dimitar00");
+        user.split(100, "Kristian00", "reason1");
+
+        String json = User.toJson(user);
+        assertTrue(json.contains("\"Kristian00\":{\"reasons\":[\"reason1-100.0BGN\"],\"amount\":50.0}"));
+
+        User restored = User.of(json);
+        assertEquals(-50, restored.amountOweFriend("Kristian00"));
+        assertEquals(-0.0, restored.amountOweFriend("Dimitar00"));
+        assertEquals(user.getFriendsListToString(), restored.getFriendsListToString());
+    }
+
+    @Test
+    void testHistoryKeepsTheEntriesInOrderAndShowsThemAsBefore() {
+        History history = new History();
+        for (int i = 0; i < 600; i++) {
+            history.add(i * 100L, "bill" + i % 3);
+        }
+        history.addShown("sushi--60.0BGN");
+        history.addShown("We bought OS' tabbac--34.0");
+
+        assertEquals(602, history.size());
+        assertEquals("bill0-0.0BGN", history.show(0));
+        assertEquals("bill2-599.0BGN", history.show(599));
+        assertEquals(List.of("sushi--60.0BGN", "We bought OS' tabbac--34.0"), history.show().subList(600, 602));
+        assertSame(history.getReason(1), history.getReason(4));
+        assertSame(ReasonTable.intern("bill1"), ReasonTable.intern("bill" + 1));
+    }
+
+    @Test
+    void testReasonsWhichNoHistoryRefersToAreForgotten() throws InterruptedException {
+        History history = new History();
+        history.add(100, new String("forgotten reason"));
+        WeakReference<String> reason = new WeakReference<>(history.getReason(0));
+        history = null;
+
+        for (int i = 0; i < 50 && reason.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reason.get());
+    }
+
+    @Test
+    void testStatusIsRenderedAgainOnlyAfterItChanges() throws UnableToCreateGroupException,
+            GroupNotFoundException, UsernameAlreadyExistsException, UserNotFoundException {
+        User kristian = new StandardUser("Kristian00", "password2");
+        User dimitar = new StandardUser("Dimitar00", "password3");
+        user.createGroup("group1", "Kristian00", "Dimitar00");
+        user.linkGroupMembers("group1", Map.of("Kristian00", kristian, "Dimitar00", dimitar)::get);
+
+        String status = kristian.getFriendsListToString();
+        assertSame(status, kristian.getFriendsListToString());
+
+        user.splitByGroup("group1", 90, "reason1");
+        assertEquals("Stiliyan00 you owe 30.0 [reason1-90.0BGN]" + System.lineSeparator(),
+                kristian.getFriendsListToString());
+
+        kristian.addFriendToFriendsList("Dimitar00");
+        kristian.split(10, "Dimitar00", "reason2");
+        assertTrue(kristian.getFriendsListToString().contains("Dimitar00 owe you 5.0 [reason2-10.0BGN]"));
+        assertSame(kristian.getAllUnfinishedGroups(), kristian.getAllUnfinishedGroups());
+    }
+
+    @Test
+    void testMembersWithDictionariesOfTheirOwnReadWhatTheyOweInTheGroup() throws UnableToCreateGroupException,
+            GroupNotFoundException, UsernameAlreadyExistsException, UserNotFoundException {
+        UserIds sharedIds = new UserIds();
+        User creator = new StandardUser("Stiliyan00", "password1", sharedIds);
+        User kristian = new StandardUser("Kristian00", "password2", new UserIds());
+        User dimitar = new StandardUser("Dimitar00", "password3", sharedIds);
+        kristian.addFriendToFriendsList("Velina00");
+        creator.createGroup("group1", "Kristian00", "Dimitar00");
+        creator.linkGroupMembers("group1", Map.of("Kristian00", kristian, "Dimitar00", dimitar)::get);
+
+        creator.splitByGroup("group1", 100, "reason1");
+        creator.payedFromGroupMember("group1", "Dimitar00", 33.33);
+
+        assertEquals(33.34, kristian.amountOweFriend("Stiliyan00"));
+        assertEquals(-0.0, dimitar.amountOweFriend("Stiliyan00"));
+        assertEquals(-0.0, kristian.amountOweFriend("Velina00"));
+        assertEquals(Map.of("Kristian00", 3334L, "Dimitar00", 0L), creator.getBalances());
+        assertEquals(UserIds.UNKNOWN, sharedIds.find("Velina00"));
+    }
+
+    @Test
+    void testEncodedStatusIsKeptUntilAMemberGroupPushesAChange() throws UnableToCreateGroupException,
+            GroupNotFoundException, UserNotFoundException {
+        User kristian = new StandardUser("Kristian00", "password2");
+        User dimitar = new StandardUser("Dimitar00", "password3");
+        user.createGroup("group1", "Kristian00", "Dimitar00");
+        user.linkGroupMembers("group1", Map.of("Kristian00", kristian, "Dimitar00", dimitar)::get);
+
+        byte[] status = kristian.getEncodedStatus();
+        assertSame(status, kristian.getEncodedStatus());
+        assertEquals("Friends list:\n", new String(status, StandardCharsets.UTF_8));
+
+        user.splitByGroup("group1", 90, "reason1");
+        user.splitByGroup("group1", 30, "reason2");
+        byte[] changedStatus = kristian.getEncodedStatus();
+        assertNotSame(status, changedStatus);
+        assertEquals("Friends list:\nStiliyan00 you owe 40.0 [reason1-90.0BGN, reason2-30.0BGN]" +
+                System.lineSeparator(), new String(changedStatus, StandardCharsets.UTF_8));
+        assertSame(changedStatus, kristian.getEncodedStatus());
+
+        user.payedFromGroupMember("group1", "Kristian00", 40);
+        assertEquals("Friends list:\n", kristian.getStatus());
+    }
+
+    @Test
+    void testGroupKnowsWhetherItIsFinishedAfterEveryChange() throws UserNotFoundException,
+            UsernameAlreadyExistsException {
+        Group group = new Group("group1", "Kristian00", "Dimitar00");
+        assertTrue(group.isFinished());
+
+        group.splitByGroup(9000, "reason1");
+        assertFalse(group.isFinished());
+
+        group.payed("Kristian00", 3000);
+        assertFalse(group.isFinished());
+        group.addUserToGroup("Velina00");
+        assertFalse(group.isFinished());
+        group.payed("Dimitar00", 3000);
+        assertTrue(group.isFinished());
+
+        group.payed("Velina00", 100);
+        assertFalse(group.isFinished());
+    }
+
+    @Test
+    void testMemberViewOfAGroupIsNotChangedByLaterChanges() throws UserNotFoundException,
+            UsernameAlreadyExistsException {
+        Group group = new Group("group1", "Kristian00", "Dimitar00");
+        group.splitByGroup(9000, "reason1");
+        int kristian = group.getUserIds().find("Kristian00");
+
+        Group.MemberView afterBill = group.getMemberView();
+        group.payed("Kristian00", 1000);
+        Group.MemberView afterPayment = group.getMemberView();
+        group.splitByGroup(300, "reason2");
+        group.addUserToGroup("Velina00");
+
+        assertEquals(3000, afterBill.getMemberBalance(kristian));
+        assertEquals(List.of("reason1-90.0BGN"), afterBill.getReasons());
+        assertEquals(2000, afterPayment.getMemberBalance(kristian));
+        assertEquals(List.of("reason1-90.0BGN"), afterPayment.getReasons());
+        assertEquals(group.getMemberBalance(kristian), group.getMemberView().getMemberBalance(kristian));
+        assertEquals(List.of("reason1-90.0BGN", "reason2-3.0BGN"), group.getMemberView().getReasons());
+    }
+
+    @Test
+    void testOnlyOpenGroupsAreListed() throws UnableToCreateGroupException, GroupNotFoundException,
+            UserNotFoundException {
+        user.createGroup("group1", "Kristian00", "Dimitar00");
+        user.createGroup("group2", "Kristian00", "Dimitar00");
+        user.splitByGroup("group1", 30, "reason1");
+        user.splitByGroup("group2", 60, "reason2");
+
+        user.payedFromGroupMember("group1", "Kristian00", 10);
+        user.payedFromGroupMember("group1", "Dimitar00", 10);
+        assertTrue(user.getAllUnfinishedGroups().startsWith("Group: group2 "));
+
+        user.splitByGroup("group1", 30, "reason3");
+        assertTrue(user.getAllUnfinishedGroups().startsWith("Group: group1 "));
+        assertTrue(user.getAllUnfinishedGroups().contains("Group: group2 "));
+    }
+}